@@ -0,0 +1,25 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.util.Random;
+
+/** Generates token strings that look like KBase tokens for the benchmarks. */
+final class BenchmarkTokens {
+	
+	private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+	
+	private BenchmarkTokens() {}
+	
+	/* Generates count distinct 32 character tokens. The same seed generates the same tokens. */
+	static String[] generate(final int count, final long seed) {
+		final Random r = new Random(seed);
+		final String[] tokens = new String[count];
+		final char[] c = new char[32];
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < c.length; j++) {
+				c[j] = CHARS.charAt(r.nextInt(CHARS.length()));
+			}
+			tokens[i] = new String(c);
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,24 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** The position of a benchmark thread in an array of keys. Each thread starts at a random
+ * position so that concurrent threads don't access the same keys in lockstep.
+ */
+@State(Scope.Thread)
+public class Cursor {
+	
+	private int index = -1;
+	
+	int next(final int length) {
+		if (index < 0) {
+			index = ThreadLocalRandom.current().nextInt(length);
+		} else if (++index >= length) {
+			index = 0;
+		}
+		return index;
+	}
+}
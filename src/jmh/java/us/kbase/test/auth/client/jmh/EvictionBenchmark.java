@@ -0,0 +1,71 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.StringCache;
+import us.kbase.auth.client.cache.TokenCache;
+
+/** Benchmarks for cache writes under sustained overflow, where every maxsize - size writes
+ * trigger an eviction. The cost of eviction is amortized over the writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvictionBenchmark {
+	
+	/** The nominal size of the caches. The maximum size is twice the nominal size. */
+	@Param({"1000", "100000"})
+	public int size;
+	
+	private TokenCache tokenCache;
+	private StringCache stringCache;
+	private AuthToken[] tokens;
+	private String[] strings;
+	
+	@Setup
+	public void setup() {
+		tokenCache = new TokenCache(size, size * 2);
+		stringCache = new StringCache(size, size * 2);
+		// many more distinct keys than the caches hold, so writes are always new entries
+		final String[] t = BenchmarkTokens.generate(size * 8, 3);
+		tokens = new AuthToken[t.length];
+		strings = new String[t.length];
+		for (int i = 0; i < t.length; i++) {
+			tokens[i] = new AuthToken(t[i], "user" + i);
+			strings[i] = "user" + i;
+		}
+	}
+	
+	@Benchmark
+	public void putValidToken(final Cursor c) {
+		tokenCache.putValidToken(tokens[c.next(tokens.length)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void putValidToken4Threads(final Cursor c) {
+		tokenCache.putValidToken(tokens[c.next(tokens.length)]);
+	}
+	
+	@Benchmark
+	public void putString(final Cursor c) {
+		stringCache.putString(strings[c.next(strings.length)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void putString4Threads(final Cursor c) {
+		stringCache.putString(strings[c.next(strings.length)]);
+	}
+}
@@ -0,0 +1,63 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import us.kbase.auth.client.cache.StringCache;
+
+/** Benchmarks for {@link StringCache} reads and writes that do not trigger eviction. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StringCacheBenchmark {
+	
+	/** The number of strings in the cache. */
+	@Param({"1000", "100000"})
+	public int size;
+	
+	private StringCache cache;
+	private String[] cached;
+	private String[] missing;
+	
+	@Setup
+	public void setup() {
+		cache = new StringCache(size, size * 2);
+		cached = new String[size];
+		missing = new String[size];
+		for (int i = 0; i < size; i++) {
+			cached[i] = "user" + i;
+			missing[i] = "missing" + i;
+			cache.putString(cached[i]);
+		}
+	}
+	
+	@Benchmark
+	public boolean hasStringHit(final Cursor c) {
+		return cache.hasString(cached[c.next(size)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public boolean hasStringHit4Threads(final Cursor c) {
+		return cache.hasString(cached[c.next(size)]);
+	}
+	
+	@Benchmark
+	public boolean hasStringMiss(final Cursor c) {
+		return cache.hasString(missing[c.next(size)]);
+	}
+	
+	@Benchmark
+	public void putString(final Cursor c) {
+		cache.putString(cached[c.next(size)]);
+	}
+}
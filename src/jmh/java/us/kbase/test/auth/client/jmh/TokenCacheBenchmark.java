@@ -0,0 +1,86 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.CompactTokenCache;
+import us.kbase.auth.client.cache.TokenCache;
+import us.kbase.auth.client.cache.TokenDigest;
+
+/** Benchmarks for {@link TokenCache} and {@link CompactTokenCache} reads and writes that do not
+ * trigger eviction, and for computing token digests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenCacheBenchmark {
+	
+	/** The number of tokens in the cache. */
+	@Param({"1000", "100000"})
+	public int size;
+	
+	/** The cache implementation. */
+	@Param({"default", "compact"})
+	public String impl;
+	
+	private TokenCache cache;
+	private AuthToken[] tokens;
+	private String[] cached;
+	private String[] missing;
+	
+	@Setup
+	public void setup() {
+		// max size is large enough that the benchmarks never evict
+		cache = impl.equals("compact") ?
+				new CompactTokenCache(size, size * 2) : new TokenCache(size, size * 2);
+		cached = BenchmarkTokens.generate(size, 1);
+		missing = BenchmarkTokens.generate(size, 2);
+		tokens = new AuthToken[size];
+		for (int i = 0; i < size; i++) {
+			tokens[i] = new AuthToken(cached[i], "user" + i);
+			cache.putValidToken(tokens[i]);
+		}
+	}
+	
+	@Benchmark
+	public AuthToken getTokenHit(final Cursor c) {
+		return cache.getToken(cached[c.next(size)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public AuthToken getTokenHit4Threads(final Cursor c) {
+		return cache.getToken(cached[c.next(size)]);
+	}
+	
+	@Benchmark
+	public AuthToken getTokenMiss(final Cursor c) {
+		return cache.getToken(missing[c.next(size)]);
+	}
+	
+	@Benchmark
+	public void putValidToken(final Cursor c) {
+		cache.putValidToken(tokens[c.next(size)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void putValidToken4Threads(final Cursor c) {
+		cache.putValidToken(tokens[c.next(size)]);
+	}
+	
+	@Benchmark
+	public TokenDigest tokenDigest(final Cursor c) {
+		return TokenDigest.of(cached[c.next(size)]);
+	}
+}
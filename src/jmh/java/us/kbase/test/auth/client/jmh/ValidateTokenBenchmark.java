@@ -0,0 +1,97 @@
+package us.kbase.test.auth.client.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.transport.PooledTransport;
+import us.kbase.test.auth.client.server.FakeAuthServer;
+
+/** End to end benchmarks for {@link AuthClient#validateToken(String)} against a
+ * {@link FakeAuthServer} on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValidateTokenBenchmark {
+	
+	/** The transport used by the client - either pooled or the default transport. */
+	@Param({"pooled", "default"})
+	public String transport;
+	
+	private FakeAuthServer server;
+	private AuthClient client;
+	private String[] cached;
+	private String[] uncached;
+	// the index of the next uncached token
+	private final AtomicInteger counter = new AtomicInteger();
+	
+	@Setup
+	public void setup() throws IOException, AuthException {
+		server = new FakeAuthServer();
+		final AuthClient.Builder b = AuthClient.builder(server.getRootURI());
+		if (transport.equals("pooled")) {
+			b.withTransport(new PooledTransport(16, 30000));
+		}
+		client = b.build();
+		cached = BenchmarkTokens.generate(500, 4);
+		for (final String t: cached) {
+			server.addToken(t, "user");
+			client.validateToken(t);
+		}
+		// far more tokens than the client caches, so they're evicted long before reuse
+		uncached = BenchmarkTokens.generate(100000, 5);
+		for (final String t: uncached) {
+			server.addToken(t, "user");
+		}
+	}
+	
+	@TearDown
+	public void teardown() {
+		server.close();
+		if (client.getTransport() instanceof PooledTransport) {
+			((PooledTransport) client.getTransport()).close();
+		}
+	}
+	
+	@Benchmark
+	public AuthToken validateTokenCached(final Cursor c) throws IOException, AuthException {
+		return client.validateToken(cached[c.next(cached.length)]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public AuthToken validateTokenCached4Threads(final Cursor c)
+			throws IOException, AuthException {
+		return client.validateToken(cached[c.next(cached.length)]);
+	}
+	
+	private int nextUncached() {
+		return (counter.getAndIncrement() & Integer.MAX_VALUE) % uncached.length;
+	}
+	
+	@Benchmark
+	public AuthToken validateTokenUncached() throws IOException, AuthException {
+		return client.validateToken(uncached[nextUncached()]);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public AuthToken validateTokenUncached4Threads() throws IOException, AuthException {
+		return client.validateToken(uncached[nextUncached()]);
+	}
+}
@@ -1,51 +1,122 @@
 package us.kbase.auth.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 
 import us.kbase.auth.AuthException;
 import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.AbstractTokenCache;
+import us.kbase.auth.client.cache.CacheSnapshot;
+import us.kbase.auth.client.cache.CompactTokenCache;
+import us.kbase.auth.client.cache.SecondLevelCache;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedToken;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedUser;
+import us.kbase.auth.client.cache.SharedTokenCache;
+import us.kbase.auth.client.cache.RejectedTokenCache;
+import us.kbase.auth.client.cache.RejectedTokenCache.Rejection;
 import us.kbase.auth.client.cache.StringCache;
 import us.kbase.auth.client.cache.TokenCache;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.auth.client.metrics.Metrics;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+import us.kbase.auth.client.transport.HttpResponse;
+import us.kbase.auth.client.transport.HttpTransport;
+import us.kbase.auth.client.transport.PoolExhaustedException;
+import us.kbase.auth.client.transport.URLConnectionTransport;
 
 /** A client for the KBase Auth2 authentication server (https://github.com/kbase/auth2).
  * 
  *  Only one instance of a client should be created per application if at all possible.
+ *  
+ *  The client may be called from virtual threads. It never blocks while holding a monitor -
+ *  blocking waits use futures and java.util.concurrent locks - so a virtual thread waiting on
+ *  the client or the transport does not pin its carrier thread.
  */
 public class AuthClient {
 	
 	private static final int MAX_RESPONSE_LEN = 100;
+	// enough bytes to hold MAX_RESPONSE_LEN code points, plus one to detect longer responses
+	private static final int MAX_RESPONSE_BYTES = MAX_RESPONSE_LEN * 4 + 1;
 	
 	// TODO CODE use the built in client in Java 11 when we drop java 8
 	
-	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final JsonFactory JSON = new JsonFactory();
 	
-	// make these configurable? Add a builder if so
-	private final TokenCache tokenCache = new TokenCache(1000, 2000); // same as old auth client
-	private final StringCache userCache = new StringCache(1000, 2000);  // same as old auth client
+	private final AbstractTokenCache tokenCache;
+	private final StringCache userCache;
+	
+	// the maximum length of the user list in a users request, which keeps the URL well
+	// under the common 8KB limit
+	private static final int MAX_USER_LIST_LEN = 4000;
 	
 	final static Pattern INVALID_USERNAME = Pattern.compile("[^a-z\\d_]+");
+	
+	// runs tasks on the calling thread, used for the synchronous methods
+	private static final Executor DIRECT = r -> r.run();
 
 	private final URI rootURI;
+	private final HttpTransport transport;
+	private final Executor executor;
+	private final Executor refreshExecutor; // null if refresh ahead is disabled
+	private final AbstractTokenCache.Refresher refresher; // null if refresh ahead is disabled
+	private final RejectedTokenCache rejectedTokenCache; // null if disabled
+	private final StringCache missingUserCache;
+	private final int userLookupParallelism;
+	private final int maxRetries;
+	private final long initialBackoffMS;
+	private final long maxBackoffMS;
+	private final CircuitBreaker circuitBreaker; // null if disabled
+	private final long staleTokenGraceMS;
+	private final Metrics metrics;
+	private final Path snapshotFile; // null if disabled
+	private final SecondLevelCache secondLevelCache; // null if disabled
+	private final Clock clock;
+	
+	// token digest -> in flight validation request for the token
+	private final Map<TokenDigest, CompletableFuture<AuthToken>> inFlightTokens =
+			new ConcurrentHashMap<>();
+	private final LongAdder coalescedTokenRequests = new LongAdder();
 	
-	/** Create the client.
+	/** Create the client with the default configuration.
 	 * @param auth2RootURI the root URI of the auth service - for example,
 	 * https://appdev.kbase.us/services/auth
 	 * @return the client.
@@ -53,18 +124,72 @@ public class AuthClient {
 	 * @throws AuthException if an auth exception occurs communicating with the auth service.
 	 */
 	public static AuthClient from(final URI auth2RootURI) throws IOException, AuthException {
-		return new AuthClient(auth2RootURI);
+		return builder(auth2RootURI).build();
+	}
+	
+	/** Get a builder for a client.
+	 * @param auth2RootURI the root URI of the auth service - for example,
+	 * https://appdev.kbase.us/services/auth
+	 * @return the builder.
+	 */
+	public static Builder builder(final URI auth2RootURI) {
+		return new Builder(auth2RootURI);
 	}
 	
-	private AuthClient(final URI auth2RootURI) throws IOException, AuthException {
-		if (auth2RootURI == null) {
-			throw new NullPointerException("auth2RootURI");
+	private AuthClient(final Builder b) throws IOException, AuthException {
+		final URI auth2RootURI = b.auth2RootURI;
+		if (b.transport != null) {
+			transport = b.transport;
+		} else if (b.connectTimeoutMS != null) {
+			transport = new URLConnectionTransport(b.connectTimeoutMS, b.readTimeoutMS);
+		} else {
+			transport = new URLConnectionTransport(
+					Builder.DEFAULT_CONNECT_TIMEOUT_MS, Builder.DEFAULT_READ_TIMEOUT_MS);
+		}
+		executor = b.executor;
+		metrics = b.metrics;
+		tokenCache = b.compactTokenCache ?
+				new CompactTokenCache(b.tokenCacheSize, b.tokenCacheMaxSize, b.clock) :
+				new TokenCache(b.tokenCacheSize, b.tokenCacheMaxSize, b.clock);
+		tokenCache.setMetrics(metrics, Metrics.Cache.TOKEN);
+		tokenCache.setMaxAgeMS(b.tokenMaxAgeMS);
+		tokenCache.setExpiryMarginMS(b.tokenExpiryMarginMS);
+		tokenCache.setRefreshAheadFraction(b.refreshAheadFraction);
+		if (b.refreshAheadFraction < 1) {
+			refreshExecutor = b.refreshExecutor == null ? executor : b.refreshExecutor;
+			refresher = this::refreshToken;
+		} else {
+			refreshExecutor = null;
+			refresher = null;
+		}
+		rejectedTokenCache = b.rejectedTokenCacheSize < 1 ? null : new RejectedTokenCache(
+				b.rejectedTokenCacheSize, b.rejectedTokenCacheMaxSize, b.rejectedTokenExpiryMS,
+				b.clock);
+		if (rejectedTokenCache != null) {
+			rejectedTokenCache.setMetrics(metrics, Metrics.Cache.REJECTED_TOKEN);
 		}
+		userCache = new StringCache(b.userCacheSize, b.userCacheMaxSize, b.clock);
+		userCache.setExpiry(b.userExpirySec);
+		userCache.setMetrics(metrics, Metrics.Cache.USER);
+		missingUserCache = new StringCache(
+				b.missingUserCacheSize, b.missingUserCacheMaxSize, b.clock);
+		missingUserCache.setExpiry(b.missingUserExpirySec);
+		missingUserCache.setMetrics(metrics, Metrics.Cache.MISSING_USER);
+		userLookupParallelism = b.userLookupParallelism;
+		maxRetries = b.maxRetries;
+		initialBackoffMS = b.initialBackoffMS;
+		maxBackoffMS = b.maxBackoffMS;
+		circuitBreaker = b.breakerFailureThreshold < 1 ? null : new CircuitBreaker(
+				b.breakerFailureThreshold, b.breakerOpenMS, b.clock, b.breakerListener);
+		staleTokenGraceMS = b.staleTokenGraceMS;
+		snapshotFile = b.snapshotFile;
+		secondLevelCache = b.secondLevelCache;
+		clock = b.clock;
 		if (!"https".equals(auth2RootURI.getScheme())) {
 			LoggerFactory.getLogger(getClass()).warn("auth root URI is insecure");
 		}
-		final Map<String, Object> doc = request(auth2RootURI);
-		if (!"Authentication Service".equals(doc.get("servicename"))) {
+		final RootResponse doc = request(auth2RootURI, RootResponse::parse);
+		if (!"Authentication Service".equals(doc.serviceName)) {
 			throw new AuthException(String.format(
 					"Service at %s is not the authentication service", auth2RootURI));
 		}
@@ -73,57 +198,271 @@ public class AuthClient {
 		} catch (URISyntaxException e) {
 			throw new RuntimeException("this should be impossible", e);
 		}
+		if (snapshotFile != null) {
+			loadCacheSnapshot();
+			SnapshotTask.schedule(this, b.snapshotIntervalMS);
+		}
+	}
+	
+	private void loadCacheSnapshot() {
+		if (!Files.exists(snapshotFile)) {
+			return;
+		}
+		try {
+			final CacheSnapshot.Counts c = CacheSnapshot.load(
+					snapshotFile, tokenCache, userCache);
+			LoggerFactory.getLogger(getClass()).info(
+					"Loaded {} tokens and {} user names from cache snapshot {}",
+					c.getTokens(), c.getUsers(), snapshotFile);
+		} catch (IOException | RuntimeException e) {
+			// the caches will fill normally, so don't fail
+			LoggerFactory.getLogger(getClass()).warn(
+					"Failed to load cache snapshot " + snapshotFile, e);
+		}
+	}
+	
+	/* Writes cache snapshots periodically until the client is garbage collected. All clients
+	 * share a single daemon thread.
+	 */
+	private static class SnapshotTask implements Runnable {
+		
+		private static final ScheduledExecutorService SCHEDULER =
+				Executors.newSingleThreadScheduledExecutor(r -> {
+					final Thread t = new Thread(r, "AuthClient cache snapshots");
+					t.setDaemon(true);
+					return t;
+				});
+		
+		private final WeakReference<AuthClient> client;
+		private volatile ScheduledFuture<?> future;
+		
+		private SnapshotTask(final AuthClient client) {
+			this.client = new WeakReference<>(client);
+		}
+		
+		private static void schedule(final AuthClient client, final long intervalMS) {
+			final SnapshotTask task = new SnapshotTask(client);
+			task.future = SCHEDULER.scheduleWithFixedDelay(
+					task, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public void run() {
+			final AuthClient c = client.get();
+			if (c == null) {
+				if (future != null) {
+					future.cancel(false);
+				}
+				return;
+			}
+			try {
+				c.writeCacheSnapshot();
+			} catch (IOException | RuntimeException e) {
+				// an exception would stop the schedule
+				LoggerFactory.getLogger(AuthClient.class).warn(
+						"Failed to write cache snapshot " + c.snapshotFile, e);
+			}
+		}
 	}
 	
-	private Map<String, Object> request(final URI target) throws IOException, AuthException {
-		return request(target, null);
+	/** Write a snapshot of the token and user name caches to the file set with
+	 * {@link Builder#withCacheSnapshot(Path, long)}. Snapshots are written periodically, but
+	 * an application may also write a snapshot before it exits.
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	public void writeCacheSnapshot() throws IOException {
+		if (snapshotFile == null) {
+			throw new IllegalStateException("Cache snapshots are not enabled");
+		}
+		CacheSnapshot.write(snapshotFile, tokenCache, userCache);
 	}
 	
-	private Map<String, Object> request(final URI target, final String token)
+	private <T> T request(final URI target, final ResponseParser<T> parser)
 			throws IOException, AuthException {
-		// tried to use the Jersey client here but kept getting ssl handshake errors if I made
-		// more than one request
-		final HttpURLConnection conn = (HttpURLConnection) target.toURL().openConnection();
-		conn.addRequestProperty("Accept", "application/json");
-		if (token != null) {
-			conn.addRequestProperty("Authorization", token);
+		return request(Endpoint.ROOT, target, null, parser);
+	}
+	
+	/* All requests are idempotent GETs, and so are retried when the auth service is
+	 * unavailable. Each attempt passes through the circuit breaker.
+	 */
+	private <T> T request(
+			final Endpoint endpoint,
+			final URI target,
+			final String token,
+			final ResponseParser<T> parser)
+			throws IOException, AuthException {
+		Exception err = null;
+		for (int attempt = 0;; attempt++) {
+			boolean trial = false;
+			if (circuitBreaker != null) {
+				try {
+					trial = circuitBreaker.acquire();
+				} catch (CircuitBreakerOpenException e) {
+					// if the breaker opened during the retries, report the actual failure
+					throw err == null ? e : rethrow(err);
+				}
+			}
+			boolean unavailable = true;
+			try {
+				final T res = requestOnce(endpoint, target, token, parser);
+				if (circuitBreaker != null) {
+					circuitBreaker.success();
+				}
+				return res;
+			} catch (UnavailableException e) {
+				err = e.error;
+			} catch (PoolExhaustedException e) {
+				// the request was never sent, so this says nothing about the auth service
+				if (trial) {
+					circuitBreaker.cancelTrial();
+				}
+				throw e;
+			} catch (IOException | AuthException e) {
+				err = e;
+				unavailable = isUnavailable(e);
+			} catch (RuntimeException | Error e) {
+				// e.g. a closed transport. Nothing is known about the auth service, but the
+				// trial must be released or the breaker never leaves the half open state
+				if (trial) {
+					circuitBreaker.cancelTrial();
+				}
+				throw e;
+			}
+			if (circuitBreaker != null) {
+				if (unavailable) {
+					circuitBreaker.failure();
+				} else {
+					circuitBreaker.success();
+				}
+			}
+			if (!unavailable || attempt >= maxRetries) {
+				throw rethrow(err);
+			}
+			backoff(attempt);
 		}
+	}
+	
+	// throws the error if it's an AuthException, otherwise returns it for throwing
+	private static IOException rethrow(final Exception err) throws AuthException {
+		if (err instanceof AuthException) {
+			throw (AuthException) err;
+		}
+		return (IOException) err;
+	}
+	
+	// wraps an error response that doesn't come from the auth service, e.g. a 503 from a proxy
+	private static class UnavailableException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final AuthException error;
+		
+		private UnavailableException(final AuthException error) {
+			this.error = error;
+		}
+	}
+	
+	// true if the error indicates the auth service is unavailable, as opposed to an error
+	// response to the request
+	private static boolean isUnavailable(final Exception e) {
+		if (e instanceof AuthServerException) {
+			return ((AuthServerException) e).getHTTPCode() >= 500;
+		}
+		if (e instanceof InterruptedIOException) {
+			// a read timeout is a failure, but an interrupted thread should stop
+			return e instanceof SocketTimeoutException;
+		}
+		return e instanceof IOException;
+	}
+	
+	private void backoff(final int attempt) throws InterruptedIOException {
+		// exponential backoff with full jitter
+		final long cap = Math.min(maxBackoffMS, initialBackoffMS << Math.min(attempt, 30));
 		try {
-			final int code = conn.getResponseCode();
-			final String res = readResponse(conn, code != 200);
-			final Map<String, Object> obj; 
-			try {
-				@SuppressWarnings("unchecked")
-				final Map<String, Object> foo = MAPPER.readValue(res, Map.class);
-				obj = foo;
-			} catch (IOException e) {
-				throw new AuthException(String.format(
-						"Failed reading from auth url %s with response code %s - "
-						+ "response is not JSON: %s",
-						target,
-						code,
-						truncate(res)),
-						e);
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry a request");
+		}
+	}
+	
+	private <T> T requestOnce(
+			final Endpoint endpoint,
+			final URI target,
+			final String token,
+			final ResponseParser<T> parser)
+			throws IOException, AuthException, UnavailableException {
+		final long start = System.nanoTime();
+		IOException failure = null;
+		CapturingInputStream body = null;
+		int code = 0;
+		try (final HttpResponse response = transport.get(target, token)) {
+			code = response.getStatusCode();
+			// only the start of the response is retained in case it's needed for an error
+			body = new CapturingInputStream(response.getBody(), MAX_RESPONSE_BYTES);
+			return parseResponse(target, code, body, parser);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			final long latency = System.nanoTime() - start;
+			if (failure != null) {
+				metrics.requestFailed(endpoint, failure, latency);
+			} else if (body != null) {
+				metrics.requestCompleted(endpoint, code, latency, body.getBytesRead());
+			}
+		}
+	}
+	
+	private <T> T parseResponse(
+			final URI target,
+			final int code,
+			final CapturingInputStream body,
+			final ResponseParser<T> parser)
+			throws IOException, AuthException, UnavailableException {
+		final ErrorResponse err;
+		try (final JsonParser p = JSON.createParser(body)) {
+			if (p.nextToken() != JsonToken.START_OBJECT) {
+				throw notJSON(target, code, body, null);
 			}
 			if (code == 200) {
-				return obj;
-			}
-			if (!obj.containsKey("error")) {
-				// not sure how to test this
-				throw new AuthException(String.format(
-						"Unexpected error response from auth url %s with response code %s: %s",
-						target,
-						code,
-						truncate(res)));
-			}
-			// ok, we assume things are from the auth server now
-			@SuppressWarnings("unchecked")
-			final Map<String, Object> errobj = (Map<String, Object>) obj.get("error");
-			throw new AuthException(
-					"Auth service returned an error: " + errobj.get("message"));
-		} finally {
-			conn.disconnect();
+				return parser.parse(p);
+			}
+			err = ErrorResponse.parse(p);
+		} catch (JsonProcessingException e) {
+			throw notJSON(target, code, body, e);
 		}
+		if (!err.hasError) {
+			// not sure how to test this
+			throw new AuthException(String.format(
+					"Unexpected error response from auth url %s with response code %s: %s",
+					target,
+					code,
+					truncate(body.getCapturedText())));
+		}
+		// ok, we assume things are from the auth server now
+		throw new AuthServerException("Auth service returned an error: " + err.message,
+				err.httpCode, err.appCode);
+	}
+
+	private AuthException notJSON(
+			final URI target,
+			final int code,
+			final CapturingInputStream body,
+			final JsonProcessingException cause)
+			throws IOException, UnavailableException {
+		final AuthException e = new AuthException(String.format(
+				"Failed reading from auth url %s with response code %s - "
+				+ "response is not JSON: %s",
+				target,
+				code,
+				truncate(body.getCapturedText())),
+				cause);
+		if (code >= 500) {
+			// most likely a proxy in front of an unavailable auth service
+			throw new UnavailableException(e);
+		}
+		return e;
 	}
 
 	private String truncate(String res) {
@@ -134,24 +473,12 @@ public class AuthClient {
 		}
 		return res;
 	}
-
-	private String readResponse(
-			final HttpURLConnection conn,
-			final boolean error)
-			throws IOException {
-		final StringBuilder restext = new StringBuilder();
-		try (final InputStream is = error ? conn.getErrorStream() : conn.getInputStream()) {
-			if (is == null) {
-				return "";
-			}
-			final Reader reader = new BufferedReader(
-					new InputStreamReader(is, StandardCharsets.UTF_8));
-			int c = 0;
-			while ((c = reader.read()) != -1) {
-				restext.append((char) c);
-			}
-		}
-		return restext.toString();
+	
+	/** Get the transport the client uses to communicate with the auth service.
+	 * @return the transport.
+	 */
+	public HttpTransport getTransport() {
+		return transport;
 	}
 	
 	/** Get the auth service URI.
@@ -167,14 +494,48 @@ public class AuthClient {
 	 * @throws AuthException if an auth exception occurs communicating with the auth service.
 	 */
 	public String getServerVersion() throws IOException, AuthException {
-		final Map<String, Object> doc = request(rootURI);
-		return (String) doc.get("version");
+		return await(getServerVersionAsync(DIRECT));
+	}
+	
+	/** Get the version of the auth server with which this client communicates without
+	 * blocking the calling thread, using the client executor - see
+	 * {@link Builder#withExecutor(Executor)}.
+	 * @return a future containing the server version.
+	 */
+	public CompletableFuture<String> getServerVersionAsync() {
+		return getServerVersionAsync(executor);
+	}
+	
+	/** Get the version of the auth server with which this client communicates without
+	 * blocking the calling thread.
+	 * @param executor the executor on which to contact the auth service.
+	 * @return a future containing the server version. The future completes exceptionally with
+	 * an {@link IOException} or an {@link AuthException} under the same circumstances that
+	 * {@link #getServerVersion()} would throw them.
+	 */
+	public CompletableFuture<String> getServerVersionAsync(final Executor executor) {
+		checkExecutor(executor);
+		final CompletableFuture<String> future = new CompletableFuture<>();
+		execute(executor, future, () -> request(rootURI, RootResponse::parse).version);
+		return future;
 	}
 	
 	// TODO CODE could do a lot more here later w/ the return data from the auth server
 	//           - token type, custom expiration time, etc.
 	
 	/** Validate a token and get name of the user that owns the token.
+	 * 
+	 * If multiple threads validate the same uncached token at the same time, only one request
+	 * is made to the auth service and all the threads receive its result.
+	 * 
+	 * If the rejected token cache is enabled (see
+	 * {@link Builder#withRejectedTokenCache(int, int, long)}) and the auth service recently
+	 * rejected the token, the exception from the auth service is rethrown without contacting
+	 * the auth service.
+	 * 
+	 * If refresh ahead is enabled (see {@link Builder#withTokenRefreshAhead(double, Executor)})
+	 * and the token is due for refresh, the cached token is returned and the token is
+	 * revalidated in the background.
 	 * @param token the token.
 	 * @return an authtoken containing the token and the username.
 	 * @throws IOException if an IOException occurs communicating with the auth service.
@@ -182,25 +543,328 @@ public class AuthClient {
 	 */
 	public AuthToken validateToken(final String token) throws IOException, AuthException {
 		checkToken(token);
-		final AuthToken t = tokenCache.getToken(token);
+		// check the cache here to avoid allocating a future for a cache hit
+		final AuthToken t = tokenCache.getToken(token, refresher);
 		if (t != null) {
 			return t;
 		}
-		final URI target = rootURI.resolve("api/V2/token");
-		final Map<String, Object> res = request(target, token.trim());
+		return await(validateUncachedToken(token, DIRECT));
+	}
+	
+	/** Validate a token and get name of the user that owns the token, failing if the
+	 * validation does not complete within a deadline.
+	 * 
+	 * If the token is not cached, the request to the auth service is made on the client
+	 * executor - see {@link Builder#withExecutor(Executor)}. The request is not cancelled if
+	 * the deadline passes, and its result is cached when it completes.
+	 * @param token the token.
+	 * @param timeoutMS the maximum time, in milliseconds, to wait for the validation to
+	 * complete.
+	 * @return an authtoken containing the token and the username.
+	 * @throws AuthTimeoutException if the validation does not complete within the deadline.
+	 * @throws IOException if an IOException occurs communicating with the auth service.
+	 * @throws AuthException if an auth exception occurs communicating with the auth service.
+	 */
+	public AuthToken validateToken(final String token, final long timeoutMS)
+			throws IOException, AuthException {
+		checkToken(token);
+		checkTimeout(timeoutMS);
+		final AuthToken t = tokenCache.getToken(token, refresher);
+		if (t != null) {
+			return t;
+		}
+		return await(validateUncachedToken(token, executor), timeoutMS);
+	}
+	
+	/** Validate a token and get name of the user that owns the token without blocking the
+	 * calling thread, using the client executor - see {@link Builder#withExecutor(Executor)}.
+	 * @param token the token.
+	 * @return a future containing an authtoken with the token and the username.
+	 */
+	public CompletableFuture<AuthToken> validateTokenAsync(final String token) {
+		return validateTokenAsync(token, executor);
+	}
+	
+	/** Validate a token and get name of the user that owns the token without blocking the
+	 * calling thread.
+	 * 
+	 * If the token is cached, the returned future is already complete and the executor is not
+	 * used. Otherwise, the auth service is contacted on the executor, unless a request for the
+	 * same token is already in progress, in which case the future completes with the result
+	 * of that request.
+	 * @param token the token.
+	 * @param executor the executor on which to contact the auth service.
+	 * @return a future containing an authtoken with the token and the username. The future
+	 * completes exceptionally with an {@link IOException} or an {@link AuthException} under
+	 * the same circumstances that {@link #validateToken(String)} would throw them.
+	 */
+	public CompletableFuture<AuthToken> validateTokenAsync(
+			final String token,
+			final Executor executor) {
+		checkToken(token);
+		checkExecutor(executor);
+		final AuthToken t = tokenCache.getToken(token, refresher);
+		if (t != null) {
+			return CompletableFuture.completedFuture(t);
+		}
+		return validateUncachedToken(token, executor);
+	}
+	
+	// validate a token that was not in the cache when checked by the caller
+	private CompletableFuture<AuthToken> validateUncachedToken(
+			final String token,
+			final Executor executor) {
+		if (rejectedTokenCache != null) {
+			final Rejection r = rejectedTokenCache.getRejection(token);
+			if (r != null) {
+				final CompletableFuture<AuthToken> rejected = new CompletableFuture<>();
+				rejected.completeExceptionally(new AuthServerException(
+						r.getMessage(), r.getHTTPCode(), r.getAppCode()));
+				return rejected;
+			}
+		}
+		final TokenDigest digest = TokenDigest.of(token);
+		final CompletableFuture<AuthToken> mine = new CompletableFuture<>();
+		final CompletableFuture<AuthToken> inFlight = inFlightTokens.putIfAbsent(digest, mine);
+		if (inFlight != null) {
+			coalescedTokenRequests.increment();
+			return copy(inFlight);
+		}
+		// remove the request before the caller sees the result, so that a subsequent call
+		// doesn't join a completed request. This also prevents callers completing the shared
+		// future.
+		final CompletableFuture<AuthToken> ret = mine.whenComplete(
+				(res, err) -> inFlightTokens.remove(digest, mine));
+		execute(executor, mine, () -> requestToken(token));
+		return ret;
+	}
+	
+	private AuthToken requestToken(final String token) throws IOException, AuthException {
+		// a request for the token may have completed since the cache was checked. With no grace
+		// period this is equivalent to getToken() but isn't counted as a lookup in the metrics
+		final AuthToken t = tokenCache.getStaleToken(token, 0);
+		if (t != null) {
+			return t;
+		}
+		final AuthToken cached = getSecondLevelToken(token);
+		if (cached != null) {
+			return cached;
+		}
+		try {
+			return fetchToken(token);
+		} catch (IOException | AuthException e) {
+			// never override an error response to the request, e.g. an invalid token
+			final AuthToken stale = e instanceof AuthServerException && !isUnavailable(e) ?
+					null : getStaleToken(token);
+			if (stale != null) {
+				return stale;
+			}
+			throw e;
+		}
+	}
+	
+	/* Checks the second level cache, if any, for a token missing from the token cache and
+	 * adds it to the token cache if found.
+	 */
+	private AuthToken getSecondLevelToken(final String token) {
+		if (secondLevelCache == null) {
+			return null;
+		}
+		final TokenDigest digest = TokenDigest.of(token);
+		final CachedToken c;
+		try {
+			c = secondLevelCache.getTokens(Collections.singletonList(digest)).get(digest);
+		} catch (IOException | RuntimeException e) {
+			logSecondLevelFailure(e);
+			return null;
+		}
+		final AuthToken t = c == null ? null : new AuthToken(token, c.getUser());
+		if (t == null || !tokenCache.putCachedToken(t, c.getExpires(), c.getTokenExpires())) {
+			metrics.cacheMiss(Metrics.Cache.SHARED_TOKEN);
+			return null;
+		}
+		metrics.cacheHit(Metrics.Cache.SHARED_TOKEN);
+		return t;
+	}
+	
+	private void logSecondLevelFailure(final Exception e) {
+		// the client continues as if the cache were empty
+		LoggerFactory.getLogger(getClass()).warn("Second level cache request failed", e);
+	}
+	
+	// returns a recently expired token if the circuit breaker is open and stale tokens are
+	// allowed
+	private AuthToken getStaleToken(final String token) {
+		if (staleTokenGraceMS < 1 || circuitBreaker == null
+				|| circuitBreaker.getState() == CircuitBreaker.State.CLOSED) {
+			return null;
+		}
+		return tokenCache.getStaleToken(token, staleTokenGraceMS);
+	}
+	
+	private AuthToken fetchToken(final String token) throws IOException, AuthException {
+		final URI target = rootURI.resolve(Endpoint.TOKEN.getPath());
+		final TokenResponse res;
+		try {
+			res = request(Endpoint.TOKEN, target, token.trim(), TokenResponse::parse);
+		} catch (AuthServerException e) {
+			// only cache explicit rejections, not other server errors
+			if (rejectedTokenCache != null && e.getAppCode() == AuthServerException.INVALID_TOKEN) {
+				rejectedTokenCache.putRejectedToken(
+						token, e.getMessage(), e.getHTTPCode(), e.getAppCode());
+			}
+			throw e;
+		}
 		// assume we're good at this point
-		final AuthToken authToken = new AuthToken(token, (String) res.get("user"));
-		tokenCache.putValidToken(authToken);
+		final AuthToken authToken = new AuthToken(token, res.user);
+		if (res.expires == null) {
+			tokenCache.putValidToken(authToken);
+		} else {
+			tokenCache.putValidToken(authToken, res.expires);
+		}
+		if (secondLevelCache != null) {
+			putSecondLevelToken(authToken, res.expires == null ? Long.MAX_VALUE : res.expires);
+		}
 		return authToken;
 	}
+	
+	// caches the token for the same time as the token cache
+	private void putSecondLevelToken(final AuthToken token, final long expires) {
+		final long now = clock.millis();
+		final long maxAge = tokenCache.getMaxAgeMS();
+		final long cacheUntil = Math.min(now + maxAge < now ? Long.MAX_VALUE : now + maxAge,
+				expires - tokenCache.getExpiryMarginMS());
+		if (cacheUntil <= now) {
+			return;
+		}
+		try {
+			secondLevelCache.putTokens(Collections.singletonMap(TokenDigest.of(token.getToken()),
+					new CachedToken(token.getUserName(), cacheUntil, expires)));
+		} catch (IOException | RuntimeException e) {
+			logSecondLevelFailure(e);
+		}
+	}
+	
+	/* Revalidates a cached token in the background. Removes the token from the cache if the
+	 * auth service no longer considers it valid.
+	 */
+	private void refreshToken(final AuthToken token) {
+		try {
+			refreshExecutor.execute(() -> {
+				try {
+					fetchToken(token.getToken());
+				} catch (AuthServerException e) {
+					if (e.getAppCode() == AuthServerException.INVALID_TOKEN) {
+						tokenCache.removeToken(token.getToken());
+						removeSecondLevelToken(token.getToken());
+					} else {
+						logRefreshFailure(e);
+					}
+				} catch (Exception e) {
+					logRefreshFailure(e);
+				}
+			});
+		} catch (RuntimeException e) { // e.g. RejectedExecutionException
+			logRefreshFailure(e);
+		}
+	}
+	
+	private void removeSecondLevelToken(final String token) {
+		if (secondLevelCache != null) {
+			try {
+				secondLevelCache.removeTokens(Collections.singletonList(TokenDigest.of(token)));
+			} catch (IOException | RuntimeException e) {
+				logSecondLevelFailure(e);
+			}
+		}
+	}
+	
+	private void logRefreshFailure(final Exception e) {
+		// the token will be revalidated when it expires from the cache
+		LoggerFactory.getLogger(getClass()).warn("Background token revalidation failed", e);
+	}
+	
+	/** Get the state of the client's circuit breaker.
+	 * @return the state, or null if the circuit breaker is disabled.
+	 */
+	public CircuitBreaker.State getCircuitBreakerState() {
+		return circuitBreaker == null ? null : circuitBreaker.getState();
+	}
+	
+	/** Get the number of calls to {@link #validateToken(String)} that did not make a request
+	 * to the auth service because a request for the same token was already in progress.
+	 * @return the number of coalesced token validation calls.
+	 */
+	public long getCoalescedTokenValidationCount() {
+		return coalescedTokenRequests.sum();
+	}
+	
+	/** Remove a token from the client's token cache and from the second level cache, if any,
+	 * so that the token is validated by the auth service the next time it is used. Call when a
+	 * token is revoked. A validation in progress when the method is called may add the token
+	 * to the cache again.
+	 * @param token the token.
+	 */
+	public void invalidateToken(final String token) {
+		checkToken(token);
+		tokenCache.removeToken(token);
+		removeSecondLevelToken(token);
+	}
+	
+	/** Remove all of a user's tokens from the client's token cache and the second level cache,
+	 * if any. Call when a user's tokens are revoked or the user is disabled. Takes time
+	 * proportional to the number of tokens cached for the user. Only the tokens in the
+	 * client's token cache are removed from the second level cache, so tokens added to the
+	 * second level cache by other clients may remain there.
+	 * @param user the user name.
+	 * @return the number of tokens removed from the client's token cache.
+	 */
+	public int invalidateUser(final String user) {
+		final Collection<TokenDigest> digests = tokenCache.removeUser(user);
+		if (secondLevelCache != null && !digests.isEmpty()) {
+			try {
+				secondLevelCache.removeTokens(digests);
+			} catch (IOException | RuntimeException e) {
+				logSecondLevelFailure(e);
+			}
+		}
+		return digests.size();
+	}
+	
+	/** Remove all tokens from the client's token cache. The second level cache, if any, is
+	 * not cleared.
+	 */
+	public void invalidateAll() {
+		tokenCache.removeAll();
+	}
 
 	private void checkToken(final String token) {
 		if (token == null || token.trim().isEmpty()) {
 			throw new IllegalArgumentException("token must be a non-whitespace string");
 		}
+		// the token is sent in a header, so it must not be able to end the header
+		for (int i = 0; i < token.length(); i++) {
+			if (Character.isISOControl(token.charAt(i))) {
+				throw new IllegalArgumentException("token cannot contain control characters");
+			}
+		}
+	}
+	
+	private static void checkExecutor(final Executor executor) {
+		if (executor == null) {
+			throw new NullPointerException("executor");
+		}
 	}
 	
 	/** Check if usernames are valid accounts in the auth service.
+	 * 
+	 * Usernames that do not exist are cached separately from those that do, and for a
+	 * shorter time by default - see {@link Builder#withMissingUserCache(int, int, long)}.
+	 * 
+	 * Large lists of users are split into multiple requests, up to
+	 * {@link Builder#withUserLookupParallelism(int)} of which run concurrently on the client
+	 * executor - see {@link Builder#withExecutor(Executor)}. A single request is made on the
+	 * calling thread.
 	 * @param users the list of usernames to check. If they contain any invalid characters
 	 * (e.g. anything other than a-z, 0-9, or _, an exception will be thrown.
 	 * @param token any valid auth token.
@@ -210,13 +874,81 @@ public class AuthClient {
 	 */
 	public Map<String, Boolean> isValidUserName(final List<String> users, final String token)
 			throws IOException, AuthException {
-		// theoretically someone could submit hundreds of users and hit the url size limit
-		// don't worry about that for now.
+		return await(isValidUserNameAsync(users, token, DIRECT));
+	}
+	
+	/** Check if usernames are valid accounts in the auth service, failing if the check does
+	 * not complete within a deadline.
+	 * 
+	 * Unless all the usernames are cached, the requests to the auth service are made
+	 * concurrently on the client executor - see {@link Builder#withExecutor(Executor)}.
+	 * The requests are not cancelled if the deadline passes, and their results are cached
+	 * when they complete.
+	 * @param users the list of usernames to check. If they contain any invalid characters
+	 * (e.g. anything other than a-z, 0-9, or _, an exception will be thrown.
+	 * @param token any valid auth token.
+	 * @param timeoutMS the maximum time, in milliseconds, to wait for the check to
+	 * complete.
+	 * @return a mapping of each username to whether it's valid or not.
+	 * @throws AuthTimeoutException if the check does not complete within the deadline.
+	 * @throws IOException if an IOException occurs communicating with the auth service.
+	 * @throws AuthException if an auth exception occurs communicating with the auth service.
+	 */
+	public Map<String, Boolean> isValidUserName(
+			final List<String> users,
+			final String token,
+			final long timeoutMS)
+			throws IOException, AuthException {
+		checkTimeout(timeoutMS);
+		return await(isValidUserNameAsync(users, token, executor), timeoutMS);
+	}
+	
+	private static void checkTimeout(final long timeoutMS) {
+		if (timeoutMS < 1) {
+			throw new IllegalArgumentException("timeoutMS must be > 0");
+		}
+	}
+	
+	/** Check if usernames are valid accounts in the auth service without blocking the calling
+	 * thread, using the client executor - see {@link Builder#withExecutor(Executor)}.
+	 * @param users the list of usernames to check.
+	 * @param token any valid auth token.
+	 * @return a future containing a mapping of each username to whether it's valid or not.
+	 */
+	public CompletableFuture<Map<String, Boolean>> isValidUserNameAsync(
+			final List<String> users,
+			final String token) {
+		return isValidUserNameAsync(users, token, executor);
+	}
+	
+	/** Check if usernames are valid accounts in the auth service without blocking the calling
+	 * thread.
+	 * 
+	 * If all the usernames are cached, either as existing or as not existing, the returned
+	 * future is already complete and the executor is not used.
+	 * 
+	 * Large lists of users are split into multiple requests, up to
+	 * {@link Builder#withUserLookupParallelism(int)} of which run concurrently on the
+	 * executor.
+	 * @param users the list of usernames to check. If they contain any invalid characters
+	 * (e.g. anything other than a-z, 0-9, or _, an exception will be thrown.
+	 * @param token any valid auth token.
+	 * @param executor the executor on which to contact the auth service.
+	 * @return a future containing a mapping of each username to whether it's valid or not.
+	 * The future completes exceptionally with an {@link IOException} or an
+	 * {@link AuthException} under the same circumstances that
+	 * {@link #isValidUserName(List, String)} would throw them.
+	 */
+	public CompletableFuture<Map<String, Boolean>> isValidUserNameAsync(
+			final List<String> users,
+			final String token,
+			final Executor executor) {
 		checkToken(token);
+		checkExecutor(executor);
 		if (users == null || users.isEmpty()) {
 			throw new IllegalArgumentException("users cannot be null or empty");
 		}
-		final List<String> badlist = new LinkedList<String>();
+		final Set<String> badlist = new LinkedHashSet<>();
 		final Map<String, Boolean> result = new HashMap<>();
 		for (String user: users) {
 			if (user == null || user.trim().isEmpty()) {
@@ -232,15 +964,702 @@ public class AuthClient {
 			}
 			if (userCache.hasString(user)) {
 				result.put(user, true);
+			} else if (missingUserCache.hasString(user)) {
+				result.put(user, false);
 			} else {
 				badlist.add(user);
 			}
 		}
-		final URI target = rootURI.resolve("api/V2/users/?list=" + String.join(",", badlist));
-		final Map<String, Object> res = request(target, token.trim());
-		res.keySet().stream().forEach(u -> userCache.putString(u));
-		badlist.stream().forEach(u -> result.put(u, res.containsKey(u)));
-		return result;
+		if (badlist.isEmpty()) {
+			return CompletableFuture.completedFuture(result);
+		}
+		if (secondLevelCache == null) {
+			return requestUsers(chunkUsers(badlist), token.trim(), executor, result);
+		}
+		// the second level cache may be remote, so check it on the executor
+		final CompletableFuture<Set<String>> remaining = new CompletableFuture<>();
+		execute(executor, remaining, () -> getSecondLevelUsers(badlist, result));
+		return remaining.thenCompose(r -> r.isEmpty() ? CompletableFuture.completedFuture(result) :
+				requestUsers(chunkUsers(r), token.trim(), executor, result));
+	}
+	
+	/* Checks the second level cache for users missing from the user caches, adding those found
+	 * to the user caches and the result. Returns the users that were not found.
+	 */
+	private Set<String> getSecondLevelUsers(
+			final Set<String> users,
+			final Map<String, Boolean> result) {
+		final Map<String, CachedUser> cached;
+		try {
+			cached = secondLevelCache.getUsers(users);
+		} catch (IOException | RuntimeException e) {
+			logSecondLevelFailure(e);
+			return users;
+		}
+		final long now = clock.millis();
+		final Set<String> remaining = new LinkedHashSet<>();
+		for (final String u: users) {
+			final CachedUser c = cached.get(u);
+			if (c == null || now > c.getExpires()) {
+				metrics.cacheMiss(Metrics.Cache.SHARED_USER);
+				remaining.add(u);
+			} else {
+				metrics.cacheHit(Metrics.Cache.SHARED_USER);
+				(c.exists() ? userCache : missingUserCache).putString(u, c.getExpires());
+				result.put(u, c.exists());
+			}
+		}
+		return remaining;
+	}
+	
+	/* Splits the users into lists that fit in the URL query string. */
+	private static Queue<List<String>> chunkUsers(final Collection<String> users) {
+		final Queue<List<String>> chunks = new ConcurrentLinkedQueue<>();
+		List<String> chunk = new LinkedList<>();
+		int len = 0;
+		for (final String u: users) {
+			// + 1 for the separator. A single user that's too long gets its own chunk
+			if (!chunk.isEmpty() && len + u.length() + 1 > MAX_USER_LIST_LEN) {
+				chunks.add(chunk);
+				chunk = new LinkedList<>();
+				len = 0;
+			}
+			chunk.add(u);
+			len += u.length() + 1;
+		}
+		chunks.add(chunk);
+		return chunks;
+	}
+	
+	/* Requests the chunks with at most userLookupParallelism requests in progress at once.
+	 * Each worker takes chunks from the queue until it's empty or a request fails.
+	 */
+	private CompletableFuture<Map<String, Boolean>> requestUsers(
+			final Queue<List<String>> chunks,
+			final String token,
+			final Executor executor,
+			final Map<String, Boolean> result) {
+		final CompletableFuture<Map<String, Boolean>> future = new CompletableFuture<>();
+		final Map<String, Boolean> found = new ConcurrentHashMap<>();
+		final int workers = Math.min(userLookupParallelism, chunks.size());
+		final AtomicInteger running = new AtomicInteger(workers);
+		// the synchronous method runs on the calling thread, which can only make one request
+		// at a time
+		final Executor exe = executor == DIRECT && workers > 1 ? this.executor : executor;
+		for (int i = 0; i < workers; i++) {
+			final CompletableFuture<Void> worker = new CompletableFuture<>();
+			execute(exe, worker, () -> {
+				List<String> chunk;
+				while (!future.isDone() && (chunk = chunks.poll()) != null) {
+					requestUsers(chunk, token, found);
+				}
+				return null;
+			});
+			worker.whenComplete((res, err) -> {
+				if (err != null) {
+					future.completeExceptionally(err);
+				} else if (running.decrementAndGet() == 0) {
+					result.putAll(found);
+					future.complete(result);
+				}
+			});
+		}
+		return future;
+	}
+	
+	private void requestUsers(
+			final List<String> users,
+			final String token,
+			final Map<String, Boolean> found)
+			throws IOException, AuthException {
+		final URI target = rootURI.resolve(
+				Endpoint.USERS.getPath() + "/?list=" + String.join(",", users));
+		final UsersResponse res = request(Endpoint.USERS, target, token, UsersResponse::parse);
+		res.users.stream().forEach(u -> userCache.putString(u));
+		for (final String u: users) {
+			final boolean exists = res.users.contains(u);
+			if (!exists) {
+				missingUserCache.putString(u);
+			}
+			found.put(u, exists);
+		}
+		if (secondLevelCache != null) {
+			putSecondLevelUsers(users, res.users);
+		}
+	}
+	
+	// caches the users for the same time as the user caches
+	private void putSecondLevelUsers(final List<String> users, final Set<String> existing) {
+		final long now = clock.millis();
+		final long userExpires = now + userCache.getExpiry() * 1000;
+		final long missingExpires = now + missingUserCache.getExpiry() * 1000;
+		final Map<String, CachedUser> cached = new HashMap<>();
+		for (final String u: users) {
+			final boolean exists = existing.contains(u);
+			cached.put(u, new CachedUser(exists, exists ? userExpires : missingExpires));
+		}
+		try {
+			secondLevelCache.putUsers(cached);
+		} catch (IOException | RuntimeException e) {
+			logSecondLevelFailure(e);
+		}
+	}
+	
+	private interface AuthCall<T> {
+		
+		T call() throws IOException, AuthException;
+	}
+	
+	/* Runs the call on the executor and completes the future with the result. */
+	private static <T> void execute(
+			final Executor executor,
+			final CompletableFuture<T> future,
+			final AuthCall<T> call) {
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(call.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RuntimeException e) { // e.g. RejectedExecutionException
+			future.completeExceptionally(e);
+		}
+	}
+	
+	private static <T> CompletableFuture<T> copy(final CompletableFuture<T> future) {
+		return future.thenApply(r -> r);
+	}
+	
+	/* Waits for a future and unwraps the exception it completed with, if any. */
+	private static <T> T await(final CompletableFuture<T> future)
+			throws IOException, AuthException {
+		return await(future, 0);
+	}
+	
+	/* As above, but throws an AuthTimeoutException if the future doesn't complete within the
+	 * timeout. 0 means no timeout.
+	 */
+	private static <T> T await(final CompletableFuture<T> future, final long timeoutMS)
+			throws IOException, AuthException {
+		try {
+			if (timeoutMS == 0) {
+				return future.get();
+			}
+			return future.get(timeoutMS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new AuthTimeoutException(String.format(
+					"No response from the auth service within %s ms", timeoutMS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the auth service");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof AuthException) {
+				throw (AuthException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause); // can't happen, checked exceptions are above
+		}
+	}
+
+	/** A builder for an {@link AuthClient}. */
+	public static class Builder {
+		
+		/** The default nominal size of the token cache. */
+		public static final int DEFAULT_TOKEN_CACHE_SIZE = 1000;
+		/** The default maximum size of the token cache. */
+		public static final int DEFAULT_TOKEN_CACHE_MAX_SIZE = 2000;
+		
+		/** The default nominal size of the username caches. */
+		public static final int DEFAULT_USER_CACHE_SIZE = 1000;
+		/** The default maximum size of the username caches. */
+		public static final int DEFAULT_USER_CACHE_MAX_SIZE = 2000;
+		
+		/** The default time, in seconds, to cache a username that does not exist. */
+		public static final long DEFAULT_MISSING_USER_EXPIRY_SEC = 5 * 60;
+		
+		/** The default time, in milliseconds, the default transport waits to connect to the
+		 * auth service.
+		 */
+		public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+		
+		/** The default time, in milliseconds, the default transport waits for data from the
+		 * auth service.
+		 */
+		public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+		
+		/** The default maximum number of concurrent requests for a single username lookup. */
+		public static final int DEFAULT_USER_LOOKUP_PARALLELISM = 4;
+		
+		private final URI auth2RootURI;
+		private HttpTransport transport = null; // null means use the default
+		private Integer connectTimeoutMS = null;
+		private Integer readTimeoutMS = null;
+		private Executor executor = ForkJoinPool.commonPool();
+		private Clock clock = Clock.systemUTC();
+		// same sizes as the old auth client
+		private int tokenCacheSize = DEFAULT_TOKEN_CACHE_SIZE;
+		private int tokenCacheMaxSize = DEFAULT_TOKEN_CACHE_MAX_SIZE;
+		private boolean compactTokenCache = false;
+		private SecondLevelCache secondLevelCache = null; // null means disabled
+		private long tokenMaxAgeMS = AbstractTokenCache.DEFAULT_MAX_AGE_MS;
+		private long tokenExpiryMarginMS = AbstractTokenCache.DEFAULT_EXPIRY_MARGIN_MS;
+		private double refreshAheadFraction = 1;
+		private Executor refreshExecutor = null; // null means use the default executor
+		private int rejectedTokenCacheSize = 0; // 0 means disabled
+		private int rejectedTokenCacheMaxSize = 0;
+		private long rejectedTokenExpiryMS = 0;
+		private int userCacheSize = DEFAULT_USER_CACHE_SIZE;
+		private int userCacheMaxSize = DEFAULT_USER_CACHE_MAX_SIZE;
+		private long userExpirySec = StringCache.EXPIRY;
+		private int missingUserCacheSize = DEFAULT_USER_CACHE_SIZE;
+		private int missingUserCacheMaxSize = DEFAULT_USER_CACHE_MAX_SIZE;
+		private long missingUserExpirySec = DEFAULT_MISSING_USER_EXPIRY_SEC;
+		private int userLookupParallelism = DEFAULT_USER_LOOKUP_PARALLELISM;
+		private int maxRetries = 0;
+		private long initialBackoffMS = 0;
+		private long maxBackoffMS = 0;
+		private int breakerFailureThreshold = 0; // 0 means disabled
+		private long breakerOpenMS = 0;
+		private CircuitBreaker.Listener breakerListener = null;
+		private long staleTokenGraceMS = 0; // 0 means disabled
+		private Metrics metrics = Metrics.NOOP;
+		private Path snapshotFile = null; // null means disabled
+		private long snapshotIntervalMS = 0;
+		
+		private Builder(final URI auth2RootURI) {
+			if (auth2RootURI == null) {
+				throw new NullPointerException("auth2RootURI");
+			}
+			this.auth2RootURI = auth2RootURI;
+		}
+		
+		/** Set the HTTP transport the client will use to communicate with the auth service.
+		 * The default is a {@link URLConnectionTransport} with the timeouts set by
+		 * {@link #withTimeouts(int, int)}, which opens a new connection for every request.
+		 * Use a {@link us.kbase.auth.client.transport.PooledTransport} to reuse connections.
+		 * 
+		 * Timeouts for a transport set here must be configured on the transport rather than
+		 * with {@link #withTimeouts(int, int)}.
+		 * @param transport the transport.
+		 * @return this builder.
+		 */
+		public Builder withTransport(final HttpTransport transport) {
+			if (transport == null) {
+				throw new NullPointerException("transport");
+			}
+			this.transport = transport;
+			return this;
+		}
+		
+		/** Set the connect and read timeouts for the default transport. The defaults are
+		 * {@link #DEFAULT_CONNECT_TIMEOUT_MS} and {@link #DEFAULT_READ_TIMEOUT_MS}.
+		 * 
+		 * The read timeout applies to each read from the connection, not the whole request. To
+		 * limit the time taken by a call, use the methods that take a timeout, such as
+		 * {@link AuthClient#validateToken(String, long)}.
+		 * @param connectTimeoutMS the time, in milliseconds, to wait for a connection to the
+		 * auth service to be established. 0 means no timeout.
+		 * @param readTimeoutMS the time, in milliseconds, to wait for data from the auth
+		 * service. 0 means no timeout.
+		 * @return this builder.
+		 */
+		public Builder withTimeouts(final int connectTimeoutMS, final int readTimeoutMS) {
+			// validate now rather than at build time
+			new URLConnectionTransport(connectTimeoutMS, readTimeoutMS);
+			this.connectTimeoutMS = connectTimeoutMS;
+			this.readTimeoutMS = readTimeoutMS;
+			return this;
+		}
+		
+		/** Set the executor used by the asynchronous methods that do not take an executor
+		 * and for background tasks. The default is the {@link ForkJoinPool#commonPool()}.
+		 * Since requests to the auth service block while waiting for the response,
+		 * applications that make many concurrent requests should provide a dedicated
+		 * executor.
+		 * @param executor the executor.
+		 * @return this builder.
+		 */
+		public Builder withExecutor(final Executor executor) {
+			checkExecutor(executor);
+			this.executor = executor;
+			return this;
+		}
+		
+		/** Set the clock used to determine the age of cached tokens and user names. The default
+		 * is the system UTC clock. This is generally only useful for testing.
+		 * @param clock the clock.
+		 * @return this builder.
+		 */
+		public Builder withClock(final Clock clock) {
+			if (clock == null) {
+				throw new NullPointerException("clock");
+			}
+			this.clock = clock;
+			return this;
+		}
+		
+		/** Set the size of the cache of valid tokens. The defaults are
+		 * {@link #DEFAULT_TOKEN_CACHE_SIZE} and {@link #DEFAULT_TOKEN_CACHE_MAX_SIZE}.
+		 * When the cache exceeds the maximum size, the oldest tokens are evicted until the
+		 * cache is at the nominal size.
+		 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize.
+		 * @param maxsize the maximum size of the cache in tokens.
+		 * @return this builder.
+		 */
+		public Builder withTokenCache(final int size, final int maxsize) {
+			checkCacheSize(size, maxsize);
+			this.tokenCacheSize = size;
+			this.tokenCacheMaxSize = maxsize;
+			return this;
+		}
+		
+		/** Use a {@link CompactTokenCache} for the cache of valid tokens. The compact cache
+		 * uses much less memory per token than the default cache, which is useful for caches of
+		 * millions of tokens, but allocates its table for the maximum size of the cache when the
+		 * client is created. The maximum size must be no greater than
+		 * {@link CompactTokenCache#MAX_SIZE}.
+		 * @param compact true to use the compact cache.
+		 * @return this builder.
+		 */
+		public Builder withCompactTokenCache(final boolean compact) {
+			this.compactTokenCache = compact;
+			return this;
+		}
+		
+		/** Set a cache, usually shared with other clients, to check for tokens and user names
+		 * that are not in the client's caches before contacting the auth service. Results from
+		 * the auth service are added to the second level cache as well as the client's caches,
+		 * and are cached for the same time. For example, a {@link SharedTokenCache} shares
+		 * valid tokens with the other processes on a host. The default is no second level
+		 * cache.
+		 * 
+		 * Lookups in the second level cache are reported to the metrics as
+		 * {@link Metrics.Cache#SHARED_TOKEN} and {@link Metrics.Cache#SHARED_USER}. Errors from
+		 * the cache are logged and otherwise ignored.
+		 * @param cache the second level cache, or null for no second level cache.
+		 * @return this builder.
+		 */
+		public Builder withSecondLevelCache(final SecondLevelCache cache) {
+			this.secondLevelCache = cache;
+			return this;
+		}
+		
+		/** Set the maximum time a valid token is cached. Tokens are also removed from the cache
+		 * shortly before they expire, if that is sooner - see
+		 * {@link #withTokenExpiryMargin(long)}. The default is
+		 * {@link AbstractTokenCache#DEFAULT_MAX_AGE_MS}.
+		 * 
+		 * A token that is revoked while it is cached will continue to be reported as valid
+		 * until it is removed from the cache.
+		 * @param maxAgeMS the maximum age of a token in the cache in milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withTokenCacheMaxAge(final long maxAgeMS) {
+			if (maxAgeMS < 1) {
+				throw new IllegalArgumentException("maxAgeMS must be > 0");
+			}
+			this.tokenMaxAgeMS = maxAgeMS;
+			return this;
+		}
+		
+		/** Set how long before the expiration time reported by the auth service a token is
+		 * removed from the cache. The default is
+		 * {@link AbstractTokenCache#DEFAULT_EXPIRY_MARGIN_MS}.
+		 * @param expiryMarginMS the margin in milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withTokenExpiryMargin(final long expiryMarginMS) {
+			if (expiryMarginMS < 0) {
+				throw new IllegalArgumentException("expiryMarginMS must be >= 0");
+			}
+			this.tokenExpiryMarginMS = expiryMarginMS;
+			return this;
+		}
+		
+		/** Revalidate cached tokens in the background on the client executor - see
+		 * {@link #withExecutor(Executor)} and {@link #withTokenRefreshAhead(double, Executor)}.
+		 * @param fraction the fraction of a token's cache lifetime after which it is
+		 * revalidated. Must be &gt; 0 and &lt;= 1, where 1 disables refreshing.
+		 * @return this builder.
+		 */
+		public Builder withTokenRefreshAhead(final double fraction) {
+			checkFraction(fraction);
+			this.refreshAheadFraction = fraction;
+			this.refreshExecutor = null;
+			return this;
+		}
+		
+		/** Revalidate cached tokens in the background once they have been cached for a
+		 * fraction of their cache lifetime. The first time a cached token is retrieved after
+		 * that point it is returned immediately, and the token is revalidated on the executor.
+		 * If the auth service reports the token is no longer valid, it is removed from the
+		 * cache. Frequently used tokens therefore never expire from the cache while they are
+		 * valid. Disabled by default.
+		 * @param fraction the fraction of a token's cache lifetime after which it is
+		 * revalidated. Must be &gt; 0 and &lt;= 1, where 1 disables refreshing.
+		 * @param executor the executor on which to revalidate tokens.
+		 * @return this builder.
+		 */
+		public Builder withTokenRefreshAhead(final double fraction, final Executor executor) {
+			checkFraction(fraction);
+			checkExecutor(executor);
+			this.refreshAheadFraction = fraction;
+			this.refreshExecutor = executor;
+			return this;
+		}
+		
+		private static void checkFraction(final double fraction) {
+			if (!(fraction > 0 && fraction <= 1)) {
+				throw new IllegalArgumentException("fraction must be > 0 and <= 1");
+			}
+		}
+		
+		/** Cache tokens the auth service rejects as invalid, so that repeated validation of a
+		 * rejected token fails without contacting the auth service. Other errors, such as
+		 * network errors, are not cached. Disabled by default.
+		 * 
+		 * Keep the expiry time short, as a rejected token will continue to be rejected for
+		 * that time even if it becomes valid.
+		 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize.
+		 * @param maxsize the maximum size of the cache in tokens.
+		 * @param expiryMS the time, in milliseconds, to cache a rejection.
+		 * @return this builder.
+		 */
+		public Builder withRejectedTokenCache(
+				final int size,
+				final int maxsize,
+				final long expiryMS) {
+			checkCacheSize(size, maxsize);
+			if (expiryMS < 1) {
+				throw new IllegalArgumentException("expiryMS must be > 0");
+			}
+			this.rejectedTokenCacheSize = size;
+			this.rejectedTokenCacheMaxSize = maxsize;
+			this.rejectedTokenExpiryMS = expiryMS;
+			return this;
+		}
+		
+		/** Set the size of the cache of existing usernames and how long they are cached.
+		 * The defaults are {@link #DEFAULT_USER_CACHE_SIZE},
+		 * {@link #DEFAULT_USER_CACHE_MAX_SIZE}, and {@link StringCache#EXPIRY}.
+		 * @param size the nominal size of the cache in usernames, which must be &lt; maxsize.
+		 * @param maxsize the maximum size of the cache in usernames.
+		 * @param expirySec the time, in seconds, to cache a username.
+		 * @return this builder.
+		 */
+		public Builder withUserCache(final int size, final int maxsize, final long expirySec) {
+			checkCacheSize(size, maxsize);
+			checkExpirySec(expirySec);
+			this.userCacheSize = size;
+			this.userCacheMaxSize = maxsize;
+			this.userExpirySec = expirySec;
+			return this;
+		}
+		
+		/** Set the size of the cache of usernames that the auth service reported do not exist
+		 * and how long they are cached. The defaults are {@link #DEFAULT_USER_CACHE_SIZE},
+		 * {@link #DEFAULT_USER_CACHE_MAX_SIZE}, and {@link #DEFAULT_MISSING_USER_EXPIRY_SEC}.
+		 * 
+		 * A username that is created while it is cached as not existing will continue to be
+		 * reported as not existing until the cache entry expires.
+		 * @param size the nominal size of the cache in usernames, which must be &lt; maxsize.
+		 * @param maxsize the maximum size of the cache in usernames.
+		 * @param expirySec the time, in seconds, to cache a username.
+		 * @return this builder.
+		 */
+		public Builder withMissingUserCache(
+				final int size,
+				final int maxsize,
+				final long expirySec) {
+			checkCacheSize(size, maxsize);
+			checkExpirySec(expirySec);
+			this.missingUserCacheSize = size;
+			this.missingUserCacheMaxSize = maxsize;
+			this.missingUserExpirySec = expirySec;
+			return this;
+		}
+		
+		// same checks as the caches, but fail early
+		private static void checkCacheSize(final int size, final int maxsize) {
+			if (size < 1 || maxsize < 1) {
+				throw new IllegalArgumentException("size and maxsize must be > 0");
+			}
+			if (size >= maxsize) {
+				throw new IllegalArgumentException("size must be < maxsize");
+			}
+		}
+		
+		private static void checkExpirySec(final long expirySec) {
+			if (expirySec < 1) {
+				throw new IllegalArgumentException("seconds must be > 0");
+			}
+		}
+		
+		/** Set the maximum number of concurrent requests made to the auth service when
+		 * looking up a list of usernames too large for a single request. The default is
+		 * {@link #DEFAULT_USER_LOOKUP_PARALLELISM}.
+		 * @param parallelism the maximum number of concurrent requests.
+		 * @return this builder.
+		 */
+		public Builder withUserLookupParallelism(final int parallelism) {
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("parallelism must be > 0");
+			}
+			this.userLookupParallelism = parallelism;
+			return this;
+		}
+		
+		/** Retry requests that fail because the auth service is unavailable - that is, requests
+		 * that fail with a network error, including a read timeout, or a 5xx response. A
+		 * {@link PoolExhaustedException} is not retried, as the request was never sent. All
+		 * requests to the auth service are idempotent GET requests. By default requests are
+		 * not retried.
+		 * 
+		 * Before each retry the client waits a random time between zero and an exponentially
+		 * increasing backoff, starting at the initial backoff and doubling for each retry up to
+		 * the maximum. For methods that take a deadline, the deadline includes any retries.
+		 * @param maxRetries the maximum number of retries for a request.
+		 * @param initialBackoffMS the backoff before the first retry in milliseconds.
+		 * @param maxBackoffMS the maximum backoff in milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withRetries(
+				final int maxRetries,
+				final long initialBackoffMS,
+				final long maxBackoffMS) {
+			if (maxRetries < 0) {
+				throw new IllegalArgumentException("maxRetries must be >= 0");
+			}
+			if (initialBackoffMS < 1) {
+				throw new IllegalArgumentException("initialBackoffMS must be > 0");
+			}
+			if (maxBackoffMS < initialBackoffMS) {
+				throw new IllegalArgumentException("maxBackoffMS must be >= initialBackoffMS");
+			}
+			this.maxRetries = maxRetries;
+			this.initialBackoffMS = initialBackoffMS;
+			this.maxBackoffMS = maxBackoffMS;
+			return this;
+		}
+		
+		/** Enable a {@link CircuitBreaker} for requests to the auth service. After the given
+		 * number of consecutive requests, including retries, fail because the auth service is
+		 * unavailable, requests fail immediately with a {@link CircuitBreakerOpenException}
+		 * until the open period has passed. By default there is no circuit breaker.
+		 * @param failureThreshold the number of consecutive failures that opens the breaker.
+		 * @param openMS how long the breaker stays open before allowing a trial request, in
+		 * milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withCircuitBreaker(final int failureThreshold, final long openMS) {
+			return withCircuitBreaker(failureThreshold, openMS, null);
+		}
+		
+		/** Enable a {@link CircuitBreaker} for requests to the auth service and listen for
+		 * changes in its state. See {@link #withCircuitBreaker(int, long)}.
+		 * @param failureThreshold the number of consecutive failures that opens the breaker.
+		 * @param openMS how long the breaker stays open before allowing a trial request, in
+		 * milliseconds.
+		 * @param listener a listener for breaker state changes, or null for none.
+		 * @return this builder.
+		 */
+		public Builder withCircuitBreaker(
+				final int failureThreshold,
+				final long openMS,
+				final CircuitBreaker.Listener listener) {
+			if (failureThreshold < 1) {
+				throw new IllegalArgumentException("failureThreshold must be > 0");
+			}
+			if (openMS < 1) {
+				throw new IllegalArgumentException("openMS must be > 0");
+			}
+			this.breakerFailureThreshold = failureThreshold;
+			this.breakerOpenMS = openMS;
+			this.breakerListener = listener;
+			return this;
+		}
+		
+		/** While the circuit breaker is open, return tokens from
+		 * {@link AuthClient#validateToken(String)} and its variants whose cache lifetime ended
+		 * no more than the grace period ago, rather than failing. Tokens are never returned
+		 * after their expiration time. Requires a circuit breaker. By default stale tokens are
+		 * not returned.
+		 * @param graceMS the grace period in milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withStaleTokenGrace(final long graceMS) {
+			if (graceMS < 1) {
+				throw new IllegalArgumentException("graceMS must be > 0");
+			}
+			this.staleTokenGraceMS = graceMS;
+			return this;
+		}
+		
+		/** Set the metrics to which the client and its caches report cache hits, misses,
+		 * expiries and evictions, and request latencies, response sizes and errors. By
+		 * default metrics are discarded.
+		 * @param metrics the metrics, for example an
+		 * {@link us.kbase.auth.client.metrics.InMemoryMetrics}.
+		 * @return this builder.
+		 */
+		public Builder withMetrics(final Metrics metrics) {
+			if (metrics == null) {
+				throw new NullPointerException("metrics");
+			}
+			this.metrics = metrics;
+			return this;
+		}
+		
+		/** Enable warm start cache snapshots. When the client is built, it loads the token and
+		 * user name caches from the snapshot file if the file exists, and then periodically
+		 * writes the caches to the file. The snapshot contains token digests rather than
+		 * tokens. Loaded tokens are treated as valid, so the file must only be writable by
+		 * trusted processes. A snapshot that cannot be loaded is logged and ignored. See
+		 * {@link CacheSnapshot} and {@link AuthClient#writeCacheSnapshot()}.
+		 * @param file the snapshot file.
+		 * @param intervalMS the time between snapshots in milliseconds.
+		 * @return this builder.
+		 */
+		public Builder withCacheSnapshot(final Path file, final long intervalMS) {
+			if (file == null) {
+				throw new NullPointerException("file");
+			}
+			if (intervalMS < 1) {
+				throw new IllegalArgumentException("intervalMS must be > 0");
+			}
+			this.snapshotFile = file;
+			this.snapshotIntervalMS = intervalMS;
+			return this;
+		}
+		
+		/** Build the client.
+		 * @return the client.
+		 * @throws IOException if an IOException occurs communicating with the auth service.
+		 * @throws AuthException if an auth exception occurs communicating with the auth
+		 * service.
+		 */
+		public AuthClient build() throws IOException, AuthException {
+			if (transport != null && connectTimeoutMS != null) {
+				throw new IllegalStateException(
+						"Timeouts cannot be set when a transport is provided");
+			}
+			if (staleTokenGraceMS > 0 && breakerFailureThreshold < 1) {
+				throw new IllegalStateException(
+						"A stale token grace period requires a circuit breaker");
+			}
+			return new AuthClient(this);
+		}
 	}
 
 }
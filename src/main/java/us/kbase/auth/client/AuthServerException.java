@@ -0,0 +1,42 @@
+package us.kbase.auth.client;
+
+import us.kbase.auth.AuthException;
+
+/** An exception thrown when the auth server returns an error. */
+public class AuthServerException extends AuthException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** The auth server application error code for an invalid token. */
+	public static final int INVALID_TOKEN = 10020;
+	
+	private final int httpCode;
+	private final int appCode;
+	
+	/** Create the exception.
+	 * @param message the exception message.
+	 * @param httpCode the HTTP code returned by the server, or -1 if not known.
+	 * @param appCode the application error code returned by the server, or -1 if not known.
+	 */
+	public AuthServerException(final String message, final int httpCode, final int appCode) {
+		super(message);
+		this.httpCode = httpCode;
+		this.appCode = appCode;
+	}
+	
+	/** Get the HTTP code returned by the server.
+	 * @return the HTTP code, or -1 if not known.
+	 */
+	public int getHTTPCode() {
+		return httpCode;
+	}
+	
+	/** Get the application error code returned by the server, for example
+	 * {@link #INVALID_TOKEN}.
+	 * @return the application error code, or -1 if not known.
+	 */
+	public int getAppCode() {
+		return appCode;
+	}
+
+}
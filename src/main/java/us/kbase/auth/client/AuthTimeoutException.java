@@ -0,0 +1,18 @@
+package us.kbase.auth.client;
+
+import java.io.InterruptedIOException;
+
+/** An exception thrown when a call to the auth service does not complete before its
+ * deadline.
+ */
+public class AuthTimeoutException extends InterruptedIOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** Create the exception.
+	 * @param message the exception message.
+	 */
+	public AuthTimeoutException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,78 @@
+package us.kbase.auth.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/* Retains the first bytes read from a stream so they can be included in an error message
+ * if the stream contents turn out to be unparseable.
+ */
+class CapturingInputStream extends FilterInputStream {
+	
+	private final byte[] captured;
+	private int count = 0;
+	private long total = 0;
+	
+	CapturingInputStream(final InputStream in, final int limit) {
+		super(in);
+		captured = new byte[limit];
+	}
+	
+	@Override
+	public int read() throws IOException {
+		final int b = super.read();
+		if (b != -1) {
+			total++;
+			if (count < captured.length) {
+				captured[count++] = (byte) b;
+			}
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		final int r = super.read(b, off, len);
+		if (r > 0) {
+			total += r;
+		}
+		if (r > 0 && count < captured.length) {
+			final int c = Math.min(r, captured.length - count);
+			System.arraycopy(b, off, captured, count, c);
+			count += c;
+		}
+		return r;
+	}
+	
+	@Override
+	public long skip(final long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		// make sure skipped bytes are captured
+		final int r = read(new byte[(int) Math.min(n, 8192)]);
+		return r < 0 ? 0 : r;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	/* Get the total number of bytes read from the stream. */
+	long getBytesRead() {
+		return total;
+	}
+	
+	/* Get the captured text, reading from the stream until the capture limit is reached or
+	 * the stream is exhausted.
+	 */
+	String getCapturedText() throws IOException {
+		final byte[] buf = new byte[captured.length];
+		while (count < captured.length && read(buf, 0, captured.length - count) != -1) {
+			// keep reading
+		}
+		return new String(captured, 0, count, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,131 @@
+package us.kbase.auth.client;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.LoggerFactory;
+
+/** A circuit breaker for requests to the auth service.
+ * 
+ * The breaker starts closed. After a number of consecutive failed requests it opens, and
+ * requests fail immediately with a {@link CircuitBreakerOpenException}. Once the breaker has
+ * been open for a period of time it becomes half open and allows a single trial request. If
+ * the trial succeeds the breaker closes, and if it fails the breaker opens again.
+ * 
+ * A failure is a network error or a 5xx response. Other error responses, such as an invalid
+ * token, mean the auth service is available and are considered successes. A request that is
+ * never sent, because a {@link us.kbase.auth.client.transport.PoolExhaustedException} was
+ * thrown, is neither, as is a request that fails with a runtime exception. If such a request
+ * was the trial request, the next request is the trial.
+ * 
+ * This class is thread safe.
+ */
+public final class CircuitBreaker {
+	
+	/** The state of a circuit breaker. */
+	public enum State {
+		/** Requests are allowed. */
+		CLOSED,
+		/** Requests fail immediately. */
+		OPEN,
+		/** A single trial request is allowed. */
+		HALF_OPEN;
+	}
+	
+	/** Listens for circuit breaker state changes. */
+	public interface Listener {
+		
+		/** Called when the state of the breaker changes, on the thread that caused the
+		 * change. Should not block.
+		 * @param from the prior state.
+		 * @param to the new state.
+		 */
+		void stateChanged(State from, State to);
+	}
+	
+	private final int failureThreshold;
+	private final long openMS;
+	private final Clock clock;
+	private final Listener listener;
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long openedAt = 0;
+	
+	CircuitBreaker(
+			final int failureThreshold,
+			final long openMS,
+			final Clock clock,
+			final Listener listener) {
+		this.failureThreshold = failureThreshold;
+		this.openMS = openMS;
+		this.clock = clock;
+		this.listener = listener;
+	}
+	
+	/** Get the current state of the breaker.
+	 * @return the state.
+	 */
+	public State getState() {
+		return state.get();
+	}
+	
+	/* Call before making a request. Returns true if the request is the trial request. */
+	boolean acquire() throws CircuitBreakerOpenException {
+		final State s = state.get();
+		if (s == State.CLOSED) {
+			return false;
+		}
+		if (s == State.OPEN && clock.millis() - openedAt >= openMS
+				&& transition(State.OPEN, State.HALF_OPEN)) {
+			return true;
+		}
+		throw new CircuitBreakerOpenException(
+				"The circuit breaker is open, not contacting the auth service");
+	}
+	
+	/* Call when the auth service responded. */
+	void success() {
+		failures.set(0);
+		transition(State.HALF_OPEN, State.CLOSED);
+	}
+	
+	/* Call when a request failed because the auth service is unavailable. */
+	void failure() {
+		if (state.get() == State.HALF_OPEN) {
+			open(State.HALF_OPEN);
+		} else if (failures.incrementAndGet() >= failureThreshold) {
+			open(State.CLOSED);
+		}
+	}
+	
+	/* Call when the trial request got no result, so that the next request is the trial. */
+	void cancelTrial() {
+		transition(State.HALF_OPEN, State.OPEN);
+	}
+	
+	private void open(final State from) {
+		// may be set even if the transition fails, but then the breaker is already open
+		// and the trial request is delayed slightly
+		openedAt = clock.millis();
+		transition(from, State.OPEN);
+	}
+	
+	private boolean transition(final State from, final State to) {
+		if (!state.compareAndSet(from, to)) {
+			return false;
+		}
+		if (to == State.CLOSED) {
+			failures.set(0);
+		}
+		if (listener != null) {
+			try {
+				listener.stateChanged(from, to);
+			} catch (RuntimeException e) {
+				LoggerFactory.getLogger(getClass()).warn(
+						"Circuit breaker listener threw an exception", e);
+			}
+		}
+		return true;
+	}
+}
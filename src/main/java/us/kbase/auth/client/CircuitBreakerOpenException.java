@@ -0,0 +1,18 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+
+/** An exception thrown when a request to the auth service is not made because the client's
+ * circuit breaker is open.
+ */
+public class CircuitBreakerOpenException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** Create the exception.
+	 * @param message the exception message.
+	 */
+	public CircuitBreakerOpenException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,54 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/* An error response from the auth server. */
+final class ErrorResponse {
+	
+	boolean hasError = false;
+	String message = null;
+	int httpCode = -1;
+	int appCode = -1;
+	
+	private ErrorResponse() {}
+	
+	static ErrorResponse parse(final JsonParser p) throws IOException {
+		final ErrorResponse r = new ErrorResponse();
+		ResponseParser.forEachField(p, (name, parser) -> {
+			if (name.equals("error") && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+				r.hasError = true;
+				ResponseParser.forEachField(parser, (ename, eparser) -> {
+					switch (ename) {
+						case "message":
+							// the message should always be a string, but be lenient
+							r.message = eparser.getCurrentToken().isScalarValue() ?
+									eparser.getText() : null;
+							return true;
+						case "httpcode":
+							r.httpCode = intValue(eparser);
+							return true;
+						case "appcode":
+							r.appCode = intValue(eparser);
+							return true;
+						default:
+							return false;
+					}
+				});
+				return true;
+			}
+			return false;
+		});
+		return r;
+	}
+	
+	private static int intValue(final JsonParser p) throws IOException {
+		if (p.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+			return p.getIntValue();
+		}
+		p.skipChildren();
+		return -1;
+	}
+}
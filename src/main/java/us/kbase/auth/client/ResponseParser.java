@@ -0,0 +1,50 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/* Decodes a JSON object in an auth server response into a typed object. */
+interface ResponseParser<T> {
+	
+	/* Parse the object. The parser is positioned on the START_OBJECT token, and must be
+	 * positioned on the matching END_OBJECT token when the method returns.
+	 */
+	T parse(JsonParser p) throws IOException;
+	
+	interface FieldHandler {
+		
+		/* Handle a field value. The parser is positioned on the first token of the value.
+		 * Values that are not handled must be skipped. Return true if the value was handled.
+		 */
+		boolean field(String name, JsonParser p) throws IOException;
+	}
+	
+	/* Iterate through the fields of an object, skipping any unhandled values without
+	 * materializing them.
+	 */
+	static void forEachField(final JsonParser p, final FieldHandler handler)
+			throws IOException {
+		JsonToken t;
+		while ((t = p.nextToken()) == JsonToken.FIELD_NAME) {
+			final String name = p.getCurrentName();
+			p.nextToken();
+			if (!handler.field(name, p)) {
+				p.skipChildren();
+			}
+		}
+		if (t != JsonToken.END_OBJECT) { // can't happen as far as I can tell
+			throw new IOException("Expected end of JSON object, got " + t);
+		}
+	}
+	
+	/* Get the current value if it's a string, or null otherwise. Skips the value. */
+	static String stringValue(final JsonParser p) throws IOException {
+		if (p.getCurrentToken() == JsonToken.VALUE_STRING) {
+			return p.getText();
+		}
+		p.skipChildren();
+		return null;
+	}
+}
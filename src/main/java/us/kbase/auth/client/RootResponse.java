@@ -0,0 +1,31 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+/* The auth server root document. */
+final class RootResponse {
+	
+	String serviceName = null;
+	String version = null;
+	
+	private RootResponse() {}
+	
+	static RootResponse parse(final JsonParser p) throws IOException {
+		final RootResponse r = new RootResponse();
+		ResponseParser.forEachField(p, (name, parser) -> {
+			switch (name) {
+				case "servicename":
+					r.serviceName = ResponseParser.stringValue(parser);
+					return true;
+				case "version":
+					r.version = ResponseParser.stringValue(parser);
+					return true;
+				default:
+					return false;
+			}
+		});
+		return r;
+	}
+}
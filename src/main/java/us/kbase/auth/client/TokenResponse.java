@@ -0,0 +1,32 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/* The response from the auth server's token endpoint. */
+final class TokenResponse {
+	
+	String user = null;
+	// the token expiration time in epoch milliseconds, or null if not provided
+	Long expires = null;
+	
+	private TokenResponse() {}
+	
+	static TokenResponse parse(final JsonParser p) throws IOException {
+		final TokenResponse r = new TokenResponse();
+		ResponseParser.forEachField(p, (name, parser) -> {
+			if (name.equals("user")) {
+				r.user = ResponseParser.stringValue(parser);
+				return true;
+			}
+			if (name.equals("expires") && parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+				r.expires = parser.getLongValue();
+				return true;
+			}
+			return false;
+		});
+		return r;
+	}
+}
@@ -0,0 +1,26 @@
+package us.kbase.auth.client;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+/* The response from the auth server's users endpoint. Only the user names are retained -
+ * the display names are skipped.
+ */
+final class UsersResponse {
+	
+	final Set<String> users = new HashSet<>();
+	
+	private UsersResponse() {}
+	
+	static UsersResponse parse(final JsonParser p) throws IOException {
+		final UsersResponse r = new UsersResponse();
+		ResponseParser.forEachField(p, (name, parser) -> {
+			r.users.add(name);
+			return false;
+		});
+		return r;
+	}
+}
@@ -0,0 +1,301 @@
+package us.kbase.auth.client.cache;
+
+import java.time.Clock;
+import java.util.Collection;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.metrics.Metrics;
+
+/**
+ * Caches tokens to avoid network queries to the token provider. Holds the configuration shared
+ * by the cache implementations, {@link TokenCache} and {@link CompactTokenCache}.
+ * 
+ * Tokens are cached for a maximum age, 5 minutes by default, or until shortly before the token
+ * expires if the expiration time is provided and is sooner.
+ * 
+ * Optionally, a token that has been cached for more than a fraction of its cache lifetime may
+ * be refreshed ahead of its expiry - see {@link #getToken(String, Refresher)}.
+ * 
+ * Tokens are stored until the size of the cache is greater than the maximum
+ * allowed size. Tokens are then ordered by the time they were added and the oldest
+ * tokens are discarded to return the cache to its nominal size.
+ * 
+ * Implementations are thread safe.
+ */
+public abstract class AbstractTokenCache {
+	
+	/** The default maximum time, in milliseconds, a token is cached. */
+	public static final long DEFAULT_MAX_AGE_MS = 5 * 60 * 1000; // 5 min
+	
+	/** The default time, in milliseconds, before a token expires that it is removed from
+	 * the cache.
+	 */
+	public static final long DEFAULT_EXPIRY_MARGIN_MS = 60 * 1000; // 1 min
+	
+	final int size;
+	final int maxsize;
+	final Clock clock;
+	private volatile long maxAgeMS = DEFAULT_MAX_AGE_MS;
+	private volatile long expiryMarginMS = DEFAULT_EXPIRY_MARGIN_MS;
+	private volatile double refreshAheadFraction = 1;
+	volatile Metrics metrics = Metrics.NOOP;
+	volatile Metrics.Cache metricsName = Metrics.Cache.TOKEN;
+	
+	/** Refreshes a cached token in the background. */
+	public interface Refresher {
+		
+		/** Start refreshing a token. The refresher should add the token to the cache again
+		 * if it is still valid, or remove it if not. This method is called on the thread
+		 * that retrieved the token from the cache and so should not block.
+		 * @param token the token to refresh.
+		 */
+		void refresh(AuthToken token);
+	}
+	
+	// the cache implementations are all in this package
+	AbstractTokenCache(final int size, final int maxsize, final Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		if (size < 1 || maxsize < 1) {
+			throw new IllegalArgumentException("size and maxsize must be > 0");
+		}
+		if (size >= maxsize) {
+			throw new IllegalArgumentException("size must be < maxsize");
+		}
+		this.size = size;
+		this.maxsize = maxsize;
+		this.clock = clock;
+	}
+	
+	/** Set the maximum time a token is cached. Applies to tokens added after the call.
+	 * @param maxAgeMS the maximum age of a token in the cache in milliseconds.
+	 */
+	public void setMaxAgeMS(final long maxAgeMS) {
+		if (maxAgeMS < 1) {
+			throw new IllegalArgumentException("maxAgeMS must be > 0");
+		}
+		this.maxAgeMS = maxAgeMS;
+	}
+	
+	/** Get the maximum time a token is cached.
+	 * @return the maximum age of a token in the cache in milliseconds.
+	 */
+	public long getMaxAgeMS() {
+		return maxAgeMS;
+	}
+	
+	/** Set how long before a token's expiration time it is removed from the cache, to allow
+	 * for clock differences and the time taken to use the token. Applies to tokens added after
+	 * the call.
+	 * @param expiryMarginMS the margin in milliseconds.
+	 */
+	public void setExpiryMarginMS(final long expiryMarginMS) {
+		if (expiryMarginMS < 0) {
+			throw new IllegalArgumentException("expiryMarginMS must be >= 0");
+		}
+		this.expiryMarginMS = expiryMarginMS;
+	}
+	
+	/** Get how long before a token's expiration time it is removed from the cache.
+	 * @return the margin in milliseconds.
+	 */
+	public long getExpiryMarginMS() {
+		return expiryMarginMS;
+	}
+	
+	/** Set the fraction of a token's cache lifetime after which it is refreshed by
+	 * {@link #getToken(String, Refresher)}. Applies to tokens added after the call.
+	 * The default, 1, disables refreshing.
+	 * @param fraction the fraction of the cache lifetime, which must be &gt; 0 and &lt;= 1.
+	 */
+	public void setRefreshAheadFraction(final double fraction) {
+		if (!(fraction > 0 && fraction <= 1)) {
+			throw new IllegalArgumentException("fraction must be > 0 and <= 1");
+		}
+		this.refreshAheadFraction = fraction;
+	}
+	
+	/** Get the fraction of a token's cache lifetime after which it is refreshed.
+	 * @return the fraction.
+	 */
+	public double getRefreshAheadFraction() {
+		return refreshAheadFraction;
+	}
+	
+	/** Set the metrics to which the cache reports hits, misses, expiries and evictions.
+	 * By default metrics are discarded.
+	 * @param metrics the metrics.
+	 * @param cache the name under which the cache reports metrics.
+	 */
+	public void setMetrics(final Metrics metrics, final Metrics.Cache cache) {
+		if (metrics == null) {
+			throw new NullPointerException("metrics");
+		}
+		if (cache == null) {
+			throw new NullPointerException("cache");
+		}
+		this.metricsName = cache;
+		this.metrics = metrics;
+	}
+	
+	/** Get a token from the cache given its string. Returns null if the
+	 * cache does not contain the token.
+	 * @param token the token string.
+	 * @return an AuthToken.
+	 */
+	public AuthToken getToken(final String token) {
+		return getToken(token, null);
+	}
+	
+	/** Get a token from the cache given its string, refreshing it if it's due for refresh.
+	 * Returns null if the cache does not contain the token.
+	 * 
+	 * If the token has been cached for longer than the refresh ahead fraction of its cache
+	 * lifetime, the refresher is called once for the cache entry and the token is returned.
+	 * If the refresh fails the token remains in the cache until it expires, but is not
+	 * refreshed again.
+	 * @param token the token string.
+	 * @param refresher the refresher, or null to never refresh the token.
+	 * @return an AuthToken.
+	 */
+	public abstract AuthToken getToken(String token, Refresher refresher);
+	
+	/** Get a token from the cache given its string, including a token whose cache lifetime has
+	 * ended no more than a grace period ago. Used to continue serving recently validated
+	 * tokens when the token provider is unavailable. A token is never returned after the
+	 * expiration time provided when it was added. Returns null if the cache does not contain
+	 * the token. Lookups are not reported to the cache's metrics.
+	 * @param token the token string.
+	 * @param graceMS the grace period in milliseconds.
+	 * @return an AuthToken.
+	 */
+	public abstract AuthToken getStaleToken(String token, long graceMS);
+	
+	/** Remove a token from the cache.
+	 * @param token the token string.
+	 */
+	public abstract void removeToken(String token);
+	
+	/** Remove all of a user's tokens from the cache. Takes time proportional to the number of
+	 * tokens cached for the user. Tokens added concurrently with the call may not be removed.
+	 * @param user the user name.
+	 * @return the digests of the removed tokens.
+	 */
+	public abstract Collection<TokenDigest> removeUser(String user);
+	
+	/** Remove all tokens from the cache. Tokens added concurrently with the call may not be
+	 * removed.
+	 */
+	public abstract void removeAll();
+	
+	/**
+	 * Add a token to the cache. This method assumes the token is valid.
+	 * @param token the token to add
+	 */
+	public void putValidToken(final AuthToken token) {
+		putValidToken(token, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Add a token to the cache. This method assumes the token is valid.
+	 * 
+	 * The token is cached for the maximum age or until the expiry margin before the token
+	 * expires, whichever is sooner. If the token expires within the margin it is not cached.
+	 * @param token the token to add
+	 * @param expires the time the token expires in milliseconds since the epoch.
+	 */
+	public abstract void putValidToken(AuthToken token, long expires);
+	
+	/** Add a token retrieved from another cache, such as a {@link SecondLevelCache}. This
+	 * method assumes the token is valid. The token is cached until the given time, or for the
+	 * maximum age or until the expiry margin before the token expires if either is sooner.
+	 * @param token the token to add.
+	 * @param expires the time the token's entry in the other cache expires in milliseconds
+	 * since the epoch.
+	 * @param tokenExpires the time the token expires in milliseconds since the epoch.
+	 * @return true if the token was added, or false if its cache lifetime has ended.
+	 */
+	public boolean putCachedToken(
+			final AuthToken token,
+			final long expires,
+			final long tokenExpires) {
+		if (token == null) {
+			throw new NullPointerException("token cannot be null");
+		}
+		final long now = clock.millis();
+		final long cacheUntil = loadedCacheUntil(now, expires, tokenExpires);
+		if (cacheUntil <= now) {
+			return false;
+		}
+		putCached(TokenDigest.of(token.getToken()), token, now, cacheUntil, tokenExpires);
+		return true;
+	}
+	
+	/* Add a token retrieved from another cache, replacing any existing entry. */
+	abstract void putCached(
+			TokenDigest digest,
+			AuthToken token,
+			long now,
+			long cacheUntil,
+			long tokenExpires);
+	
+	/* Receives the unexpired entries in the cache for a snapshot. */
+	interface EntryVisitor {
+		
+		void visit(
+				TokenDigest digest,
+				String user,
+				long expires,
+				long tokenExpires);
+	}
+	
+	/* Visit the unexpired entries in the cache. */
+	abstract void visitEntries(EntryVisitor visitor);
+	
+	/* Add an entry from a snapshot, which does not contain the token string. The cache
+	 * lifetime is limited to the current maximum age and expiry margin. Returns false if the
+	 * entry has expired or the token is already cached.
+	 */
+	abstract boolean loadEntry(
+			TokenDigest digest,
+			String user,
+			long expires,
+			long tokenExpires);
+	
+	/* The cache lifetime of an entry from another cache, limited to the current maximum age and
+	 * expiry margin.
+	 */
+	final long loadedCacheUntil(final long now, final long expires, final long tokenExpires) {
+		return Math.min(expires, Math.min(
+				saturatedAdd(now, maxAgeMS), tokenExpires - expiryMarginMS));
+	}
+	
+	/* The cache lifetime of a newly validated token. */
+	final long cacheUntil(final long now, final long expires) {
+		return Math.min(saturatedAdd(now, maxAgeMS), expires - expiryMarginMS);
+	}
+	
+	final long refreshAt(final long now, final long cacheUntil) {
+		final double fraction = refreshAheadFraction;
+		return fraction >= 1 ? Long.MAX_VALUE : now + (long) ((cacheUntil - now) * fraction);
+	}
+	
+	static long saturatedAdd(final long a, final long b) {
+		final long r = a + b;
+		return r < a ? Long.MAX_VALUE : r;
+	}
+	
+	static void checkToken(final String token) {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException(
+					"token cannot be null or empty");
+		}
+	}
+	
+	static void checkUser(final String user) {
+		if (user == null || user.isEmpty()) {
+			throw new IllegalArgumentException("user cannot be null or empty");
+		}
+	}
+}
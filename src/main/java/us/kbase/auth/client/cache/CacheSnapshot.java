@@ -0,0 +1,320 @@
+package us.kbase.auth.client.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the contents of an {@link AbstractTokenCache} and a {@link StringCache} of user names
+ * to a file and loads them into new caches, so that a restarted process does not start with
+ * empty caches.
+ * 
+ * The snapshot contains token digests, never token strings, along with user names and the
+ * times the entries expire. A token loaded from a snapshot is cached for the remainder of its
+ * cache lifetime, limited by the maximum age and expiry margin of the cache it is loaded into.
+ * Expired entries are not written or loaded.
+ * 
+ * Snapshots are written to a temporary file that is then moved over the snapshot file, so a
+ * snapshot is never partially written. On POSIX file systems the file is only readable by its
+ * owner. Snapshots are memory mapped when loaded.
+ * 
+ * Tokens loaded from a snapshot are treated as valid, so the snapshot file and its directory
+ * must only be writable by trusted processes. On POSIX file systems a snapshot is not loaded
+ * if it is not owned by the current user or is writable by other users.
+ */
+public final class CacheSnapshot {
+	
+	/* Format, all big endian:
+	 * header: int magic, int version, int token count, int user count, long name table offset
+	 * tokens: 4 longs of digest, long cache expiry, long token expiry, int name index
+	 * users: int name index, long expiry
+	 * name table: int name count, then for each name an unsigned short UTF-8 length and the
+	 *     bytes
+	 */
+	private static final int MAGIC = 0x4B424143; // KBAC
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int TOKEN_SIZE = 52;
+	private static final int USER_SIZE = 12;
+	// longer user names are not written
+	private static final int MAX_NAME_BYTES = 0xFFFF;
+	
+	private CacheSnapshot() {}
+	
+	/** The number of entries written to or loaded from a snapshot. */
+	public static class Counts {
+		
+		private final int tokens;
+		private final int users;
+		
+		private Counts(final int tokens, final int users) {
+			this.tokens = tokens;
+			this.users = users;
+		}
+		
+		/** Get the number of tokens.
+		 * @return the number of tokens.
+		 */
+		public int getTokens() {
+			return tokens;
+		}
+		
+		/** Get the number of user names.
+		 * @return the number of user names.
+		 */
+		public int getUsers() {
+			return users;
+		}
+	}
+	
+	/** Write a snapshot of the caches to a file, replacing any existing file.
+	 * @param file the file.
+	 * @param tokens the token cache.
+	 * @param users the cache of valid user names.
+	 * @return the number of entries written.
+	 * @throws IOException if the file could not be written.
+	 */
+	public static Counts write(
+			final Path file,
+			final AbstractTokenCache tokens,
+			final StringCache users)
+			throws IOException {
+		checkArgs(file, tokens, users);
+		final Path dir = file.toAbsolutePath().getParent();
+		final Path temp = Files.createTempFile(dir, file.getFileName() + ".", ".tmp");
+		try {
+			final Counts counts;
+			try (final FileChannel fc = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				fc.position(HEADER_SIZE);
+				final DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(fc)));
+				counts = writeEntries(out, tokens, users);
+				out.flush();
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(counts.tokens).putInt(counts.users)
+						.putLong(HEADER_SIZE + (long) counts.tokens * TOKEN_SIZE
+								+ (long) counts.users * USER_SIZE);
+				header.flip();
+				fc.write(header, 0);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return counts;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	private static Counts writeEntries(
+			final DataOutputStream out,
+			final AbstractTokenCache tokens,
+			final StringCache users)
+			throws IOException {
+		final Map<String, Integer> names = new HashMap<>();
+		final List<String> nameList = new ArrayList<>();
+		final int[] counts = new int[2];
+		try {
+			tokens.visitEntries((digest, user, expires, tokenExpires) -> {
+				final int index = index(names, nameList, user);
+				if (index >= 0) {
+					try {
+						for (int i = 0; i < 4; i++) {
+							out.writeLong(digest.getLong(i));
+						}
+						out.writeLong(expires);
+						out.writeLong(tokenExpires);
+						out.writeInt(index);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					counts[0]++;
+				}
+			});
+			users.visitEntries((user, expires) -> {
+				final int index = index(names, nameList, user);
+				if (index >= 0) {
+					try {
+						out.writeInt(index);
+						out.writeLong(expires);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					counts[1]++;
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		out.writeInt(nameList.size());
+		for (final String n: nameList) {
+			final byte[] b = n.getBytes(StandardCharsets.UTF_8);
+			out.writeShort(b.length);
+			out.write(b);
+		}
+		return new Counts(counts[0], counts[1]);
+	}
+	
+	// returns the index of the name in the name table, or -1 if the name is too long
+	private static int index(
+			final Map<String, Integer> names,
+			final List<String> nameList,
+			final String name) {
+		final Integer i = names.get(name);
+		if (i != null) {
+			return i;
+		}
+		if (name.length() * 3 > MAX_NAME_BYTES &&
+				name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+			return -1;
+		}
+		names.put(name, nameList.size());
+		nameList.add(name);
+		return nameList.size() - 1;
+	}
+	
+	/** Load a snapshot into the caches. Entries that have expired, or that are already in the
+	 * caches, are skipped.
+	 * @param file the snapshot file.
+	 * @param tokens the token cache.
+	 * @param users the cache of valid user names.
+	 * @return the number of entries loaded.
+	 * @throws IOException if the file could not be read, is not a valid snapshot, or may have
+	 * been written by another user.
+	 */
+	public static Counts load(
+			final Path file,
+			final AbstractTokenCache tokens,
+			final StringCache users)
+			throws IOException {
+		checkArgs(file, tokens, users);
+		checkOwner(file, "Cache snapshot");
+		final MappedByteBuffer buf;
+		try (final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (fc.size() > Integer.MAX_VALUE) {
+				throw new IOException("Cache snapshot is too large to load: " + file);
+			}
+			buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		try {
+			if (buf.getInt() != MAGIC) {
+				throw new IOException("Not a cache snapshot: " + file);
+			}
+			final int version = buf.getInt();
+			if (version != VERSION) {
+				throw new IOException(String.format(
+						"Unsupported cache snapshot version %s: %s", version, file));
+			}
+			final int tokenCount = buf.getInt();
+			final int userCount = buf.getInt();
+			final long namesOffset = buf.getLong();
+			if (tokenCount < 0 || userCount < 0 || namesOffset != HEADER_SIZE
+					+ (long) tokenCount * TOKEN_SIZE + (long) userCount * USER_SIZE
+					|| namesOffset + 4 > buf.limit()) {
+				throw new IOException("Corrupt cache snapshot: " + file);
+			}
+			// read the name table first
+			buf.position((int) namesOffset);
+			final int nameCount = buf.getInt();
+			if (nameCount < 0 || nameCount * 2L > buf.remaining()) {
+				throw new IOException("Corrupt cache snapshot: " + file);
+			}
+			final String[] names = new String[nameCount];
+			final byte[] b = new byte[MAX_NAME_BYTES];
+			for (int i = 0; i < names.length; i++) {
+				final int len = Short.toUnsignedInt(buf.getShort());
+				buf.get(b, 0, len);
+				names[i] = new String(b, 0, len, StandardCharsets.UTF_8);
+			}
+			buf.position(HEADER_SIZE);
+			int tokensLoaded = 0;
+			for (int i = 0; i < tokenCount; i++) {
+				final TokenDigest d = new TokenDigest(
+						buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+				final long expires = buf.getLong();
+				final long tokenExpires = buf.getLong();
+				if (tokens.loadEntry(d, name(names, buf.getInt(), file), expires, tokenExpires)) {
+					tokensLoaded++;
+				}
+			}
+			int usersLoaded = 0;
+			for (int i = 0; i < userCount; i++) {
+				final String name = name(names, buf.getInt(), file);
+				if (users.loadString(name, buf.getLong())) {
+					usersLoaded++;
+				}
+			}
+			return new Counts(tokensLoaded, usersLoaded);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated cache snapshot: " + file, e);
+		}
+	}
+	
+	/* Fails if the file could have been written by another user, and so may contain forged
+	 * entries. Also used for the shared token cache file. Does nothing on non-POSIX file systems.
+	 */
+	static void checkOwner(final Path file, final String description) throws IOException {
+		final PosixFileAttributeView view = Files.getFileAttributeView(
+				file, PosixFileAttributeView.class);
+		if (view == null) {
+			return; // not a POSIX file system
+		}
+		final PosixFileAttributes attribs = view.readAttributes();
+		final UserPrincipal user = file.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+		if (!attribs.owner().equals(user)) {
+			throw new IOException(description + " is not owned by the current user: " + file);
+		}
+		final Set<PosixFilePermission> perms = attribs.permissions();
+		if (perms.contains(PosixFilePermission.GROUP_WRITE)
+				|| perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+			throw new IOException(description + " is writable by other users: " + file);
+		}
+	}
+	
+	private static String name(final String[] names, final int index, final Path file)
+			throws IOException {
+		if (index < 0 || index >= names.length) {
+			throw new IOException("Corrupt cache snapshot: " + file);
+		}
+		return names[index];
+	}
+	
+	private static void checkArgs(
+			final Path file,
+			final AbstractTokenCache tokens,
+			final StringCache users) {
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+		if (tokens == null) {
+			throw new NullPointerException("tokens");
+		}
+		if (users == null) {
+			throw new NullPointerException("users");
+		}
+	}
+}
@@ -0,0 +1,547 @@
+package us.kbase.auth.client.cache;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.metrics.Metrics;
+
+/**
+ * A token cache for very large numbers of tokens that stores each token in primitive
+ * array slots rather than as objects.
+ * 
+ * Tokens are keyed by their SHA-256 digest, stored as four longs in an open addressing hash
+ * table with linear probing, and are matched on the full digest. User names are stored once in
+ * a shared table and referenced by index, and each user's entries are linked together so that
+ * {@link #removeUser(String)} does not scan the table. The token string is not stored - a
+ * cached token is recreated from the token string passed to
+ * {@link #getToken(String, Refresher)}, and so, unlike {@link TokenCache}, a cache hit
+ * allocates an {@link AuthToken}.
+ * 
+ * The table is allocated when the cache is created and is sized for the maximum size of the
+ * cache, using 76 bytes per slot and 1.33 slots per token, plus the user name table. The
+ * entries themselves do not allocate memory.
+ * 
+ * Reads do not lock unless they race with a write. Writes are serialized, and eviction runs on
+ * the thread adding the token that causes the cache to exceed its maximum size. Eviction is
+ * O(n) in the size of the cache and blocks reads and writes while it runs.
+ * 
+ * This class is thread safe.
+ */
+public class CompactTokenCache extends AbstractTokenCache {
+	
+	/** The largest maximum size of a cache. */
+	public static final int MAX_SIZE = 100_000_000;
+	
+	private static final int EMPTY = -1;
+	
+	private final StampedLock lock = new StampedLock();
+	private final int capacity;
+	// the digest for slot i is stored in keys[i * 4] to keys[i * 4 + 3]
+	private final long[] keys;
+	private final int[] users; // index into userNames, or EMPTY if the slot is empty
+	private final long[] dates;
+	private final long[] expires;
+	private final long[] tokenExpires;
+	private final long[] refreshAt; // Long.MAX_VALUE once a refresh is claimed
+	// doubly linked lists of the slots for each user, or EMPTY at the ends of a list
+	private final int[] userNext;
+	private final int[] userPrev;
+	private int count = 0;
+	
+	// shared user names and their reference counts. Unreferenced indexes are reused.
+	private final Map<String, Integer> userIndex = new HashMap<>();
+	private String[] userNames = new String[16];
+	private int[] userRefs = new int[16];
+	private int[] userHeads = new int[16]; // the first slot for each user
+	private int[] freeUsers = new int[16];
+	private int freeUserCount = 0;
+	private int userCount = 0;
+	
+	/**
+	 * Create a new CompactTokenCache.
+	 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in tokens, which must be &lt;=
+	 * {@link #MAX_SIZE}.
+	 */
+	public CompactTokenCache(final int size, final int maxsize) {
+		this(size, maxsize, Clock.systemUTC());
+	}
+	
+	/**
+	 * Create a new CompactTokenCache with a custom clock, usually for testing purposes.
+	 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in tokens, which must be &lt;=
+	 * {@link #MAX_SIZE}.
+	 * @param clock the clock to use to determine token ages.
+	 */
+	public CompactTokenCache(final int size, final int maxsize, final Clock clock) {
+		super(size, maxsize, clock);
+		if (maxsize > MAX_SIZE) {
+			throw new IllegalArgumentException("maxsize must be <= " + MAX_SIZE);
+		}
+		// keep the load factor at or below 0.75, and leave an empty slot when the cache is
+		// over its maximum size before eviction
+		capacity = (int) Math.max(maxsize * 4L / 3, maxsize + 1) + 1;
+		keys = new long[capacity * 4];
+		users = new int[capacity];
+		Arrays.fill(users, EMPTY);
+		dates = new long[capacity];
+		expires = new long[capacity];
+		tokenExpires = new long[capacity];
+		refreshAt = new long[capacity];
+		userNext = new int[capacity];
+		userPrev = new int[capacity];
+	}
+	
+	@Override
+	public AuthToken getToken(final String token, final Refresher refresher) {
+		checkToken(token);
+		final DigestProbe d = TokenDigest.lookup(token);
+		final long d0 = d.getLong(0);
+		final long d1 = d.getLong(1);
+		final long d2 = d.getLong(2);
+		final long d3 = d.getLong(3);
+		final Metrics m = metrics;
+		String user = null;
+		long exp = 0;
+		long refresh = 0;
+		// try an optimistic read first, then fall back to a read lock
+		for (int attempt = 0;; attempt++) {
+			final long stamp = attempt == 0 ? lock.tryOptimisticRead() : lock.readLock();
+			try {
+				user = null;
+				final int slot = find(d0, d1, d2, d3);
+				if (slot != EMPTY) {
+					user = userName(users[slot]);
+					exp = expires[slot];
+					refresh = refreshAt[slot];
+				}
+				if (attempt > 0 || lock.validate(stamp)) {
+					break;
+				}
+			} finally {
+				if (attempt > 0) {
+					lock.unlockRead(stamp);
+				}
+			}
+		}
+		if (user == null) {
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		final long now = clock.millis();
+		if (now > exp) {
+			m.cacheExpiry(metricsName);
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		m.cacheHit(metricsName);
+		final AuthToken t = new AuthToken(token, user);
+		if (refresher != null && now >= refresh && claimRefresh(d0, d1, d2, d3, now)) {
+			refresher.refresh(t);
+		}
+		return t;
+	}
+	
+	@Override
+	public AuthToken getStaleToken(final String token, final long graceMS) {
+		checkToken(token);
+		if (graceMS < 0) {
+			throw new IllegalArgumentException("graceMS must be >= 0");
+		}
+		final DigestProbe d = TokenDigest.lookup(token);
+		final long stamp = lock.readLock();
+		final String user;
+		final long exp;
+		final long tokenExp;
+		try {
+			final int slot = find(d.getLong(0), d.getLong(1), d.getLong(2), d.getLong(3));
+			if (slot == EMPTY) {
+				return null;
+			}
+			user = userNames[users[slot]];
+			exp = expires[slot];
+			tokenExp = tokenExpires[slot];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		final long now = clock.millis();
+		if (now > saturatedAdd(exp, graceMS) || now >= tokenExp) {
+			return null;
+		}
+		return new AuthToken(token, user);
+	}
+	
+	@Override
+	public void removeToken(final String token) {
+		checkToken(token);
+		final DigestProbe d = TokenDigest.lookup(token);
+		final long stamp = lock.writeLock();
+		try {
+			final int slot = find(d.getLong(0), d.getLong(1), d.getLong(2), d.getLong(3));
+			if (slot != EMPTY) {
+				delete(slot);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	@Override
+	public Collection<TokenDigest> removeUser(final String user) {
+		checkUser(user);
+		final long stamp = lock.writeLock();
+		try {
+			final Integer index = userIndex.get(user);
+			if (index == null) {
+				return Collections.emptyList();
+			}
+			final List<TokenDigest> removed = new ArrayList<>(userRefs[index]);
+			// deleting the user's last entry releases the index, so count the entries first
+			for (int n = userRefs[index]; n > 0; n--) {
+				final int slot = userHeads[index];
+				final int k = slot << 2;
+				removed.add(new TokenDigest(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]));
+				delete(slot);
+			}
+			return removed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	@Override
+	public void removeAll() {
+		final long stamp = lock.writeLock();
+		try {
+			Arrays.fill(users, EMPTY);
+			count = 0;
+			userIndex.clear();
+			userNames = new String[16];
+			userRefs = new int[16];
+			userHeads = new int[16];
+			freeUsers = new int[16];
+			freeUserCount = 0;
+			userCount = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	@Override
+	public void putValidToken(final AuthToken token, final long tokenExpiry) {
+		if (token == null) {
+			throw new NullPointerException("token cannot be null");
+		}
+		final long now = clock.millis();
+		final long cacheUntil = cacheUntil(now, tokenExpiry);
+		if (cacheUntil <= now) {
+			return;
+		}
+		final DigestProbe d = TokenDigest.lookup(token.getToken());
+		put(d.getLong(0), d.getLong(1), d.getLong(2), d.getLong(3), token.getUserName(), now,
+				cacheUntil, tokenExpiry, false);
+	}
+	
+	@Override
+	void visitEntries(final EntryVisitor visitor) {
+		final long now = clock.millis();
+		final long stamp = lock.readLock();
+		try {
+			for (int i = 0; i < capacity; i++) {
+				if (users[i] != EMPTY && expires[i] >= now) {
+					final int k = i << 2;
+					visitor.visit(new TokenDigest(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]),
+							userNames[users[i]], expires[i], tokenExpires[i]);
+				}
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	@Override
+	boolean loadEntry(
+			final TokenDigest digest,
+			final String user,
+			final long expires,
+			final long tokenExpires) {
+		final long now = clock.millis();
+		final long cacheUntil = loadedCacheUntil(now, expires, tokenExpires);
+		if (cacheUntil <= now) {
+			return false;
+		}
+		return put(digest.getLong(0), digest.getLong(1), digest.getLong(2), digest.getLong(3),
+				user, now, cacheUntil, tokenExpires, true);
+	}
+	
+	@Override
+	void putCached(
+			final TokenDigest digest,
+			final AuthToken token,
+			final long now,
+			final long cacheUntil,
+			final long tokenExpires) {
+		put(digest.getLong(0), digest.getLong(1), digest.getLong(2), digest.getLong(3),
+				token.getUserName(), now, cacheUntil, tokenExpires, false);
+	}
+	
+	// returns false if ifAbsent is true and the token is already cached
+	private boolean put(
+			final long d0,
+			final long d1,
+			final long d2,
+			final long d3,
+			final String userName,
+			final long now,
+			final long cacheUntil,
+			final long tokenExpiry,
+			final boolean ifAbsent) {
+		int evicted = 0;
+		long evictionNanos = 0;
+		final long stamp = lock.writeLock();
+		try {
+			int slot = find(d0, d1, d2, d3);
+			if (ifAbsent && slot != EMPTY) {
+				return false;
+			}
+			final int user = acquireUser(userName);
+			if (slot == EMPTY) {
+				slot = home(d0);
+				while (users[slot] != EMPTY) {
+					slot = next(slot);
+				}
+				final int k = slot << 2;
+				keys[k] = d0;
+				keys[k + 1] = d1;
+				keys[k + 2] = d2;
+				keys[k + 3] = d3;
+				count++;
+			} else {
+				unlink(slot);
+				releaseUser(users[slot]);
+			}
+			users[slot] = user;
+			link(slot);
+			dates[slot] = now;
+			expires[slot] = cacheUntil;
+			tokenExpires[slot] = tokenExpiry;
+			refreshAt[slot] = refreshAt(now, cacheUntil);
+			if (count > maxsize) {
+				final long start = System.nanoTime();
+				evicted = evict();
+				evictionNanos = System.nanoTime() - start;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if (evicted > 0) {
+			metrics.cacheEviction(metricsName, evicted, evictionNanos);
+		}
+		return true;
+	}
+	
+	/* Returns the slot containing the digest, or EMPTY. The probe count is bounded so that an
+	 * optimistic read racing with a write cannot loop forever.
+	 */
+	private int find(final long d0, final long d1, final long d2, final long d3) {
+		int slot = home(d0);
+		for (int i = 0; i < capacity; i++) {
+			if (users[slot] == EMPTY) {
+				return EMPTY;
+			}
+			final int k = slot << 2;
+			if (keys[k] == d0 && keys[k + 1] == d1 && keys[k + 2] == d2 && keys[k + 3] == d3) {
+				return slot;
+			}
+			slot = next(slot);
+		}
+		return EMPTY;
+	}
+	
+	// maps the top half of the first long of the uniformly distributed digest to a slot
+	private int home(final long d0) {
+		return (int) (((d0 >>> 32) * capacity) >>> 32);
+	}
+	
+	private int next(final int slot) {
+		return slot + 1 == capacity ? 0 : slot + 1;
+	}
+	
+	// the number of slots from one slot forward to another, wrapping around the table
+	private int distance(final int from, final int to) {
+		return to >= from ? to - from : to + capacity - from;
+	}
+	
+	// an optimistic read may see an inconsistent index, which is discarded on validation
+	private String userName(final int index) {
+		final String[] names = userNames;
+		return index < 0 || index >= names.length ? null : names[index];
+	}
+	
+	private boolean claimRefresh(
+			final long d0,
+			final long d1,
+			final long d2,
+			final long d3,
+			final long now) {
+		final long stamp = lock.writeLock();
+		try {
+			final int slot = find(d0, d1, d2, d3);
+			if (slot == EMPTY || now < refreshAt[slot] || refreshAt[slot] == Long.MAX_VALUE) {
+				return false;
+			}
+			refreshAt[slot] = Long.MAX_VALUE;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	// removes the entry in the slot, shifting later entries in the probe sequence back
+	private void delete(int hole) {
+		unlink(hole);
+		releaseUser(users[hole]);
+		count--;
+		int slot = hole;
+		while (true) {
+			slot = next(slot);
+			if (users[slot] == EMPTY) {
+				break;
+			}
+			final int home = home(keys[slot << 2]);
+			// the entry can move to the hole if the hole is between its home slot and its slot
+			if (distance(home, slot) >= distance(hole, slot)) {
+				move(slot, hole);
+				hole = slot;
+			}
+		}
+		users[hole] = EMPTY;
+	}
+	
+	private void move(final int from, final int to) {
+		System.arraycopy(keys, from << 2, keys, to << 2, 4);
+		users[to] = users[from];
+		dates[to] = dates[from];
+		expires[to] = expires[from];
+		tokenExpires[to] = tokenExpires[from];
+		refreshAt[to] = refreshAt[from];
+		final int prev = userPrev[from];
+		final int next = userNext[from];
+		userPrev[to] = prev;
+		userNext[to] = next;
+		if (prev == EMPTY) {
+			userHeads[users[from]] = to;
+		} else {
+			userNext[prev] = to;
+		}
+		if (next != EMPTY) {
+			userPrev[next] = to;
+		}
+	}
+	
+	// adds the slot to the head of its user's list
+	private void link(final int slot) {
+		final int head = userHeads[users[slot]];
+		userPrev[slot] = EMPTY;
+		userNext[slot] = head;
+		if (head != EMPTY) {
+			userPrev[head] = slot;
+		}
+		userHeads[users[slot]] = slot;
+	}
+	
+	private void unlink(final int slot) {
+		final int prev = userPrev[slot];
+		final int next = userNext[slot];
+		if (prev == EMPTY) {
+			userHeads[users[slot]] = next;
+		} else {
+			userNext[prev] = next;
+		}
+		if (next != EMPTY) {
+			userPrev[next] = prev;
+		}
+	}
+	
+	/* Evicts all but the newest size entries. Returns the number of entries evicted. */
+	private int evict() {
+		final long[] d = new long[count];
+		int n = 0;
+		for (int i = 0; i < capacity; i++) {
+			if (users[i] != EMPTY) {
+				d[n++] = dates[i];
+			}
+		}
+		final long cutoff = Evictor.selectDescending(d, n, size - 1);
+		int keepAtCutoff = size;
+		for (int i = 0; i < n; i++) {
+			if (d[i] > cutoff) {
+				keepAtCutoff--;
+			}
+		}
+		// start after an empty slot so deleting an entry never shifts an already visited entry
+		// into a slot that has not been visited yet
+		int start = 0;
+		while (users[start] != EMPTY) {
+			start++;
+		}
+		int evicted = 0;
+		for (int i = 1; i < capacity; i++) {
+			final int slot = (start + i) % capacity;
+			// deleting an entry may shift the next entry into the slot, so check it again
+			while (users[slot] != EMPTY) {
+				final long date = dates[slot];
+				if (date < cutoff || (date == cutoff && keepAtCutoff-- <= 0)) {
+					delete(slot);
+					evicted++;
+				} else {
+					break;
+				}
+			}
+		}
+		return evicted;
+	}
+	
+	private int acquireUser(final String name) {
+		Integer index = userIndex.get(name);
+		if (index == null) {
+			final int i;
+			if (freeUserCount > 0) {
+				i = freeUsers[--freeUserCount];
+			} else {
+				if (userCount == userNames.length) {
+					userRefs = Arrays.copyOf(userRefs, userCount * 2);
+					userHeads = Arrays.copyOf(userHeads, userCount * 2);
+					userNames = Arrays.copyOf(userNames, userCount * 2);
+				}
+				i = userCount++;
+			}
+			userNames[i] = name;
+			userHeads[i] = EMPTY;
+			userIndex.put(name, i);
+			index = i;
+		}
+		userRefs[index]++;
+		return index;
+	}
+	
+	private void releaseUser(final int index) {
+		if (--userRefs[index] == 0) {
+			userIndex.remove(userNames[index]);
+			userNames[index] = null;
+			if (freeUserCount == freeUsers.length) {
+				freeUsers = Arrays.copyOf(freeUsers, freeUserCount * 2);
+			}
+			freeUsers[freeUserCount++] = index;
+		}
+	}
+}
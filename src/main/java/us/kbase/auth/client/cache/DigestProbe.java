@@ -0,0 +1,49 @@
+package us.kbase.auth.client.cache;
+
+/* A mutable token digest used to look up entries keyed by a TokenDigest without allocating.
+ * Instances are reused by TokenDigest.lookup() and so must never be stored or used as a key.
+ * 
+ * A probe is equal to a TokenDigest with the same digest, so passing a probe to Map.get(),
+ * which calls equals() on its argument, finds the entry for the digest.
+ */
+final class DigestProbe {
+	
+	long d0;
+	long d1;
+	long d2;
+	long d3;
+	
+	long getLong(final int index) {
+		switch (index) {
+			case 0: return d0;
+			case 1: return d1;
+			case 2: return d2;
+			case 3: return d3;
+			default: throw new IndexOutOfBoundsException("index: " + index);
+		}
+	}
+	
+	TokenDigest toDigest() {
+		return new TokenDigest(d0, d1, d2, d3);
+	}
+	
+	@Override
+	public int hashCode() {
+		// same as TokenDigest
+		return (int) (d0 ^ (d0 >>> 32));
+	}
+	
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj instanceof TokenDigest) {
+			final TokenDigest other = (TokenDigest) obj;
+			return d0 == other.getLong(0) && d1 == other.getLong(1) && d2 == other.getLong(2)
+					&& d3 == other.getLong(3);
+		}
+		if (obj instanceof DigestProbe) {
+			final DigestProbe other = (DigestProbe) obj;
+			return d0 == other.d0 && d1 == other.d1 && d2 == other.d2 && d3 == other.d3;
+		}
+		return false;
+	}
+}
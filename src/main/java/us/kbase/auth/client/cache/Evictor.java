@@ -0,0 +1,117 @@
+package us.kbase.auth.client.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/* Shared eviction code for the caches. Discards all but the newest entries from a concurrent
+ * map by finding the cutoff date with a selection algorithm rather than sorting the entries.
+ */
+final class Evictor {
+	
+	private Evictor() {}
+	
+	/* Evict entries from the cache until its size is no greater than size, keeping the entries
+	 * with the greatest dates. Does nothing if the cache is not larger than maxsize or if
+	 * another thread holds the lock. Returns the number of entries evicted.
+	 * O(n) in the size of the cache.
+	 */
+	static <K, V> int evict(
+			final Map<K, V> cache,
+			final int size,
+			final int maxsize,
+			final ToLongFunction<V> date,
+			final ReentrantLock lock) {
+		return evict(cache, size, maxsize, date, lock, (k, v) -> {});
+	}
+	
+	/* As above, calling the listener for each evicted entry. */
+	static <K, V> int evict(
+			final Map<K, V> cache,
+			final int size,
+			final int maxsize,
+			final ToLongFunction<V> date,
+			final ReentrantLock lock,
+			final BiConsumer<K, V> evictionListener) {
+		// if another thread is evicting, don't wait for it
+		if (!lock.tryLock()) {
+			return 0;
+		}
+		int evicted = 0;
+		try {
+			// other threads may have added entries while evicting, so check again
+			while (cache.size() > maxsize) {
+				long[] dates = new long[cache.size() + 16];
+				int count = 0;
+				for (final V v: cache.values()) {
+					if (count == dates.length) {
+						dates = Arrays.copyOf(dates, count * 2);
+					}
+					dates[count++] = date.applyAsLong(v);
+				}
+				if (count <= size) {
+					return evicted;
+				}
+				// keep the newest size entries
+				final long cutoff = selectDescending(dates, count, size - 1);
+				int keepAtCutoff = size;
+				for (int i = 0; i < count; i++) {
+					if (dates[i] > cutoff) {
+						keepAtCutoff--;
+					}
+				}
+				for (final Entry<K, V> e: cache.entrySet()) {
+					final long d = date.applyAsLong(e.getValue());
+					if (d < cutoff || (d == cutoff && keepAtCutoff-- <= 0)) {
+						// don't remove the entry if it was replaced by a newer entry
+						if (cache.remove(e.getKey(), e.getValue())) {
+							evictionListener.accept(e.getKey(), e.getValue());
+							evicted++;
+						}
+					}
+				}
+			}
+			return evicted;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/* Returns the kth (zero based) largest value in the first count entries of the array.
+	 * Reorders the array. Expected O(n).
+	 */
+	static long selectDescending(final long[] values, final int count, final int k) {
+		int left = 0;
+		int right = count - 1;
+		while (left < right) {
+			final long pivot = values[left + (right - left) / 2];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] > pivot) {
+					i++;
+				}
+				while (values[j] < pivot) {
+					j--;
+				}
+				if (i <= j) {
+					final long tmp = values[i];
+					values[i++] = values[j];
+					values[j--] = tmp;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return values[k];
+			}
+		}
+		return values[k];
+	}
+
+}
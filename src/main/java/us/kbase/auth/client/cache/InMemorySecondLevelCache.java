@@ -0,0 +1,102 @@
+package us.kbase.auth.client.cache;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A {@link SecondLevelCache} in memory, which may be shared by the clients in a process.
+ * Intended for testing and as a reference implementation. The cache is not bounded, but
+ * expired entries are removed when they are looked up.
+ * 
+ * This class is thread safe.
+ */
+public class InMemorySecondLevelCache implements SecondLevelCache {
+	
+	private final Map<TokenDigest, CachedToken> tokens = new ConcurrentHashMap<>();
+	private final Map<String, CachedUser> users = new ConcurrentHashMap<>();
+	private final Clock clock;
+	
+	/** Create the cache. */
+	public InMemorySecondLevelCache() {
+		this(Clock.systemUTC());
+	}
+	
+	/** Create the cache with a custom clock, usually for testing purposes.
+	 * @param clock the clock to use to determine if entries have expired.
+	 */
+	public InMemorySecondLevelCache(final Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		this.clock = clock;
+	}
+	
+	/** Get the number of tokens in the cache, including expired tokens that have not been
+	 * removed.
+	 * @return the number of tokens.
+	 */
+	public int getTokenCount() {
+		return tokens.size();
+	}
+	
+	/** Get the number of user names in the cache, including expired user names that have not
+	 * been removed.
+	 * @return the number of user names.
+	 */
+	public int getUserCount() {
+		return users.size();
+	}
+	
+	@Override
+	public Map<TokenDigest, CachedToken> getTokens(final Collection<TokenDigest> digests) {
+		final long now = clock.millis();
+		final Map<TokenDigest, CachedToken> ret = new HashMap<>();
+		for (final TokenDigest d: digests) {
+			final CachedToken t = tokens.get(d);
+			if (t != null) {
+				if (now > t.getExpires() || now >= t.getTokenExpires()) {
+					tokens.remove(d, t);
+				} else {
+					ret.put(d, t);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	@Override
+	public void putTokens(final Map<TokenDigest, CachedToken> tokens) {
+		this.tokens.putAll(tokens);
+	}
+	
+	@Override
+	public void removeTokens(final Collection<TokenDigest> digests) {
+		for (final TokenDigest d: digests) {
+			tokens.remove(d);
+		}
+	}
+	
+	@Override
+	public Map<String, CachedUser> getUsers(final Collection<String> users) {
+		final long now = clock.millis();
+		final Map<String, CachedUser> ret = new HashMap<>();
+		for (final String u: users) {
+			final CachedUser c = this.users.get(u);
+			if (c != null) {
+				if (now > c.getExpires()) {
+					this.users.remove(u, c);
+				} else {
+					ret.put(u, c);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	@Override
+	public void putUsers(final Map<String, CachedUser> users) {
+		this.users.putAll(users);
+	}
+}
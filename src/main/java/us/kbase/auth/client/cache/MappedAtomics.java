@@ -0,0 +1,211 @@
+package us.kbase.auth.client.cache;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* Atomic operations on longs in a direct byte buffer, usually a memory mapped file shared
+ * between processes. Uses a VarHandle on Java 9+ and sun.misc.Unsafe on Java 8, both found
+ * by reflection as the code must compile for Java 8. Longs are stored in native byte order and
+ * indexes must be 8 byte aligned.
+ */
+abstract class MappedAtomics {
+	
+	abstract boolean compareAndSet(int index, long expected, long value);
+	
+	abstract long getVolatile(int index);
+	
+	abstract void setRelease(int index, long value);
+	
+	// prevents reads before the fence being reordered with reads after the fence
+	abstract void loadFence();
+	
+	static MappedAtomics forBuffer(final ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("buffer must be direct");
+		}
+		try {
+			return new VarHandleAtomics(buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Java 8, fall through
+		}
+		try {
+			return new UnsafeAtomics(buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new UnsupportedOperationException(
+					"Atomic operations on memory mapped files are not supported on this JVM", e);
+		}
+	}
+	
+	private static class VarHandleAtomics extends MappedAtomics {
+		
+		private final ByteBuffer buffer;
+		private final MethodHandle cas;
+		private final MethodHandle getVolatile;
+		private final MethodHandle setRelease;
+		private final MethodHandle loadFence;
+		
+		private VarHandleAtomics(final ByteBuffer buffer) throws ReflectiveOperationException {
+			this.buffer = buffer;
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			final Class<?> vhClass = Class.forName("java.lang.invoke.VarHandle");
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			final Class<Enum> modeClass = (Class<Enum>) Class.forName(
+					"java.lang.invoke.VarHandle$AccessMode");
+			final Object vh = MethodHandles.class.getMethod(
+					"byteBufferViewVarHandle", Class.class, ByteOrder.class)
+					.invoke(null, long[].class, ByteOrder.nativeOrder());
+			cas = invoker(vh, vhClass, modeClass, "COMPARE_AND_SET", MethodType.methodType(
+					boolean.class, ByteBuffer.class, int.class, long.class, long.class));
+			getVolatile = invoker(vh, vhClass, modeClass, "GET_VOLATILE",
+					MethodType.methodType(long.class, ByteBuffer.class, int.class));
+			setRelease = invoker(vh, vhClass, modeClass, "SET_RELEASE", MethodType.methodType(
+					void.class, ByteBuffer.class, int.class, long.class));
+			loadFence = lookup.findStatic(
+					vhClass, "loadLoadFence", MethodType.methodType(void.class));
+		}
+		
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private static MethodHandle invoker(
+				final Object vh,
+				final Class<?> vhClass,
+				final Class<Enum> modeClass,
+				final String mode,
+				final MethodType type)
+				throws ReflectiveOperationException {
+			final MethodHandle mh = (MethodHandle) MethodHandles.class.getMethod(
+					"varHandleExactInvoker", modeClass, MethodType.class)
+					.invoke(null, Enum.valueOf(modeClass, mode), type);
+			return mh.bindTo(vhClass.cast(vh));
+		}
+		
+		@Override
+		boolean compareAndSet(final int index, final long expected, final long value) {
+			try {
+				return (boolean) cas.invokeExact(buffer, index, expected, value);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		long getVolatile(final int index) {
+			try {
+				return (long) getVolatile.invokeExact(buffer, index);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		void setRelease(final int index, final long value) {
+			try {
+				setRelease.invokeExact(buffer, index, value);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		void loadFence() {
+			try {
+				loadFence.invokeExact();
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+	}
+	
+	private static class UnsafeAtomics extends MappedAtomics {
+		
+		private final long address;
+		private final int limit;
+		private final MethodHandle cas;
+		private final MethodHandle getVolatile;
+		private final MethodHandle putOrdered;
+		private final MethodHandle loadFence;
+		
+		private UnsafeAtomics(final ByteBuffer buffer) throws ReflectiveOperationException {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			final Object unsafe = f.get(null);
+			final Field addr = Buffer.class.getDeclaredField("address");
+			addr.setAccessible(true);
+			address = addr.getLong(buffer);
+			limit = buffer.limit();
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			cas = lookup.findVirtual(unsafeClass, "compareAndSwapLong", MethodType.methodType(
+					boolean.class, Object.class, long.class, long.class, long.class))
+					.bindTo(unsafe);
+			getVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			putOrdered = lookup.findVirtual(unsafeClass, "putOrderedLong",
+					MethodType.methodType(void.class, Object.class, long.class, long.class))
+					.bindTo(unsafe);
+			loadFence = lookup.findVirtual(unsafeClass, "loadFence",
+					MethodType.methodType(void.class)).bindTo(unsafe);
+		}
+		
+		// unsafe doesn't check bounds
+		private long address(final int index) {
+			if (index < 0 || index > limit - 8 || (index & 7) != 0) {
+				throw new IndexOutOfBoundsException("index: " + index);
+			}
+			return address + index;
+		}
+		
+		@Override
+		boolean compareAndSet(final int index, final long expected, final long value) {
+			final long a = address(index);
+			try {
+				return (boolean) cas.invokeExact((Object) null, a, expected, value);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		long getVolatile(final int index) {
+			final long a = address(index);
+			try {
+				return (long) getVolatile.invokeExact((Object) null, a);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		void setRelease(final int index, final long value) {
+			final long a = address(index);
+			try {
+				putOrdered.invokeExact((Object) null, a, value);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		
+		@Override
+		void loadFence() {
+			try {
+				loadFence.invokeExact();
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+	}
+	
+	private static RuntimeException rethrow(final Throwable e) {
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		throw new RuntimeException(e);
+	}
+}
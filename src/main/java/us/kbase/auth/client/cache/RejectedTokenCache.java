@@ -0,0 +1,191 @@
+package us.kbase.auth.client.cache;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import us.kbase.auth.client.metrics.Metrics;
+
+/**
+ * Caches tokens that the auth server has rejected, along with the reason for the rejection,
+ * to avoid repeatedly querying the server for invalid tokens.
+ * 
+ * Rejections should be cached for a short time only, since the cache is not informed if a
+ * token that was not valid becomes valid.
+ * 
+ * Eviction works in the same way as for the {@link TokenCache}.
+ * 
+ * This class is thread safe.
+ */
+public class RejectedTokenCache {
+	
+	final private int size;
+	final private int maxsize;
+	final private long expiryMS;
+	final private Map<TokenDigest, Rejection> cache;
+	final private ReentrantLock evictionLock = new ReentrantLock();
+	final private Clock clock;
+	private volatile Metrics metrics = Metrics.NOOP;
+	private volatile Metrics.Cache metricsName = Metrics.Cache.REJECTED_TOKEN;
+	
+	/** The reason a token was rejected. */
+	public static class Rejection {
+		
+		private final String message;
+		private final int httpCode;
+		private final int appCode;
+		private final long date;
+		
+		private Rejection(
+				final String message,
+				final int httpCode,
+				final int appCode,
+				final long date) {
+			this.message = message;
+			this.httpCode = httpCode;
+			this.appCode = appCode;
+			this.date = date;
+		}
+		
+		/** Get the error message from the auth server.
+		 * @return the message.
+		 */
+		public String getMessage() {
+			return message;
+		}
+		
+		/** Get the HTTP code returned by the auth server.
+		 * @return the HTTP code.
+		 */
+		public int getHTTPCode() {
+			return httpCode;
+		}
+		
+		/** Get the application error code returned by the auth server.
+		 * @return the application error code.
+		 */
+		public int getAppCode() {
+			return appCode;
+		}
+	}
+	
+	/**
+	 * Create a new RejectedTokenCache.
+	 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param expiryMS the time, in milliseconds, to cache a rejection.
+	 */
+	public RejectedTokenCache(final int size, final int maxsize, final long expiryMS) {
+		this(size, maxsize, expiryMS, Clock.systemUTC());
+	}
+	
+	/**
+	 * Create a new RejectedTokenCache with a custom clock, usually for testing purposes.
+	 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param expiryMS the time, in milliseconds, to cache a rejection.
+	 * @param clock the clock to use to determine rejection ages.
+	 */
+	public RejectedTokenCache(
+			final int size,
+			final int maxsize,
+			final long expiryMS,
+			final Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		if (size < 1 || maxsize < 1) {
+			throw new IllegalArgumentException("size and maxsize must be > 0");
+		}
+		if (size >= maxsize) {
+			throw new IllegalArgumentException("size must be < maxsize");
+		}
+		if (expiryMS < 1) {
+			throw new IllegalArgumentException("expiryMS must be > 0");
+		}
+		this.size = size;
+		this.maxsize = maxsize;
+		this.expiryMS = expiryMS;
+		cache = new ConcurrentHashMap<>(maxsize);
+		this.clock = clock;
+	}
+	
+	/** Get the time, in milliseconds, a rejection is cached.
+	 * @return the expiry time.
+	 */
+	public long getExpiryMS() {
+		return expiryMS;
+	}
+	
+	/** Set the metrics to which the cache reports hits, misses, expiries and evictions.
+	 * By default metrics are discarded.
+	 * @param metrics the metrics.
+	 * @param cache the name under which the cache reports metrics.
+	 */
+	public void setMetrics(final Metrics metrics, final Metrics.Cache cache) {
+		if (metrics == null) {
+			throw new NullPointerException("metrics");
+		}
+		if (cache == null) {
+			throw new NullPointerException("cache");
+		}
+		this.metricsName = cache;
+		this.metrics = metrics;
+	}
+	
+	/** Get the reason a token was rejected.
+	 * @param token the token.
+	 * @return the reason for the rejection, or null if the token is not in the cache.
+	 */
+	public Rejection getRejection(final String token) {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException("token cannot be null or empty");
+		}
+		final Metrics m = metrics;
+		final Rejection r = cache.get(TokenDigest.lookup(token));
+		if (r == null) {
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		if (clock.millis() - r.date > expiryMS) {
+			m.cacheExpiry(metricsName);
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		m.cacheHit(metricsName);
+		return r;
+	}
+	
+	/** Add a rejected token to the cache.
+	 * @param token the token.
+	 * @param message the error message from the auth server.
+	 * @param httpCode the HTTP code returned by the auth server.
+	 * @param appCode the application error code returned by the auth server.
+	 */
+	public void putRejectedToken(
+			final String token,
+			final String message,
+			final int httpCode,
+			final int appCode) {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException("token cannot be null or empty");
+		}
+		if (message == null) {
+			throw new NullPointerException("message cannot be null");
+		}
+		cache.put(TokenDigest.of(token), new Rejection(
+				message, httpCode, appCode, clock.millis()));
+		evictIfFull();
+	}
+	
+	private void evictIfFull() {
+		if (cache.size() > maxsize) {
+			final long start = System.nanoTime();
+			final int evicted = Evictor.evict(cache, size, maxsize, r -> r.date, evictionLock);
+			if (evicted > 0) {
+				metrics.cacheEviction(metricsName, evicted, System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package us.kbase.auth.client.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+/** A cache tier between the in-process caches of an {@link us.kbase.auth.client.AuthClient}
+ * and the auth service, usually shared with other clients. When a token or user name is not
+ * in the client's in-process caches, the client checks the second level cache before
+ * contacting the auth service, and adds the results from the auth service to both.
+ * 
+ * The cache stores token digests, never token strings, mapped to the name of the user that
+ * owns the token and the times the entry and the token expire, and user names mapped to
+ * whether the user exists and the time the entry expires.
+ * 
+ * Methods may be called concurrently and so implementations must be thread safe. Lookups
+ * should not return expired entries, but the client ignores them if they do. The client
+ * treats an exception from any method as if the cache were empty, so an unavailable cache
+ * slows the client but does not cause it to fail.
+ * 
+ * @see InMemorySecondLevelCache
+ * @see SharedTokenCache
+ */
+public interface SecondLevelCache {
+	
+	/** A valid token in a second level cache. */
+	final class CachedToken {
+		
+		private final String user;
+		private final long expires;
+		private final long tokenExpires;
+		
+		/** Create a cached token.
+		 * @param user the name of the user that owns the token.
+		 * @param expires the time the cache entry expires in milliseconds since the epoch.
+		 * @param tokenExpires the time the token expires in milliseconds since the epoch.
+		 */
+		public CachedToken(final String user, final long expires, final long tokenExpires) {
+			if (user == null || user.isEmpty()) {
+				throw new IllegalArgumentException("user cannot be null or empty");
+			}
+			this.user = user;
+			this.expires = expires;
+			this.tokenExpires = tokenExpires;
+		}
+		
+		/** Get the name of the user that owns the token.
+		 * @return the user name.
+		 */
+		public String getUser() {
+			return user;
+		}
+		
+		/** Get the time the cache entry expires.
+		 * @return the expiry time in milliseconds since the epoch.
+		 */
+		public long getExpires() {
+			return expires;
+		}
+		
+		/** Get the time the token expires.
+		 * @return the expiry time in milliseconds since the epoch.
+		 */
+		public long getTokenExpires() {
+			return tokenExpires;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(expires, tokenExpires, user);
+		}
+		
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			final CachedToken other = (CachedToken) obj;
+			return expires == other.expires && tokenExpires == other.tokenExpires
+					&& user.equals(other.user);
+		}
+	}
+	
+	/** A user name in a second level cache. */
+	final class CachedUser {
+		
+		private final boolean exists;
+		private final long expires;
+		
+		/** Create a cached user name.
+		 * @param exists whether the user exists.
+		 * @param expires the time the cache entry expires in milliseconds since the epoch.
+		 */
+		public CachedUser(final boolean exists, final long expires) {
+			this.exists = exists;
+			this.expires = expires;
+		}
+		
+		/** Get whether the user exists.
+		 * @return true if the user exists.
+		 */
+		public boolean exists() {
+			return exists;
+		}
+		
+		/** Get the time the cache entry expires.
+		 * @return the expiry time in milliseconds since the epoch.
+		 */
+		public long getExpires() {
+			return expires;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(exists, expires);
+		}
+		
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			final CachedUser other = (CachedUser) obj;
+			return exists == other.exists && expires == other.expires;
+		}
+	}
+	
+	/** Get tokens from the cache.
+	 * @param digests the digests of the tokens.
+	 * @return the cached tokens by digest. Tokens not in the cache are omitted.
+	 * @throws IOException if the cache could not be read.
+	 */
+	Map<TokenDigest, CachedToken> getTokens(Collection<TokenDigest> digests) throws IOException;
+	
+	/** Add tokens to the cache, replacing any existing entries.
+	 * @param tokens the tokens by digest.
+	 * @throws IOException if the cache could not be written.
+	 */
+	void putTokens(Map<TokenDigest, CachedToken> tokens) throws IOException;
+	
+	/** Remove tokens from the cache.
+	 * @param digests the digests of the tokens.
+	 * @throws IOException if the cache could not be written.
+	 */
+	void removeTokens(Collection<TokenDigest> digests) throws IOException;
+	
+	/** Get user names from the cache.
+	 * @param users the user names.
+	 * @return the cached user names. User names not in the cache are omitted.
+	 * @throws IOException if the cache could not be read.
+	 */
+	Map<String, CachedUser> getUsers(Collection<String> users) throws IOException;
+	
+	/** Add user names to the cache, replacing any existing entries.
+	 * @param users the user names.
+	 * @throws IOException if the cache could not be written.
+	 */
+	void putUsers(Map<String, CachedUser> users) throws IOException;
+}
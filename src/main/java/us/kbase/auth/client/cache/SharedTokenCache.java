@@ -0,0 +1,431 @@
+package us.kbase.auth.client.cache;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import us.kbase.auth.AuthToken;
+
+/**
+ * A {@link SecondLevelCache} of valid tokens in a memory mapped file, shared between the
+ * processes on a host. A token validated by one process is not validated again by the other
+ * processes using the same file until its cache lifetime ends. User names are not shared.
+ * 
+ * The file holds a fixed number of slots, each containing a token digest, the user name, and
+ * the times the cache entry and the token expire. Token strings are never stored. A token
+ * maps to a small window of slots; when the window is full the entry that expires soonest is
+ * replaced.
+ * 
+ * Slots are claimed without locks by atomically incrementing a version number in the slot,
+ * and readers retry if the version changes while they read. A process that dies while writing
+ * a slot leaves that slot unusable until the file is deleted.
+ * 
+ * Any process that can write the file can add tokens to the cache for any user, so it must
+ * only be writable by trusted processes. On POSIX file systems a new file is only readable and
+ * writable by its owner, and an existing file is rejected unless it is owned by the current
+ * user and is not writable by the group or other users.
+ * 
+ * User names longer than {@link #MAX_USER_NAME_BYTES} bytes are not cached.
+ * 
+ * This class is thread safe.
+ */
+public class SharedTokenCache implements SecondLevelCache {
+	
+	/** The maximum length of a user name in UTF-8 bytes. */
+	public static final int MAX_USER_NAME_BYTES = 198;
+	
+	/* File format, in native byte order:
+	 * header: long magic, int version, int slot count, padded to 64 bytes
+	 * slots of 256 bytes: long slot version, odd while the slot is being written,
+	 *     4 longs digest, long cache expiry, long token expiry, short user name length (0 if
+	 *     the slot is empty), user name bytes.
+	 */
+	private static final long MAGIC = 0x4B42415554484341L; // KBAUTHCA
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 256;
+	private static final int DIGEST = 8;
+	private static final int EXPIRES = 40;
+	private static final int TOKEN_EXPIRES = 48;
+	private static final int NAME_LEN = 56;
+	private static final int NAME = 58;
+	// the number of slots a token may occupy
+	private static final int WINDOW = 8;
+	private static final int READ_ATTEMPTS = 4;
+	private static final int CLEAR_ATTEMPTS = 1000;
+	// file locks are held by the JVM, so threads in the same JVM must not lock concurrently.
+	// Not a monitor, which would pin a virtual thread to its carrier during the file I/O
+	private static final ReentrantLock INIT_LOCK = new ReentrantLock();
+	
+	/** The maximum number of slots in a file. */
+	public static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+	
+	private final Path file;
+	private final MappedByteBuffer buf;
+	private final MappedAtomics atomics;
+	private final int slots;
+	private final Clock clock;
+	
+	/** Open or create a shared token cache. If the file exists, the number of slots must match
+	 * the file.
+	 * @param file the file backing the cache.
+	 * @param slots the number of slots in the file. Each slot is 256 bytes.
+	 * @throws IOException if the file could not be opened or created, is not a shared token
+	 * cache with the given number of slots, or may have been written by another user.
+	 */
+	public SharedTokenCache(final Path file, final int slots) throws IOException {
+		this(file, slots, Clock.systemUTC());
+	}
+	
+	/** Open or create a shared token cache with a custom clock, usually for testing purposes.
+	 * @param file the file backing the cache.
+	 * @param slots the number of slots in the file. Each slot is 256 bytes.
+	 * @param clock the clock to use to determine if entries have expired.
+	 * @throws IOException if the file could not be opened or created, is not a shared token
+	 * cache with the given number of slots, or may have been written by another user.
+	 */
+	public SharedTokenCache(final Path file, final int slots, final Clock clock)
+			throws IOException {
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
+		if (slots < WINDOW || slots > MAX_SLOTS) {
+			throw new IllegalArgumentException(String.format(
+					"slots must be between %s and %s", WINDOW, MAX_SLOTS));
+		}
+		this.file = file;
+		this.slots = slots;
+		this.clock = clock;
+		create(file);
+		INIT_LOCK.lock();
+		try {
+			buf = open();
+		} finally {
+			INIT_LOCK.unlock();
+		}
+		atomics = MappedAtomics.forBuffer(buf);
+	}
+	
+	private MappedByteBuffer open() throws IOException {
+		final long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		try (final FileChannel fc = FileChannel.open(
+				file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// only one process initializes the file
+			final FileLock lock = fc.lock();
+			try {
+				// the file may have been created by another user, e.g. in /tmp
+				CacheSnapshot.checkOwner(file, "Shared token cache");
+				if (fc.size() == 0) {
+					final MappedByteBuffer b = map(fc, size);
+					b.putInt(8, FILE_VERSION);
+					b.putInt(12, slots);
+					b.putLong(0, MAGIC);
+					b.force();
+					return b;
+				}
+				if (fc.size() < HEADER_SIZE) {
+					throw new IOException("Not a shared token cache: " + file);
+				}
+				final MappedByteBuffer b = map(fc, HEADER_SIZE);
+				if (b.getLong(0) != MAGIC) {
+					throw new IOException("Not a shared token cache: " + file);
+				}
+				final int version = b.getInt(8);
+				if (version != FILE_VERSION) {
+					throw new IOException(String.format(
+							"Unsupported shared token cache version %s: %s", version, file));
+				}
+				if (b.getInt(12) != slots || fc.size() != size) {
+					throw new IOException(String.format(
+							"Shared token cache %s does not have %s slots", file, slots));
+				}
+				return map(fc, size);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+	
+	private static void create(final Path file) throws IOException {
+		try {
+			try {
+				Files.createFile(file, PosixFilePermissions.asFileAttribute(
+						PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				Files.createFile(file); // not POSIX
+			}
+		} catch (FileAlreadyExistsException e) {
+			// another process created the file
+		}
+	}
+	
+	private static MappedByteBuffer map(final FileChannel fc, final long size)
+			throws IOException {
+		final MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		b.order(ByteOrder.nativeOrder());
+		return b;
+	}
+	
+	/** Get the number of slots in the cache.
+	 * @return the number of slots.
+	 */
+	public int getSlots() {
+		return slots;
+	}
+	
+	/** Get a token from the cache. Returns null if the cache does not contain the token or
+	 * the cache entry has expired.
+	 * @param token the token string.
+	 * @return the token.
+	 */
+	public AuthToken getToken(final String token) {
+		checkToken(token);
+		final CachedToken t = get(TokenDigest.of(token));
+		return t == null ? null : new AuthToken(token, t.getUser());
+	}
+	
+	@Override
+	public Map<TokenDigest, CachedToken> getTokens(final Collection<TokenDigest> digests) {
+		final Map<TokenDigest, CachedToken> ret = new HashMap<>();
+		for (final TokenDigest d: digests) {
+			final CachedToken t = get(d);
+			if (t != null) {
+				ret.put(d, t);
+			}
+		}
+		return ret;
+	}
+	
+	private CachedToken get(final TokenDigest d) {
+		final long d0 = d.getLong(0);
+		final long d1 = d.getLong(1);
+		final long d2 = d.getLong(2);
+		final long d3 = d.getLong(3);
+		final long now = clock.millis();
+		final int home = home(d0);
+		for (int i = 0; i < WINDOW; i++) {
+			final int off = offset(home, i);
+			for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+				final long v = atomics.getVolatile(off);
+				if ((v & 1) == 1) {
+					continue; // being written
+				}
+				if (!matches(off, d0, d1, d2, d3)) {
+					atomics.loadFence();
+					if (atomics.getVolatile(off) == v) {
+						break; // a different token
+					}
+					continue;
+				}
+				final long expires = buf.getLong(off + EXPIRES);
+				final long tokenExpires = buf.getLong(off + TOKEN_EXPIRES);
+				final int len = buf.getShort(off + NAME_LEN);
+				final byte[] name = len < 1 || len > MAX_USER_NAME_BYTES ? null : new byte[len];
+				for (int j = 0; name != null && j < len; j++) {
+					name[j] = buf.get(off + NAME + j);
+				}
+				atomics.loadFence();
+				if (atomics.getVolatile(off) != v) {
+					continue;
+				}
+				if (name == null || now > expires || now >= tokenExpires) {
+					return null;
+				}
+				return new CachedToken(
+						new String(name, StandardCharsets.UTF_8), expires, tokenExpires);
+			}
+		}
+		return null;
+	}
+	
+	/** Add a token to the cache. This method assumes the token is valid. If the slots for the
+	 * token are being written by other threads or processes the token is not added.
+	 * @param token the token.
+	 * @param expires the time the cache entry expires in milliseconds since the epoch.
+	 * @param tokenExpires the time the token expires in milliseconds since the epoch.
+	 */
+	public void putToken(final AuthToken token, final long expires, final long tokenExpires) {
+		if (token == null) {
+			throw new NullPointerException("token");
+		}
+		put(TokenDigest.of(token.getToken()), token.getUserName(), expires, tokenExpires);
+	}
+	
+	@Override
+	public void putTokens(final Map<TokenDigest, CachedToken> tokens) {
+		for (final Map.Entry<TokenDigest, CachedToken> e: tokens.entrySet()) {
+			final CachedToken t = e.getValue();
+			put(e.getKey(), t.getUser(), t.getExpires(), t.getTokenExpires());
+		}
+	}
+	
+	private void put(
+			final TokenDigest d,
+			final String user,
+			final long expires,
+			final long tokenExpires) {
+		final byte[] name = user.getBytes(StandardCharsets.UTF_8);
+		if (name.length <= MAX_USER_NAME_BYTES) {
+			put(d, name, expires, tokenExpires);
+		}
+	}
+	
+	private void put(
+			final TokenDigest d,
+			final byte[] name,
+			final long expires,
+			final long tokenExpires) {
+		final long d0 = d.getLong(0);
+		final long d1 = d.getLong(1);
+		final long d2 = d.getLong(2);
+		final long d3 = d.getLong(3);
+		final long now = clock.millis();
+		final int home = home(d0);
+		// use the slot with the same token, or else an empty or expired slot, or else the slot
+		// that expires soonest
+		int target = -1;
+		long targetExpires = Long.MAX_VALUE;
+		for (int i = 0; i < WINDOW; i++) {
+			final int off = offset(home, i);
+			if (matches(off, d0, d1, d2, d3)) {
+				target = off;
+				break;
+			}
+			final long e = buf.getShort(off + NAME_LEN) == 0 ?
+					Long.MIN_VALUE : buf.getLong(off + EXPIRES);
+			if (e < targetExpires) {
+				target = off;
+				targetExpires = e < now ? Long.MIN_VALUE : e;
+			}
+		}
+		if (target < 0) {
+			return;
+		}
+		final long v = atomics.getVolatile(target);
+		if ((v & 1) == 1 || !atomics.compareAndSet(target, v, v + 1)) {
+			return; // another writer has the slot
+		}
+		buf.putLong(target + DIGEST, d0);
+		buf.putLong(target + DIGEST + 8, d1);
+		buf.putLong(target + DIGEST + 16, d2);
+		buf.putLong(target + DIGEST + 24, d3);
+		buf.putLong(target + EXPIRES, expires);
+		buf.putLong(target + TOKEN_EXPIRES, tokenExpires);
+		buf.putShort(target + NAME_LEN, (short) name.length);
+		for (int i = 0; i < name.length; i++) {
+			buf.put(target + NAME + i, name[i]);
+		}
+		atomics.setRelease(target, v + 2);
+	}
+	
+	/** Remove a token from the cache.
+	 * @param token the token string.
+	 */
+	public void removeToken(final String token) {
+		checkToken(token);
+		remove(TokenDigest.of(token));
+	}
+	
+	@Override
+	public void removeTokens(final Collection<TokenDigest> digests) {
+		for (final TokenDigest d: digests) {
+			remove(d);
+		}
+	}
+	
+	private void remove(final TokenDigest d) {
+		final long d0 = d.getLong(0);
+		final long d1 = d.getLong(1);
+		final long d2 = d.getLong(2);
+		final long d3 = d.getLong(3);
+		final int home = home(d0);
+		for (int i = 0; i < WINDOW; i++) {
+			final int off = offset(home, i);
+			if (matches(off, d0, d1, d2, d3)) {
+				clear(off, d0, d1, d2, d3);
+			}
+		}
+	}
+	
+	/* Removals must not be lost, so retry while another writer holds the slot. If the slot
+	 * is still held after the retries, the writer is replacing the token or has died, in which
+	 * case the slot is never read again.
+	 */
+	private void clear(final int off, final long d0, final long d1, final long d2, final long d3) {
+		for (int attempt = 0; attempt < CLEAR_ATTEMPTS; attempt++) {
+			final long v = atomics.getVolatile(off);
+			if ((v & 1) == 0 && atomics.compareAndSet(off, v, v + 1)) {
+				if (matches(off, d0, d1, d2, d3)) {
+					buf.putShort(off + NAME_LEN, (short) 0);
+					for (int j = 0; j < 4; j++) {
+						buf.putLong(off + DIGEST + j * 8, 0);
+					}
+				}
+				atomics.setRelease(off, v + 2);
+				return;
+			}
+			Thread.yield();
+		}
+	}
+	
+	private boolean matches(
+			final int off,
+			final long d0,
+			final long d1,
+			final long d2,
+			final long d3) {
+		return buf.getLong(off + DIGEST) == d0 && buf.getLong(off + DIGEST + 8) == d1
+				&& buf.getLong(off + DIGEST + 16) == d2 && buf.getLong(off + DIGEST + 24) == d3;
+	}
+	
+	/** User names are not shared, so always returns an empty map.
+	 * @param users the user names.
+	 * @return an empty map.
+	 */
+	@Override
+	public Map<String, CachedUser> getUsers(final Collection<String> users) {
+		return Collections.emptyMap();
+	}
+	
+	/** User names are not shared, so does nothing.
+	 * @param users the user names.
+	 */
+	@Override
+	public void putUsers(final Map<String, CachedUser> users) {
+		// nothing to do
+	}
+	
+	private static void checkToken(final String token) {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException(
+					"token cannot be null or empty");
+		}
+	}
+	
+	// maps the top half of the first long of the uniformly distributed digest to a slot
+	private int home(final long d0) {
+		return (int) (((d0 >>> 32) * slots) >>> 32);
+	}
+	
+	private int offset(final int home, final int i) {
+		final int slot = home + i;
+		return HEADER_SIZE + (slot >= slots ? slot - slots : slot) * SLOT_SIZE;
+	}
+}
@@ -1,10 +1,12 @@
 package us.kbase.auth.client.cache;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
+import java.time.Clock;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+
+import us.kbase.auth.client.metrics.Metrics;
 
 /**
  * Caches strings with an expiry time.
@@ -13,13 +15,16 @@ import java.util.concurrent.ConcurrentHashMap;
  * allowed size. Strings are then ordered by most recent access and the oldest
  * strings are discarded to return the cache to its nominal size.
  * 
+ * As for the {@link TokenCache}, eviction is amortized O(1) per insertion and threads
+ * adding strings do not wait for an eviction in progress.
+ * 
  * This class is thread safe.
  * 
  * @author gaprice@lbl.gov
  *
  */
 public class StringCache {
-	// is there some way to share code with tokencache? Doesn't seem so...
+	// eviction code is shared with the token cache in Evictor
 	
 	// TODO CODE replace this with Caffeine.
 	
@@ -28,13 +33,14 @@ public class StringCache {
 	 */
 	final public static long EXPIRY = 24 * 60 * 60;
 	
-	final private static int ADDED = 0;
-	final private static int TOUCHED = 1;
-	
 	final private int size;
 	final private int maxsize;
 	private long expiry = EXPIRY;
-	final private ConcurrentHashMap<String, List<Date>> cache;
+	final private ConcurrentHashMap<String, StringEntry> cache;
+	final private ReentrantLock evictionLock = new ReentrantLock();
+	final private Clock clock;
+	private volatile Metrics metrics = Metrics.NOOP;
+	private volatile Metrics.Cache metricsName = Metrics.Cache.USER;
 	
 	/**
 	 * Create a new StringCache.
@@ -42,6 +48,19 @@ public class StringCache {
 	 * @param maxsize the maximum size of the cache in strings
 	 */
 	public StringCache(int size, int maxsize) {
+		this(size, maxsize, Clock.systemUTC());
+	}
+	
+	/**
+	 * Create a new StringCache with a custom clock, usually for testing purposes.
+	 * @param size the nominal size of the cache in strings, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in strings
+	 * @param clock the clock to use to determine string ages.
+	 */
+	public StringCache(final int size, final int maxsize, final Clock clock) {
+		if (clock == null) {
+			throw new NullPointerException("clock");
+		}
 		if (size < 1 || maxsize < 1) {
 			throw new IllegalArgumentException("size and maxsize must be > 0");
 		}
@@ -50,7 +69,8 @@ public class StringCache {
 		}
 		this.size = size;
 		this.maxsize = maxsize;
-		this.cache = new ConcurrentHashMap<String, List<Date>>(maxsize);
+		this.cache = new ConcurrentHashMap<String, StringEntry>(maxsize);
+		this.clock = clock;
 	}
 	
 	/**
@@ -72,6 +92,23 @@ public class StringCache {
 		return expiry;
 	}
 	
+	/**
+	 * Set the metrics to which the cache reports hits, misses, expiries and evictions.
+	 * By default metrics are discarded.
+	 * @param metrics the metrics.
+	 * @param cache the name under which the cache reports metrics.
+	 */
+	public void setMetrics(final Metrics metrics, final Metrics.Cache cache) {
+		if (metrics == null) {
+			throw new NullPointerException("metrics");
+		}
+		if (cache == null) {
+			throw new NullPointerException("cache");
+		}
+		this.metricsName = cache;
+		this.metrics = metrics;
+	}
+	
 	/**
 	 * Determine whether a string is in the cache. Does not reset the
 	 * expiration time for the string.
@@ -83,19 +120,23 @@ public class StringCache {
 		if (string == null) {
 			throw new NullPointerException("string cannot be null");
 		}
-		if (!cache.containsKey(string)) {
+		final Metrics m = metrics;
+		final StringEntry e = cache.get(string);
+		if (e == null) {
+			m.cacheMiss(metricsName);
 			return false;
 		}
-		if (new Date().getTime() - cache.get(string).get(ADDED).getTime() > expiry * 1000) {
+		final long now = clock.millis();
+		if (now - e.added > expiry * 1000) {
+			m.cacheExpiry(metricsName);
+			m.cacheMiss(metricsName);
 			return false;
 		}
-		final List<Date> dates = new ArrayList<Date>(2);
-		dates.add(ADDED, cache.get(string).get(ADDED));
-		dates.add(TOUCHED, new Date());
-		cache.put(string, dates);
+		e.touched = now;
+		m.cacheHit(metricsName);
 		return true;
 	}
-		
+	
 	/**
 	 * Add a string to the cache. Resets the expiration time for the string.
 	 * @param string the string to add
@@ -104,37 +145,83 @@ public class StringCache {
 		if (string == null) {
 			throw new NullPointerException("string cannot be null");
 		}
-		final Date now = new Date();
-		final List<Date> dates = new ArrayList<Date>(2);
-		dates.add(ADDED, now);
-		dates.add(TOUCHED, now);
-		cache.put(string, dates);
-		synchronized (cache) { // block here otherwise all threads may start sorting
-			if (cache.size() <= maxsize) {return;}
-			final List<DateString> ds = new ArrayList<DateString>();
-			for (final String s: cache.keySet()) {
-				ds.add(new DateString(cache.get(s).get(TOUCHED), s));
+		final long now = clock.millis();
+		cache.put(string, new StringEntry(now, now));
+		evictIfFull();
+	}
+	
+	/**
+	 * Add a string retrieved from another cache to the cache. The string expires at the given
+	 * time, or after the expiry time of this cache if that is sooner.
+	 * @param string the string to add.
+	 * @param expires the time the string expires in milliseconds since the epoch.
+	 */
+	public void putString(final String string, final long expires) {
+		if (string == null) {
+			throw new NullPointerException("string cannot be null");
+		}
+		final long now = clock.millis();
+		final long added = added(now, expires);
+		if (now - added <= expiry * 1000) {
+			// the entry is new, so it's the last to be evicted regardless of when it expires
+			cache.put(string, new StringEntry(added, now));
+			evictIfFull();
+		}
+	}
+	
+	// the time to record as the time a string was added so that it expires at the given time
+	private long added(final long now, final long expires) {
+		return Math.min(expires, now + expiry * 1000) - expiry * 1000;
+	}
+	
+	/* Visit the unexpired strings in the cache with the times they expire. */
+	void visitEntries(final ObjLongConsumer<String> visitor) {
+		final long now = clock.millis();
+		for (final Map.Entry<String, StringEntry> e: cache.entrySet()) {
+			final long expires = e.getValue().added + expiry * 1000;
+			if (expires >= now) {
+				visitor.accept(e.getKey(), expires);
 			}
-			Collections.sort(ds);
-			for(int i = size; i < ds.size(); i++) {
-				cache.remove(ds.get(i).string);
+		}
+	}
+	
+	/* Add a string from a snapshot that expires at the given time, or after the current
+	 * expiry time if that is sooner. Returns false if the string has expired or is already
+	 * cached.
+	 */
+	boolean loadString(final String string, final long expires) {
+		final long now = clock.millis();
+		final long added = added(now, expires);
+		if (now - added > expiry * 1000) {
+			return false;
+		}
+		if (cache.putIfAbsent(string, new StringEntry(added, now)) != null) {
+			return false;
+		}
+		evictIfFull();
+		return true;
+	}
+	
+	private void evictIfFull() {
+		if (cache.size() > maxsize) {
+			final long start = System.nanoTime();
+			final int evicted = Evictor.evict(
+					cache, size, maxsize, e -> e.touched, evictionLock);
+			if (evicted > 0) {
+				metrics.cacheEviction(metricsName, evicted, System.nanoTime() - start);
 			}
 		}
 	}
 }
 
-class DateString implements Comparable<DateString>{
-
-	final String string;
-	final Date date;
+class StringEntry {
 	
-	DateString(Date date, String string) {
-		this.string = string;
-		this.date = date;
-	}
+	final long added;
+	// updated in place on access
+	volatile long touched;
 	
-	@Override
-	public int compareTo(DateString ds) {
-		return - this.date.compareTo(ds.date); //descending
+	StringEntry(final long added, final long touched) {
+		this.added = added;
+		this.touched = touched;
 	}
 }
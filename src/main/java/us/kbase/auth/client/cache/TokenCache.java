@@ -1,32 +1,42 @@
 package us.kbase.auth.client.cache;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.metrics.Metrics;
 
 /**
- * Caches tokens to avoid network queries to the token provider.
+ * Caches tokens to avoid network queries to the token provider. The cache behavior and
+ * configuration are described in {@link AbstractTokenCache}.
  * 
- * Tokens are cached for 5 minutes.
+ * Eviction is O(n) in the size of the cache, but only occurs once every
+ * maxsize - size insertions, so the amortized cost per insertion is constant for a
+ * fixed ratio of size to maxsize. Only one thread evicts at a time; other threads
+ * adding tokens do not wait for eviction to complete.
  * 
- * Tokens are stored until the size of the cache is greater than the maximum
- * allowed size. Tokens are then ordered by most recent access and the oldest
- * tokens are discarded to return the cache to its nominal size.
+ * Retrieving a cached token does not allocate memory once the calling thread has warmed up,
+ * other than a small lookup key on virtual threads.
+ * 
+ * The cache keeps an index of the cached tokens by user name, so {@link #removeUser(String)}
+ * is proportional to the number of tokens cached for the user rather than the size of the
+ * cache.
  * 
  * This class is thread safe.
  * 
  * @author gaprice@lbl.gov
- *
+ * 
  */
-public class TokenCache {
+public class TokenCache extends AbstractTokenCache {
 	
 	// TODO CODE replace this with Caffeine.
 	
@@ -34,14 +44,15 @@ public class TokenCache {
 	 * char[] can be wiped when it's no longer needed. But since they're going
 	 * over the wire they're probably already strings or will be converted to
 	 * Strings at some point or another.
+	 * The cache keeps a reference to the AuthToken, and therefore the token string, so it can
+	 * be returned without allocating a new AuthToken. The keys are token digests.
 	 */
 	
-	// only non-final so can be tested via reflection.
-	private static int MAX_AGE_MS = 5 * 60 * 1000; // 5 min
-	
-	final private int size;
-	final private int maxsize;
-	final private Map<String, UserDate> cache;
+	final private Map<TokenDigest, TokenEntry> cache;
+	// the digests of the cached tokens by user name. May contain digests that are no longer
+	// cached for the user, but always contains the digests that are once the put completes.
+	final private Map<String, Set<TokenDigest>> userTokens = new ConcurrentHashMap<>();
+	final private ReentrantLock evictionLock = new ReentrantLock();
 	
 	/**
 	 * Create a new TokenCache.
@@ -49,101 +60,252 @@ public class TokenCache {
 	 * @param maxsize the maximum size of the cache in tokens
 	 */
 	public TokenCache(int size, int maxsize) {
-		if (size < 1 || maxsize < 1) {
-			throw new IllegalArgumentException("size and maxsize must be > 0");
+		this(size, maxsize, Clock.systemUTC());
+	}
+	
+	/**
+	 * Create a new TokenCache with a custom clock, usually for testing purposes.
+	 * @param size the nominal size of the cache in tokens, which must be &lt; maxsize
+	 * @param maxsize the maximum size of the cache in tokens
+	 * @param clock the clock to use to determine token ages.
+	 */
+	public TokenCache(final int size, final int maxsize, final Clock clock) {
+		super(size, maxsize, clock);
+		cache = new ConcurrentHashMap<TokenDigest, TokenEntry>(maxsize);
+	}
+	
+	@Override
+	public AuthToken getToken(final String token, final Refresher refresher) {
+		checkToken(token);
+		final Metrics m = metrics;
+		final TokenEntry te = cache.get(TokenDigest.lookup(token));
+		if (te == null) {
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		final long now = clock.millis();
+		if (now > te.expires) {
+			m.cacheExpiry(metricsName);
+			m.cacheMiss(metricsName);
+			return null;
+		}
+		// guard against the astronomically unlikely case of a digest collision
+		if (te.token != null && !te.token.getToken().equals(token)) {
+			m.cacheMiss(metricsName);
+			return null;
 		}
-		if (size >= maxsize) {
-			throw new IllegalArgumentException("size must be < maxsize");
+		m.cacheHit(metricsName);
+		final TokenEntry e = te.token == null ? restore(te, token) : te;
+		if (refresher != null && now >= e.refreshAt && e.claimRefresh()) {
+			refresher.refresh(e.token);
 		}
-		this.size = size;
-		this.maxsize = maxsize;
-		cache = new ConcurrentHashMap<String, UserDate>(maxsize);
+		return e.token;
 	}
 	
-	/** Get a token from the cache given its string. Returns null if the 
-	 * cache does not contain the token.
-	 * @param token the token string.
-	 * @return an AuthToken.
+	@Override
+	void putCached(
+			final TokenDigest digest,
+			final AuthToken token,
+			final long now,
+			final long cacheUntil,
+			final long tokenExpires) {
+		put(digest, new TokenEntry(
+				token, now, cacheUntil, tokenExpires, refreshAt(now, cacheUntil)));
+	}
+	
+	/* Entries loaded from a snapshot do not contain the token string. Replace the entry with one
+	 * that does the first time the token is retrieved.
 	 */
-	public AuthToken getToken(final String token) {
-		if (token == null || token.isEmpty()) {
-			throw new IllegalArgumentException(
-					"token cannot be null or empty");
+	private TokenEntry restore(final TokenEntry te, final String token) {
+		final TokenEntry e = new TokenEntry(new AuthToken(token, te.user),
+				te.date, te.expires, te.tokenExpires, te.refreshAt);
+		cache.replace(TokenDigest.of(token), te, e);
+		return e;
+	}
+	
+	@Override
+	public AuthToken getStaleToken(final String token, final long graceMS) {
+		checkToken(token);
+		if (graceMS < 0) {
+			throw new IllegalArgumentException("graceMS must be >= 0");
 		}
-		final UserDate ud = cache.get(getTokenDigest(token));
-		if (ud == null) {
+		final TokenEntry te = cache.get(TokenDigest.lookup(token));
+		if (te == null || (te.token != null && !te.token.getToken().equals(token))) {
 			return null;
 		}
-		if (new Date().getTime() - ud.date > MAX_AGE_MS) {
+		final long now = clock.millis();
+		if (now > saturatedAdd(te.expires, graceMS) || now >= te.tokenExpires) {
 			return null;
 		}
-		return new AuthToken(token, ud.user);
+		return te.token == null ? new AuthToken(token, te.user) : te.token;
 	}
 	
-	private String getTokenDigest(final String token) {
-		final MessageDigest digest;
-		try {
-			digest = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Pretty sure SHA-256 is known, " +
-					"something is very broken here", e);
+	@Override
+	public void removeToken(final String token) {
+		checkToken(token);
+		final TokenDigest d = TokenDigest.of(token);
+		final TokenEntry te = cache.remove(d);
+		if (te != null) {
+			unindex(te.user, d);
 		}
-		final byte[] d = digest.digest(token.getBytes(StandardCharsets.UTF_8));
-		final StringBuilder sb = new StringBuilder();
-		for (final byte b : d) {
-			sb.append(String.format("%02x", b));
+	}
+	
+	@Override
+	public Collection<TokenDigest> removeUser(final String user) {
+		checkUser(user);
+		final Set<TokenDigest> digests = userTokens.remove(user);
+		if (digests == null) {
+			return Collections.emptyList();
+		}
+		final List<TokenDigest> removed = new ArrayList<>(digests.size());
+		for (final TokenDigest d: digests) {
+			final TokenEntry te = cache.get(d);
+			// the index may be stale, so check the entry is the user's
+			if (te != null && te.user.equals(user) && cache.remove(d, te)) {
+				removed.add(d);
+			}
 		}
-		return sb.toString();
+		return removed;
 	}
 	
-	/**
-	 * Add a token to the cache. This method assumes the token is valid.
-	 * @param token the token to add
+	@Override
+	public void removeAll() {
+		for (final Map.Entry<TokenDigest, TokenEntry> e: cache.entrySet()) {
+			if (cache.remove(e.getKey(), e.getValue())) {
+				unindex(e.getValue().user, e.getKey());
+			}
+		}
+	}
+	
+	private void put(final TokenDigest digest, final TokenEntry entry) {
+		final TokenEntry old = cache.put(digest, entry);
+		if (old == null || !old.user.equals(entry.user)) {
+			index(entry.user, digest);
+			if (old != null) {
+				unindex(old.user, digest);
+			}
+		}
+		evictIfFull();
+	}
+	
+	private void index(final String user, final TokenDigest digest) {
+		userTokens.compute(user, (u, digests) -> {
+			final Set<TokenDigest> ret = digests == null ? new HashSet<>() : digests;
+			ret.add(digest);
+			return ret;
+		});
+	}
+	
+	/* Remove a digest from a user's index entry unless the digest is cached for the user, which
+	 * happens if the token was added again after it was removed.
 	 */
-	public void putValidToken(AuthToken token) {
+	private void unindex(final String user, final TokenDigest digest) {
+		userTokens.computeIfPresent(user, (u, digests) -> {
+			final TokenEntry te = cache.get(digest);
+			if (te == null || !te.user.equals(user)) {
+				digests.remove(digest);
+			}
+			return digests.isEmpty() ? null : digests;
+		});
+	}
+	
+	@Override
+	void visitEntries(final EntryVisitor visitor) {
+		final long now = clock.millis();
+		for (final Map.Entry<TokenDigest, TokenEntry> e: cache.entrySet()) {
+			final TokenEntry te = e.getValue();
+			if (te.expires >= now) {
+				visitor.visit(e.getKey(), te.user, te.expires, te.tokenExpires);
+			}
+		}
+	}
+	
+	@Override
+	boolean loadEntry(
+			final TokenDigest digest,
+			final String user,
+			final long expires,
+			final long tokenExpires) {
+		final long now = clock.millis();
+		final long cacheUntil = loadedCacheUntil(now, expires, tokenExpires);
+		if (cacheUntil <= now) {
+			return false;
+		}
+		final TokenEntry te = new TokenEntry(
+				null, user, now, cacheUntil, tokenExpires, refreshAt(now, cacheUntil));
+		if (cache.putIfAbsent(digest, te) != null) {
+			return false;
+		}
+		index(user, digest);
+		evictIfFull();
+		return true;
+	}
+	
+	@Override
+	public void putValidToken(final AuthToken token, final long expires) {
 		if (token == null) {
 			throw new NullPointerException("token cannot be null");
 		}
-		cache.put(getTokenDigest(token.getToken()),
-				new UserDate(token.getUserName()));
-		synchronized (cache) { // block here otherwise all threads may start sorting
-			if (cache.size() <= maxsize) {
-				return;
-			}
-			List<DateToken> dts = new ArrayList<DateToken>();
-			for (String s: cache.keySet()) {
-				dts.add(new DateToken(cache.get(s).date, s));
-			}
-			Collections.sort(dts);
-			for(int i = size; i < dts.size(); i++) {
-				cache.remove(dts.get(i).tokenHash);
+		final long now = clock.millis();
+		final long cacheUntil = cacheUntil(now, expires);
+		if (cacheUntil <= now) {
+			return;
+		}
+		put(TokenDigest.of(token.getToken()),
+				new TokenEntry(token, now, cacheUntil, expires, refreshAt(now, cacheUntil)));
+	}
+	
+	private void evictIfFull() {
+		if (cache.size() > maxsize) {
+			final long start = System.nanoTime();
+			final int evicted = Evictor.evict(cache, size, maxsize, te -> te.date, evictionLock,
+					(d, te) -> unindex(te.user, d));
+			if (evicted > 0) {
+				metrics.cacheEviction(metricsName, evicted, System.nanoTime() - start);
 			}
 		}
 	}
 }
 
-class UserDate {
-	String user;
-	long date;
+class TokenEntry {
 	
-	UserDate(String user) {
-		this.user = user;
-		this.date = new Date().getTime();
+	private static final AtomicIntegerFieldUpdater<TokenEntry> REFRESHING =
+			AtomicIntegerFieldUpdater.newUpdater(TokenEntry.class, "refreshing");
+	
+	final AuthToken token; // null if loaded from a snapshot
+	final String user;
+	final long date;
+	final long expires;
+	final long tokenExpires;
+	final long refreshAt;
+	private volatile int refreshing = 0;
+	
+	TokenEntry(
+			final AuthToken token,
+			final long date,
+			final long expires,
+			final long tokenExpires,
+			final long refreshAt) {
+		this(token, token.getUserName(), date, expires, tokenExpires, refreshAt);
 	}
-}
-
-class DateToken implements Comparable<DateToken>{
-
-	final String tokenHash;
-	final Date date;
 	
-	DateToken(long date, String token) {
-		this.tokenHash = token;
-		this.date = new Date(date);
+	TokenEntry(
+			final AuthToken token,
+			final String user,
+			final long date,
+			final long expires,
+			final long tokenExpires,
+			final long refreshAt) {
+		this.token = token;
+		this.user = user;
+		this.date = date;
+		this.expires = expires;
+		this.tokenExpires = tokenExpires;
+		this.refreshAt = refreshAt;
 	}
 	
-	@Override
-	public int compareTo(DateToken dt) {
-		return -this.date.compareTo(dt.date); //descending
+	// returns true for the first caller only
+	boolean claimRefresh() {
+		return refreshing == 0 && REFRESHING.compareAndSet(this, 0, 1);
 	}
 }
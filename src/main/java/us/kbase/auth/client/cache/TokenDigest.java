@@ -0,0 +1,224 @@
+package us.kbase.auth.client.cache;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** The SHA-256 digest of a token, stored as four longs rather than a hex string.
+ *
+ * Instances are immutable and are suitable for use as map keys.
+ */
+public final class TokenDigest {
+
+	/** The length of a digest in bytes. */
+	public static final int LENGTH = 32;
+
+	private static final ThreadLocal<Digester> DIGESTER =
+			ThreadLocal.withInitial(() -> new Digester());
+
+	/* Virtual threads are too numerous for a digester per thread, so they share a small pool.
+	 * A digest holds its carrier thread, so at most one digester per carrier is in use at once.
+	 */
+	private static final AtomicReferenceArray<Digester> POOL = new AtomicReferenceArray<>(
+			Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1));
+	private static final MethodHandle IS_VIRTUAL = getIsVirtual();
+
+	private final long d0;
+	private final long d1;
+	private final long d2;
+	private final long d3;
+
+	/** Create a digest from its component longs, as returned by {@link #getLong(int)}.
+	 * @param d0 the first 8 bytes of the digest.
+	 * @param d1 the second 8 bytes of the digest.
+	 * @param d2 the third 8 bytes of the digest.
+	 * @param d3 the last 8 bytes of the digest.
+	 */
+	public TokenDigest(final long d0, final long d1, final long d2, final long d3) {
+		this.d0 = d0;
+		this.d1 = d1;
+		this.d2 = d2;
+		this.d3 = d3;
+	}
+
+	/** Compute the digest of a token.
+	 * @param token the token.
+	 * @return the digest.
+	 */
+	public static TokenDigest of(final String token) {
+		return lookup(token).toDigest();
+	}
+
+	/* Compute the digest of a token into a per thread probe without allocating. The probe is
+	 * overwritten by the next call on the same thread, and so must never be stored. Virtual
+	 * threads get a new probe from a pooled digester.
+	 */
+	static DigestProbe lookup(final String token) {
+		if (token == null) {
+			throw new NullPointerException("token");
+		}
+		if (!isVirtual()) {
+			final Digester d = DIGESTER.get();
+			return d.digest(token, d.probe);
+		}
+		final int mask = POOL.length() - 1;
+		final int start = (int) Thread.currentThread().getId();
+		int slot = start & mask;
+		Digester d = null;
+		for (int i = 0; d == null && i <= mask; i++) {
+			slot = (start + i) & mask;
+			d = POOL.getAndSet(slot, null);
+		}
+		if (d == null) {
+			d = new Digester(); // the pool is exhausted
+		}
+		try {
+			return d.digest(token, new DigestProbe());
+		} finally {
+			// if another digester was returned to the slot in the meantime, drop this one
+			POOL.compareAndSet(slot, null, d);
+		}
+	}
+
+	private static boolean isVirtual() {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+		} catch (Throwable e) {
+			throw new RuntimeException("This should be impossible", e);
+		}
+	}
+
+	// Thread.isVirtual() is only available in Java 21+
+	private static MethodHandle getIsVirtual() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(
+					Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/** Get 8 bytes of the digest as a big endian long.
+	 * @param index the index of the long, from 0 to 3.
+	 * @return the bytes.
+	 */
+	public long getLong(final int index) {
+		switch (index) {
+			case 0: return d0;
+			case 1: return d1;
+			case 2: return d2;
+			case 3: return d3;
+			default: throw new IndexOutOfBoundsException("index: " + index);
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		// the digest is already uniformly distributed
+		return (int) (d0 ^ (d0 >>> 32));
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj instanceof DigestProbe) {
+			return obj.equals(this);
+		}
+		if (!(obj instanceof TokenDigest)) {
+			return false;
+		}
+		final TokenDigest other = (TokenDigest) obj;
+		return d0 == other.d0 && d1 == other.d1 && d2 == other.d2 && d3 == other.d3;
+	}
+
+	/** Returns the digest as a hex string. */
+	@Override
+	public String toString() {
+		return String.format("%016x%016x%016x%016x", d0, d1, d2, d3);
+	}
+
+	private static class Digester {
+
+		private final MessageDigest digest;
+		private final byte[] out = new byte[LENGTH];
+		private byte[] in = new byte[256];
+		private final DigestProbe probe = new DigestProbe(); // for the thread local digester
+
+		private Digester() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("Pretty sure SHA-256 is known, " +
+						"something is very broken here", e);
+			}
+		}
+
+		private DigestProbe digest(final String token, final DigestProbe probe) {
+			final int len = encodeUTF8(token);
+			digest.update(in, 0, len);
+			try {
+				digest.digest(out, 0, LENGTH);
+			} catch (DigestException e) {
+				throw new RuntimeException("This should be impossible", e);
+			}
+			probe.d0 = toLong(out, 0);
+			probe.d1 = toLong(out, 8);
+			probe.d2 = toLong(out, 16);
+			probe.d3 = toLong(out, 24);
+			return probe;
+		}
+
+		// equivalent to String.getBytes(StandardCharsets.UTF_8) without the allocation
+		private int encodeUTF8(final String s) {
+			final int chars = s.length();
+			if (in.length < chars * 3) {
+				in = new byte[chars * 3];
+			}
+			int p = 0;
+			for (int i = 0; i < chars; i++) {
+				final char c = s.charAt(i);
+				if (c < 0x80) {
+					in[p++] = (byte) c;
+				} else if (c < 0x800) {
+					in[p++] = (byte) (0xc0 | (c >> 6));
+					in[p++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					final char low = i + 1 < chars ? s.charAt(i + 1) : 0;
+					if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+						final int cp = Character.toCodePoint(c, low);
+						in[p++] = (byte) (0xf0 | (cp >> 18));
+						in[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+						in[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+						in[p++] = (byte) (0x80 | (cp & 0x3f));
+						i++;
+					} else {
+						in[p++] = '?'; // same replacement as String.getBytes()
+					}
+				} else {
+					in[p++] = (byte) (0xe0 | (c >> 12));
+					in[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					in[p++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return p;
+		}
+
+		private static long toLong(final byte[] b, final int offset) {
+			long l = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				l = (l << 8) | (b[i] & 0xff);
+			}
+			return l;
+		}
+	}
+
+}
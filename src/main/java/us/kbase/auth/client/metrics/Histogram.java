@@ -0,0 +1,118 @@
+package us.kbase.auth.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A histogram of non-negative long values with a fixed memory footprint.
+ * 
+ * Values are counted in buckets that are exact below 8 and otherwise span one eighth of a
+ * power of two, so percentiles are accurate to within 12.5%.
+ * 
+ * This class is thread safe. Recording a value does not block or allocate memory.
+ */
+public final class Histogram {
+	
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// enough buckets for Long.MAX_VALUE
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	
+	/** Record a value. Negative values are recorded as 0.
+	 * @param value the value.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// try again
+		}
+	}
+	
+	static int index(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exp = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+		return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	// the largest value in a bucket
+	static long upperBound(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) - 1);
+	}
+	
+	/** Get the number of recorded values.
+	 * @return the count.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/** Get the sum of the recorded values.
+	 * @return the sum.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+	
+	/** Get the largest recorded value.
+	 * @return the maximum, or 0 if no values have been recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/** Get the mean of the recorded values.
+	 * @return the mean, or 0 if no values have been recorded.
+	 */
+	public double getMean() {
+		final long c = getCount();
+		return c == 0 ? 0 : (double) getSum() / c;
+	}
+	
+	/** Get an approximate percentile of the recorded values. The returned value is no smaller
+	 * than the true percentile and no larger than the maximum recorded value.
+	 * @param percentile the percentile, from 0 to 100.
+	 * @return the value at the percentile, or 0 if no values have been recorded.
+	 */
+	public long getPercentile(final double percentile) {
+		if (!(percentile >= 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		final long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax(); // only reachable if values were recorded during the snapshot
+	}
+}
@@ -0,0 +1,193 @@
+package us.kbase.auth.client.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Metrics that are recorded in memory and can be read at any time, for example to expose via
+ * an application's own monitoring.
+ * 
+ * Counters are {@link LongAdder}s, so recording metrics from many threads does not contend.
+ * Latencies, response sizes and eviction durations are recorded in {@link Histogram}s.
+ * 
+ * This class is thread safe.
+ */
+public class InMemoryMetrics implements Metrics {
+	
+	private static final int HIT = 0;
+	private static final int MISS = 1;
+	private static final int EXPIRY = 2;
+	private static final int EVICTION = 3;
+	
+	// cache ordinal -> counter type -> count
+	private final LongAdder[][] cacheCounts = new LongAdder[Cache.values().length][4];
+	private final Histogram[] evictionNanos = new Histogram[Cache.values().length];
+	private final EndpointMetrics[] endpoints = new EndpointMetrics[Endpoint.values().length];
+	
+	private static class EndpointMetrics {
+		
+		private final Histogram latencyNanos = new Histogram();
+		private final Histogram responseBytes = new Histogram();
+		private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+		private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+	}
+	
+	/** Create the metrics. */
+	public InMemoryMetrics() {
+		for (final LongAdder[] counts: cacheCounts) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+		for (int i = 0; i < evictionNanos.length; i++) {
+			evictionNanos[i] = new Histogram();
+		}
+		for (int i = 0; i < endpoints.length; i++) {
+			endpoints[i] = new EndpointMetrics();
+		}
+	}
+	
+	@Override
+	public void cacheHit(final Cache cache) {
+		cacheCounts[cache.ordinal()][HIT].increment();
+	}
+	
+	@Override
+	public void cacheMiss(final Cache cache) {
+		cacheCounts[cache.ordinal()][MISS].increment();
+	}
+	
+	@Override
+	public void cacheExpiry(final Cache cache) {
+		cacheCounts[cache.ordinal()][EXPIRY].increment();
+	}
+	
+	@Override
+	public void cacheEviction(final Cache cache, final int count, final long durationNanos) {
+		cacheCounts[cache.ordinal()][EVICTION].add(count);
+		evictionNanos[cache.ordinal()].record(durationNanos);
+	}
+	
+	@Override
+	public void requestCompleted(
+			final Endpoint endpoint,
+			final int statusCode,
+			final long latencyNanos,
+			final long responseBytes) {
+		final EndpointMetrics em = endpoints[endpoint.ordinal()];
+		em.latencyNanos.record(latencyNanos);
+		em.responseBytes.record(responseBytes);
+		em.statusCodes.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+	}
+	
+	@Override
+	public void requestFailed(
+			final Endpoint endpoint,
+			final Exception error,
+			final long latencyNanos) {
+		final EndpointMetrics em = endpoints[endpoint.ordinal()];
+		em.latencyNanos.record(latencyNanos);
+		em.errors.computeIfAbsent(error.getClass().getName(), k -> new LongAdder()).increment();
+	}
+	
+	/** Get the number of cache hits.
+	 * @param cache the cache.
+	 * @return the number of hits.
+	 */
+	public long getCacheHits(final Cache cache) {
+		return cacheCounts[cache.ordinal()][HIT].sum();
+	}
+	
+	/** Get the number of cache misses, including lookups of expired entries.
+	 * @param cache the cache.
+	 * @return the number of misses.
+	 */
+	public long getCacheMisses(final Cache cache) {
+		return cacheCounts[cache.ordinal()][MISS].sum();
+	}
+	
+	/** Get the number of lookups that found an expired entry.
+	 * @param cache the cache.
+	 * @return the number of expired entries found.
+	 */
+	public long getCacheExpiries(final Cache cache) {
+		return cacheCounts[cache.ordinal()][EXPIRY].sum();
+	}
+	
+	/** Get the number of entries evicted from a cache because it was full.
+	 * @param cache the cache.
+	 * @return the number of evicted entries.
+	 */
+	public long getCacheEvictions(final Cache cache) {
+		return cacheCounts[cache.ordinal()][EVICTION].sum();
+	}
+	
+	/** Get the durations of evictions from a cache in nanoseconds. The count of the histogram
+	 * is the number of evictions, each of which may evict many entries.
+	 * @param cache the cache.
+	 * @return the eviction duration histogram.
+	 */
+	public Histogram getEvictionNanos(final Cache cache) {
+		return evictionNanos[cache.ordinal()];
+	}
+	
+	/** Get the fraction of cache lookups that were hits.
+	 * @param cache the cache.
+	 * @return the hit rate, or 0 if there have been no lookups.
+	 */
+	public double getCacheHitRate(final Cache cache) {
+		final long hits = getCacheHits(cache);
+		final long total = hits + getCacheMisses(cache);
+		return total == 0 ? 0 : (double) hits / total;
+	}
+	
+	/** Get the number of requests made to an endpoint, including failed requests.
+	 * @param endpoint the endpoint.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount(final Endpoint endpoint) {
+		return getLatencyNanos(endpoint).getCount();
+	}
+	
+	/** Get the latencies of requests to an endpoint, including failed requests, in
+	 * nanoseconds.
+	 * @param endpoint the endpoint.
+	 * @return the latency histogram.
+	 */
+	public Histogram getLatencyNanos(final Endpoint endpoint) {
+		return endpoints[endpoint.ordinal()].latencyNanos;
+	}
+	
+	/** Get the sizes of the responses from an endpoint in bytes.
+	 * @param endpoint the endpoint.
+	 * @return the response size histogram.
+	 */
+	public Histogram getResponseBytes(final Endpoint endpoint) {
+		return endpoints[endpoint.ordinal()].responseBytes;
+	}
+	
+	/** Get the number of responses from an endpoint by HTTP status code.
+	 * @param endpoint the endpoint.
+	 * @return a map of status code to the number of responses.
+	 */
+	public Map<Integer, Long> getStatusCodeCounts(final Endpoint endpoint) {
+		return snapshot(endpoints[endpoint.ordinal()].statusCodes);
+	}
+	
+	/** Get the number of requests to an endpoint that failed without a response, by the
+	 * class name of the error.
+	 * @param endpoint the endpoint.
+	 * @return a map of error class name to the number of errors.
+	 */
+	public Map<String, Long> getErrorCounts(final Endpoint endpoint) {
+		return snapshot(endpoints[endpoint.ordinal()].errors);
+	}
+	
+	private static <K> Map<K, Long> snapshot(final Map<K, LongAdder> counts) {
+		final Map<K, Long> ret = new TreeMap<>();
+		counts.forEach((k, v) -> ret.put(k, v.sum()));
+		return Collections.unmodifiableMap(ret);
+	}
+}
@@ -0,0 +1,108 @@
+package us.kbase.auth.client.metrics;
+
+/** Receives metrics from an {@link us.kbase.auth.client.AuthClient} and its caches.
+ * 
+ * All methods have no-op default implementations, so implementations need only override the
+ * methods for the metrics they record. Methods are called on the threads performing cache
+ * lookups and requests, often concurrently, and so must be thread safe, fast, and must not
+ * throw exceptions.
+ * 
+ * @see InMemoryMetrics
+ */
+public interface Metrics {
+	
+	/** Metrics that are discarded. */
+	Metrics NOOP = new Metrics() {};
+	
+	/** The caches that report metrics. */
+	enum Cache {
+		/** The cache of valid tokens. */
+		TOKEN,
+		/** The cache of tokens rejected by the auth service. */
+		REJECTED_TOKEN,
+		/** The cache of usernames that exist. */
+		USER,
+		/** The cache of usernames that do not exist. */
+		MISSING_USER,
+		/** The second level cache of valid tokens, usually shared with other clients - see
+		 * {@link us.kbase.auth.client.cache.SecondLevelCache}.
+		 */
+		SHARED_TOKEN,
+		/** The second level cache of usernames, including usernames that do not exist. */
+		SHARED_USER;
+	}
+	
+	/** The auth service endpoints the client contacts. */
+	enum Endpoint {
+		/** The root endpoint, which returns the service information. */
+		ROOT(""),
+		/** The token endpoint, which validates tokens. */
+		TOKEN("api/V2/token"),
+		/** The users endpoint, which checks usernames exist. */
+		USERS("api/V2/users");
+		
+		private final String path;
+		
+		Endpoint(final String path) {
+			this.path = path;
+		}
+		
+		/** Get the path of the endpoint relative to the auth service root URI.
+		 * @return the path.
+		 */
+		public String getPath() {
+			return path;
+		}
+	}
+	
+	/** Called when a cache lookup finds a live entry.
+	 * @param cache the cache.
+	 */
+	default void cacheHit(final Cache cache) {}
+	
+	/** Called when a cache lookup does not find a live entry, including when the entry has
+	 * expired.
+	 * @param cache the cache.
+	 */
+	default void cacheMiss(final Cache cache) {}
+	
+	/** Called when a cache lookup finds an expired entry, in addition to
+	 * {@link #cacheMiss(Cache)}.
+	 * @param cache the cache.
+	 */
+	default void cacheExpiry(final Cache cache) {}
+	
+	/** Called when entries are evicted from a cache because it is full. The eviction runs on
+	 * the thread that added the entry that filled the cache, so the duration is a pause for
+	 * that thread. Other threads are not blocked.
+	 * @param cache the cache.
+	 * @param count the number of entries evicted.
+	 * @param durationNanos the time taken by the eviction in nanoseconds.
+	 */
+	default void cacheEviction(final Cache cache, final int count, final long durationNanos) {}
+	
+	/** Called when a response is received from the auth service, regardless of the status
+	 * code.
+	 * @param endpoint the endpoint.
+	 * @param statusCode the HTTP status code of the response.
+	 * @param latencyNanos the time from starting the request to reading the response, in
+	 * nanoseconds.
+	 * @param responseBytes the number of bytes read from the response body.
+	 */
+	default void requestCompleted(
+			final Endpoint endpoint,
+			final int statusCode,
+			final long latencyNanos,
+			final long responseBytes) {}
+	
+	/** Called when a request to the auth service fails without a complete response, for
+	 * example due to a network error.
+	 * @param endpoint the endpoint.
+	 * @param error the error.
+	 * @param latencyNanos the time from starting the request to the failure, in nanoseconds.
+	 */
+	default void requestFailed(
+			final Endpoint endpoint,
+			final Exception error,
+			final long latencyNanos) {}
+}
@@ -0,0 +1,31 @@
+package us.kbase.auth.client.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** A response from an {@link HttpTransport}.
+ * 
+ * The response must be closed when the caller is done with it so that any underlying
+ * connection can be released.
+ */
+public interface HttpResponse extends Closeable {
+	
+	/** Get the HTTP status code of the response.
+	 * @return the status code.
+	 */
+	int getStatusCode();
+	
+	/** Get the body of the response. If the response has no body, an empty stream is returned.
+	 * Closing the stream does not release the response; call {@link #close()}.
+	 * @return the response body.
+	 */
+	InputStream getBody();
+	
+	/** Release the response and any underlying connection.
+	 * @throws IOException if an IOException occurs releasing the response.
+	 */
+	@Override
+	void close() throws IOException;
+
+}
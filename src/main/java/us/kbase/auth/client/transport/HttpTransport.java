@@ -0,0 +1,33 @@
+package us.kbase.auth.client.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+/** The HTTP transport used by the {@link us.kbase.auth.client.AuthClient} to communicate with
+ * the auth server.
+ * 
+ * Implementations must be thread safe.
+ */
+public interface HttpTransport extends Closeable {
+	
+	/** Make a GET request to the auth server. The request must include an
+	 * "Accept: application/json" header.
+	 * 
+	 * The caller must close the returned response.
+	 * @param target the target of the request.
+	 * @param token the token to send in the Authorization header, or null to send no token.
+	 * @return the response.
+	 * @throws IOException if an IOException occurs communicating with the server.
+	 */
+	HttpResponse get(URI target, String token) throws IOException;
+	
+	/** Release any resources held by the transport. The default implementation does nothing.
+	 * @throws IOException if an IOException occurs releasing resources.
+	 */
+	@Override
+	default void close() throws IOException {
+		// nothing to do
+	}
+
+}
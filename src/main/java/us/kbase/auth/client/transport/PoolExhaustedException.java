@@ -0,0 +1,19 @@
+package us.kbase.auth.client.transport;
+
+import java.io.IOException;
+
+/** An exception thrown when a request is not made because no connection to the host became
+ * available from a connection pool in time. The request was never sent, so the exception says
+ * nothing about the availability of the server.
+ */
+public class PoolExhaustedException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** Create the exception.
+	 * @param message the exception message.
+	 */
+	public PoolExhaustedException(final String message) {
+		super(message);
+	}
+}
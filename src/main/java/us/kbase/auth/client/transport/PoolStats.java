@@ -0,0 +1,68 @@
+package us.kbase.auth.client.transport;
+
+/** A point in time snapshot of the statistics of a {@link PooledTransport}. */
+public class PoolStats {
+
+	private final long requests;
+	private final long connectionsCreated;
+	private final long connectionsReused;
+	private final long connectionsClosed;
+	private final int idleConnections;
+
+	PoolStats(
+			final long requests,
+			final long connectionsCreated,
+			final long connectionsReused,
+			final long connectionsClosed,
+			final int idleConnections) {
+		this.requests = requests;
+		this.connectionsCreated = connectionsCreated;
+		this.connectionsReused = connectionsReused;
+		this.connectionsClosed = connectionsClosed;
+		this.idleConnections = idleConnections;
+	}
+
+	/** Get the number of requests made via the transport.
+	 * @return the number of requests.
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/** Get the number of new connections opened by the transport.
+	 * @return the number of connections created.
+	 */
+	public long getConnectionsCreated() {
+		return connectionsCreated;
+	}
+
+	/** Get the number of times a pooled connection was reused for a request.
+	 * @return the number of connection reuses.
+	 */
+	public long getConnectionsReused() {
+		return connectionsReused;
+	}
+
+	/** Get the number of connections closed by the transport, for example because they were
+	 * idle too long, were closed by the server, or could not be reused.
+	 * @return the number of connections closed.
+	 */
+	public long getConnectionsClosed() {
+		return connectionsClosed;
+	}
+
+	/** Get the number of idle connections in the pool at the time the snapshot was taken.
+	 * @return the number of idle connections.
+	 */
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolStats [requests=" + requests + ", connectionsCreated=" + connectionsCreated
+				+ ", connectionsReused=" + connectionsReused + ", connectionsClosed="
+				+ connectionsClosed + ", idleConnections=" + idleConnections + "]";
+	}
+
+}
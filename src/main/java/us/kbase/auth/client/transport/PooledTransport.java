@@ -0,0 +1,688 @@
+package us.kbase.auth.client.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/** An {@link HttpTransport} that keeps a bounded pool of persistent HTTP/1.1 keep-alive
+ * connections per host, avoiding a TCP connection and TLS handshake per request.
+ *
+ * At most maxConnectionsPerHost connections are open to any one host at a time - requests
+ * made when all the connections to a host are in use wait for a connection to be released.
+ * Connections that have been idle for longer than the idle timeout are closed rather than
+ * reused.
+ *
+ * The transport speaks a minimal subset of HTTP/1.1 sufficient to talk to the auth server.
+ * It does not support proxies - use the {@link URLConnectionTransport} if a proxy is required.
+ *
+ * Requests waiting for a connection and socket I/O do not hold monitors, so virtual threads
+ * blocked in the transport do not pin their carrier threads.
+ *
+ * This class is thread safe.
+ */
+public class PooledTransport implements HttpTransport {
+
+	/** The default maximum number of connections per host. */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+	/** The default time, in milliseconds, a connection can be idle before it is discarded. */
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+	private static final int MAX_HEADERS = 100;
+	// how much of an unread response body to discard in order to reuse a connection
+	private static final long MAX_DRAIN = 64 * 1024;
+
+	private final int maxConnectionsPerHost;
+	private final long idleTimeoutMS;
+	private final int connectTimeoutMS;
+	private final int readTimeoutMS;
+	private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder created = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder closed = new LongAdder();
+	private volatile boolean isClosed = false;
+
+	/** Create a transport with the default connection limit and idle timeout. */
+	public PooledTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS);
+	}
+
+	/** Create a transport without connect or read timeouts.
+	 * @param maxConnectionsPerHost the maximum number of connections to open to any one host.
+	 * @param idleTimeoutMS the time, in milliseconds, a connection may be idle before it is
+	 * discarded.
+	 */
+	public PooledTransport(final int maxConnectionsPerHost, final long idleTimeoutMS) {
+		this(maxConnectionsPerHost, idleTimeoutMS, 0, 0);
+	}
+
+	/** Create a transport.
+	 * @param maxConnectionsPerHost the maximum number of connections to open to any one host.
+	 * @param idleTimeoutMS the time, in milliseconds, a connection may be idle before it is
+	 * discarded.
+	 * @param connectTimeoutMS the time, in milliseconds, to wait for a connection to the
+	 * server to be established, including the TLS handshake. Also limits the time to wait
+	 * for a connection from the pool when all the connections to the host are in use, after
+	 * which a {@link PoolExhaustedException} is thrown. 0 means no timeout.
+	 * @param readTimeoutMS the time, in milliseconds, to wait for data from the server.
+	 * 0 means no timeout.
+	 */
+	public PooledTransport(
+			final int maxConnectionsPerHost,
+			final long idleTimeoutMS,
+			final int connectTimeoutMS,
+			final int readTimeoutMS) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerHost must be > 0");
+		}
+		if (idleTimeoutMS < 1) {
+			throw new IllegalArgumentException("idleTimeoutMS must be > 0");
+		}
+		URLConnectionTransport.checkTimeouts(connectTimeoutMS, readTimeoutMS);
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeoutMS = idleTimeoutMS;
+		this.connectTimeoutMS = connectTimeoutMS;
+		this.readTimeoutMS = readTimeoutMS;
+	}
+
+	/** Get the maximum number of connections to any one host.
+	 * @return the maximum connections per host.
+	 */
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/** Get the time, in milliseconds, a connection may be idle before it is discarded.
+	 * @return the idle timeout.
+	 */
+	public long getIdleTimeoutMS() {
+		return idleTimeoutMS;
+	}
+
+	/** Get the time, in milliseconds, to wait for a connection to be established.
+	 * @return the connect timeout, or 0 for no timeout.
+	 */
+	public int getConnectTimeoutMS() {
+		return connectTimeoutMS;
+	}
+
+	/** Get the time, in milliseconds, to wait for data from the server.
+	 * @return the read timeout, or 0 for no timeout.
+	 */
+	public int getReadTimeoutMS() {
+		return readTimeoutMS;
+	}
+
+	/** Get the current statistics for the pool.
+	 * @return the statistics.
+	 */
+	public PoolStats getStats() {
+		int idle = 0;
+		for (final HostPool p: pools.values()) {
+			idle += p.idle.size();
+		}
+		return new PoolStats(
+				requests.sum(), created.sum(), reused.sum(), closed.sum(), idle);
+	}
+
+	@Override
+	public HttpResponse get(final URI target, final String token) throws IOException {
+		if (target == null) {
+			throw new NullPointerException("target");
+		}
+		if (isClosed) {
+			throw new IllegalStateException("The transport is closed");
+		}
+		if (token != null) {
+			checkHeaderValue("Authorization", token);
+		}
+		final Host host = new Host(target);
+		final HostPool pool = pools.computeIfAbsent(host.key, k -> new HostPool());
+		pool.acquire(host);
+		requests.increment();
+		try {
+			Connection conn;
+			while ((conn = pool.pollIdle()) != null) {
+				try {
+					final HttpResponse res = send(pool, conn, host, target, token);
+					reused.increment();
+					return res;
+				} catch (SocketTimeoutException e) {
+					// the server is slow rather than the connection being stale. Retrying
+					// would only make the caller wait longer
+					close(conn);
+					throw e;
+				} catch (IOException e) {
+					// most likely the server closed the idle connection. GETs are idempotent,
+					// so try the next connection
+					close(conn);
+				} catch (RuntimeException e) {
+					close(conn);
+					throw e;
+				}
+			}
+			conn = connect(host);
+			try {
+				return send(pool, conn, host, target, token);
+			} catch (IOException | RuntimeException e) {
+				close(conn);
+				throw e;
+			}
+		} catch (IOException | RuntimeException e) {
+			pool.permits.release();
+			throw e;
+		}
+	}
+
+	/* The request is written as raw text, so a CR or LF in a header value would add headers or
+	 * a second request to a connection that is later reused by another caller.
+	 * HTAB is allowed in header values. The value is not included in the error as it may be a
+	 * secret.
+	 */
+	private static void checkHeaderValue(final String name, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if ((c < 0x20 && c != '\t') || c == 0x7f) {
+				throw new IllegalArgumentException(
+						"Illegal character in the " + name + " header value");
+			}
+		}
+	}
+
+	/** Close all idle connections. Connections in use are closed when their responses are
+	 * closed. No further requests may be made after the transport is closed.
+	 */
+	@Override
+	public void close() {
+		isClosed = true;
+		for (final HostPool p: pools.values()) {
+			Connection c;
+			while ((c = p.idle.poll()) != null) {
+				close(c);
+			}
+		}
+	}
+
+	private Connection connect(final Host host) throws IOException {
+		final Socket raw = new Socket();
+		try {
+			raw.setTcpNoDelay(true);
+			raw.setKeepAlive(true);
+			raw.connect(new InetSocketAddress(host.host, host.port), connectTimeoutMS);
+			final Socket s;
+			if (host.secure) {
+				// bound the handshake by the connect timeout
+				raw.setSoTimeout(connectTimeoutMS);
+				final SSLSocketFactory fac = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				final SSLSocket ssl = (SSLSocket) fac.createSocket(
+						raw, host.host, host.port, true);
+				final SSLParameters params = ssl.getSSLParameters();
+				// raw SSL sockets don't verify the hostname by default
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.startHandshake();
+				s = ssl;
+			} else {
+				s = raw;
+			}
+			s.setSoTimeout(readTimeoutMS);
+			created.increment();
+			return new Connection(s);
+		} catch (IOException | RuntimeException e) {
+			raw.close();
+			throw e;
+		}
+	}
+
+	private void close(final Connection conn) {
+		closed.increment();
+		try {
+			conn.socket.close();
+		} catch (IOException e) {
+			// nothing to be done
+		}
+	}
+
+	private HttpResponse send(
+			final HostPool pool,
+			final Connection conn,
+			final Host host,
+			final URI target,
+			final String token)
+			throws IOException {
+		final StringBuilder req = new StringBuilder();
+		final String path = target.getRawPath() == null || target.getRawPath().isEmpty() ?
+				"/" : target.getRawPath();
+		req.append("GET ").append(path);
+		if (target.getRawQuery() != null) {
+			req.append("?").append(target.getRawQuery());
+		}
+		req.append(" HTTP/1.1\r\n");
+		req.append("Host: ").append(host.header).append("\r\n");
+		req.append("Accept: application/json\r\n");
+		if (token != null) {
+			req.append("Authorization: ").append(token).append("\r\n");
+		}
+		req.append("Connection: keep-alive\r\n\r\n");
+		conn.out.write(req.toString().getBytes(StandardCharsets.UTF_8));
+		conn.out.flush();
+
+		int code;
+		Map<String, String> headers;
+		boolean http11;
+		do { // skip any interim responses
+			final String status = readLine(conn.in);
+			final String[] parts = status.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("Invalid HTTP status line: " + status);
+			}
+			http11 = parts[0].equals("HTTP/1.1");
+			try {
+				code = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid HTTP status line: " + status);
+			}
+			headers = readHeaders(conn.in);
+		} while (code >= 100 && code < 200);
+
+		final String connHeader = headers.getOrDefault("connection", "")
+				.toLowerCase(Locale.ROOT);
+		boolean keepAlive = http11 && !connHeader.contains("close");
+		final BodyStream body;
+		if (code == 204 || code == 304) {
+			body = new FixedLengthStream(conn.in, 0);
+		} else if (headers.getOrDefault("transfer-encoding", "")
+				.toLowerCase(Locale.ROOT).contains("chunked")) {
+			body = new ChunkedStream(conn.in);
+		} else if (headers.containsKey("content-length")) {
+			final long len;
+			try {
+				len = Long.parseLong(headers.get("content-length").trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length header: " +
+						headers.get("content-length"));
+			}
+			body = new FixedLengthStream(conn.in, len);
+		} else {
+			// body is delimited by the server closing the connection
+			body = new FixedLengthStream(conn.in, Long.MAX_VALUE);
+			keepAlive = false;
+		}
+		return new Response(pool, conn, code, body, keepAlive);
+	}
+
+	private static String readLine(final InputStream in) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException("Connection closed by server");
+			}
+			if (sb.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("HTTP line too long");
+			}
+			sb.append((char) c);
+		}
+		final int len = sb.length();
+		if (len > 0 && sb.charAt(len - 1) == '\r') {
+			sb.setLength(len - 1);
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, String> readHeaders(final InputStream in) throws IOException {
+		final Map<String, String> headers = new HashMap<>();
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			if (headers.size() >= MAX_HEADERS) {
+				throw new IOException("Too many HTTP headers");
+			}
+			final int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+						line.substring(colon + 1).trim());
+			}
+		}
+		return headers;
+	}
+
+	private class HostPool {
+
+		private final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+		// most recently used connections are at the head
+		private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+		private void acquire(final Host host)
+				throws InterruptedIOException, PoolExhaustedException {
+			try {
+				if (connectTimeoutMS == 0) {
+					permits.acquire();
+				} else if (!permits.tryAcquire(connectTimeoutMS, TimeUnit.MILLISECONDS)) {
+					throw new PoolExhaustedException(String.format(
+							"Timed out after %s ms waiting for a connection to %s",
+							connectTimeoutMS, host.key));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a connection");
+			}
+		}
+
+		private Connection pollIdle() {
+			final long now = System.currentTimeMillis();
+			Connection c;
+			while ((c = idle.pollFirst()) != null) {
+				if (now - c.lastUsed <= idleTimeoutMS && !c.socket.isClosed()) {
+					return c;
+				}
+				close(c);
+			}
+			return null;
+		}
+
+		private void release(final Connection c) {
+			if (isClosed) {
+				close(c);
+				return;
+			}
+			final long now = System.currentTimeMillis();
+			c.lastUsed = now;
+			idle.offerFirst(c);
+			// least recently used connections collect at the tail, so expire them there
+			final Iterator<Connection> iter = idle.descendingIterator();
+			while (iter.hasNext()) {
+				final Connection old = iter.next();
+				if (now - old.lastUsed <= idleTimeoutMS) {
+					break;
+				}
+				if (idle.removeLastOccurrence(old)) {
+					close(old);
+				}
+			}
+		}
+	}
+
+	private static class Host {
+
+		private final String key;
+		private final String host;
+		private final int port;
+		private final boolean secure;
+		private final String header;
+
+		private Host(final URI target) {
+			final String scheme = target.getScheme() == null ?
+					"" : target.getScheme().toLowerCase(Locale.ROOT);
+			if (!scheme.equals("http") && !scheme.equals("https")) {
+				throw new IllegalArgumentException("Unsupported URI scheme: " + scheme);
+			}
+			final String h = target.getHost();
+			if (h == null) {
+				throw new IllegalArgumentException("No host in URI " + target);
+			}
+			secure = scheme.equals("https");
+			// ipv6 literals have brackets in the URI but not in a socket address
+			host = h.startsWith("[") ? h.substring(1, h.length() - 1) : h;
+			port = target.getPort() == -1 ? (secure ? 443 : 80) : target.getPort();
+			header = target.getPort() == -1 ? h : h + ":" + port;
+			key = scheme + "://" + h + ":" + port;
+		}
+	}
+
+	private static class Connection {
+
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private volatile long lastUsed;
+
+		private Connection(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+	}
+
+	private class Response implements HttpResponse {
+
+		private final HostPool pool;
+		private final Connection conn;
+		private final int code;
+		private final BodyStream body;
+		private final boolean keepAlive;
+		private boolean released = false;
+
+		private Response(
+				final HostPool pool,
+				final Connection conn,
+				final int code,
+				final BodyStream body,
+				final boolean keepAlive) {
+			this.pool = pool;
+			this.conn = conn;
+			this.code = code;
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return code;
+		}
+
+		@Override
+		public InputStream getBody() {
+			return body;
+		}
+
+		@Override
+		public void close() {
+			if (released) {
+				return;
+			}
+			released = true;
+			try {
+				if (keepAlive && body.drain()) {
+					pool.release(conn);
+				} else {
+					PooledTransport.this.close(conn);
+				}
+			} catch (IOException e) {
+				PooledTransport.this.close(conn);
+			} finally {
+				pool.permits.release();
+			}
+		}
+	}
+
+	private static abstract class BodyStream extends InputStream {
+
+		/** Discard the rest of the body if it's small enough.
+		 * @return true if the entire body has been read.
+		 */
+		abstract boolean drain() throws IOException;
+
+		@Override
+		public void close() {
+			// the connection is released by closing the response
+		}
+	}
+
+	private static class FixedLengthStream extends BodyStream {
+
+		private final InputStream in;
+		private final boolean untilClose;
+		private long remaining;
+
+		/* A length of Long.MAX_VALUE means the body ends when the server closes the
+		 * connection. Otherwise the server closing the connection early is an error.
+		 */
+		private FixedLengthStream(final InputStream in, final long length) {
+			this.in = in;
+			this.remaining = length;
+			this.untilClose = length == Long.MAX_VALUE;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int b = in.read();
+			if (b == -1) {
+				endOfStream();
+			} else {
+				remaining--;
+			}
+			return b;
+		}
+
+		private void endOfStream() throws EOFException {
+			if (!untilClose) {
+				// leave remaining as is so drain() fails and the connection isn't reused
+				throw new EOFException(
+						"Connection closed with " + remaining + " bytes of the body unread");
+			}
+			remaining = 0;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int r = in.read(b, off, (int) Math.min(len, remaining));
+			if (r == -1) {
+				endOfStream();
+			} else {
+				remaining -= r;
+			}
+			return r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		boolean drain() throws IOException {
+			if (remaining > MAX_DRAIN) {
+				return false;
+			}
+			while (remaining > 0) {
+				if (in.read() == -1) {
+					return false;
+				}
+				remaining--;
+			}
+			return true;
+		}
+	}
+
+	private static class ChunkedStream extends BodyStream {
+
+		private final InputStream in;
+		private long chunkRemaining = 0;
+		private boolean done = false;
+
+		private ChunkedStream(final InputStream in) {
+			this.in = in;
+		}
+
+		private boolean nextChunk() throws IOException {
+			if (done) {
+				return false;
+			}
+			if (chunkRemaining == 0) {
+				String line = readLine(in);
+				if (line.isEmpty()) { // CRLF after the previous chunk
+					line = readLine(in);
+				}
+				final int semi = line.indexOf(';'); // ignore chunk extensions
+				try {
+					chunkRemaining = Long.parseLong(
+							(semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + line);
+				}
+				if (chunkRemaining == 0) {
+					readHeaders(in); // trailers
+					done = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) {
+				return -1;
+			}
+			final int b = in.read();
+			if (b == -1) {
+				throw new EOFException("Connection closed mid chunk");
+			}
+			chunkRemaining--;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			final int r = in.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (r == -1) {
+				throw new EOFException("Connection closed mid chunk");
+			}
+			chunkRemaining -= r;
+			return r;
+		}
+
+		@Override
+		boolean drain() throws IOException {
+			long drained = 0;
+			while (nextChunk()) {
+				if (drained > MAX_DRAIN) {
+					return false;
+				}
+				read();
+				drained++;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package us.kbase.auth.client.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+/** An {@link HttpTransport} that opens a new {@link HttpURLConnection} for each request and
+ * disconnects it when the response is closed.
+ * 
+ * Every request pays the cost of a new TCP connection and, for https, a new TLS handshake.
+ * See {@link PooledTransport} for a transport that reuses connections.
+ */
+public class URLConnectionTransport implements HttpTransport {
+	
+	private final int connectTimeoutMS;
+	private final int readTimeoutMS;
+	
+	/** Create a transport without connect or read timeouts. */
+	public URLConnectionTransport() {
+		this(0, 0);
+	}
+	
+	/** Create a transport.
+	 * @param connectTimeoutMS the time, in milliseconds, to wait for a connection to the
+	 * server to be established. 0 means no timeout.
+	 * @param readTimeoutMS the time, in milliseconds, to wait for data from the server.
+	 * 0 means no timeout.
+	 */
+	public URLConnectionTransport(final int connectTimeoutMS, final int readTimeoutMS) {
+		checkTimeouts(connectTimeoutMS, readTimeoutMS);
+		this.connectTimeoutMS = connectTimeoutMS;
+		this.readTimeoutMS = readTimeoutMS;
+	}
+	
+	static void checkTimeouts(final int connectTimeoutMS, final int readTimeoutMS) {
+		if (connectTimeoutMS < 0) {
+			throw new IllegalArgumentException("connectTimeoutMS must be >= 0");
+		}
+		if (readTimeoutMS < 0) {
+			throw new IllegalArgumentException("readTimeoutMS must be >= 0");
+		}
+	}
+	
+	/** Get the time, in milliseconds, to wait for a connection to be established.
+	 * @return the connect timeout, or 0 for no timeout.
+	 */
+	public int getConnectTimeoutMS() {
+		return connectTimeoutMS;
+	}
+	
+	/** Get the time, in milliseconds, to wait for data from the server.
+	 * @return the read timeout, or 0 for no timeout.
+	 */
+	public int getReadTimeoutMS() {
+		return readTimeoutMS;
+	}
+	
+	@Override
+	public HttpResponse get(final URI target, final String token) throws IOException {
+		if (target == null) {
+			throw new NullPointerException("target");
+		}
+		// tried to use the Jersey client here but kept getting ssl handshake errors if I made
+		// more than one request
+		final HttpURLConnection conn = (HttpURLConnection) target.toURL().openConnection();
+		conn.setConnectTimeout(connectTimeoutMS);
+		conn.setReadTimeout(readTimeoutMS);
+		conn.addRequestProperty("Accept", "application/json");
+		if (token != null) {
+			conn.addRequestProperty("Authorization", token);
+		}
+		try {
+			final int code = conn.getResponseCode();
+			final InputStream is = code != 200 ? conn.getErrorStream() : conn.getInputStream();
+			return new Response(conn, code, is);
+		} catch (IOException | RuntimeException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+	
+	private static class Response implements HttpResponse {
+		
+		private final HttpURLConnection conn;
+		private final int code;
+		private final InputStream body;
+		
+		private Response(final HttpURLConnection conn, final int code, final InputStream body) {
+			this.conn = conn;
+			this.code = code;
+			this.body = body == null ? new ByteArrayInputStream(new byte[0]) : body;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return code;
+		}
+
+		@Override
+		public InputStream getBody() {
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				body.close();
+			} finally {
+				conn.disconnect();
+			}
+		}
+	}
+
+}
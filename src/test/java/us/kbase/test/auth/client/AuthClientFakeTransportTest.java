@@ -0,0 +1,687 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failAsync;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failConfig;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.AuthTimeoutException;
+import us.kbase.auth.client.cache.InMemorySecondLevelCache;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+/** Tests of the auth client that run against a {@link FakeTransport} rather than an auth
+ * server.
+ */
+public class AuthClientFakeTransportTest {
+	
+	@Test
+	public void builderFail() throws Exception {
+		try {
+			AuthClient.builder(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("auth2RootURI"));
+		}
+		try {
+			AuthClient.builder(ROOT).withTransport(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("transport"));
+		}
+	}
+	
+	@Test
+	public void builderConfigFail() throws Exception {
+		final AuthClient.Builder b = AuthClient.builder(ROOT);
+		failConfig(() -> b.withTimeouts(-1, 0),
+				new IllegalArgumentException("connectTimeoutMS must be >= 0"));
+		failConfig(() -> b.withTimeouts(0, -1),
+				new IllegalArgumentException("readTimeoutMS must be >= 0"));
+		failConfig(() -> b.withExecutor(null), new NullPointerException("executor"));
+		failConfig(() -> b.withTokenCache(0, 1),
+				new IllegalArgumentException("size and maxsize must be > 0"));
+		failConfig(() -> b.withTokenCache(2, 2),
+				new IllegalArgumentException("size must be < maxsize"));
+		failConfig(() -> b.withUserCache(1, 0, 1),
+				new IllegalArgumentException("size and maxsize must be > 0"));
+		failConfig(() -> b.withUserCache(1, 2, 0),
+				new IllegalArgumentException("seconds must be > 0"));
+		failConfig(() -> b.withRejectedTokenCache(1, 2, 0),
+				new IllegalArgumentException("expiryMS must be > 0"));
+		failConfig(() -> b.withTokenRefreshAhead(1.1),
+				new IllegalArgumentException("fraction must be > 0 and <= 1"));
+		
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		try {
+			AuthClient.builder(ROOT).withTransport(t).withTimeouts(1, 1).build();
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalStateException(
+					"Timeouts cannot be set when a transport is provided"));
+		}
+	}
+	
+	@Test
+	public void builderCacheConfig() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+					FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withTokenCache(1, 2).withUserCache(1, 2, 1).build();
+		
+		c.validateToken("t1");
+		Thread.sleep(2);
+		c.validateToken("t2");
+		Thread.sleep(2);
+		c.validateToken("t3"); // evicts t1 and t2
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		c.validateToken("t3");
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		c.validateToken("t1");
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo"), "t"),
+				is(expected));
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo"), "t"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(5));
+		Thread.sleep(1100); // user cache expiry
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo"), "t"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(6));
+	}
+	
+	@Test
+	public void builderCompactTokenCache() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withTokenCache(1, 2).withCompactTokenCache(true).build();
+		
+		c.validateToken("t1");
+		Thread.sleep(2);
+		c.validateToken("t2");
+		Thread.sleep(2);
+		c.validateToken("t3"); // evicts t1 and t2
+		assertThat("incorrect token", c.validateToken("t3"), is(new AuthToken("t3", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		c.validateToken("t1");
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		
+		try {
+			AuthClient.builder(ROOT).withTransport(t).withTokenCache(1, 100_000_001)
+					.withCompactTokenCache(true).build();
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"maxsize must be <= 100000000"));
+		}
+	}
+	
+	@Test
+	public void invalidate() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				FakeTransport.token(token.startsWith("a") ? "alice" : "bob"));
+		final InMemorySecondLevelCache l2 = new InMemorySecondLevelCache();
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withSecondLevelCache(l2).build();
+		for (final String token: Arrays.asList("a1", "a2", "b1", "b2")) {
+			c.validateToken(token);
+		}
+		assertThat("incorrect tokens", l2.getTokenCount(), is(4));
+	
+		c.invalidateToken("b1");
+		assertThat("incorrect tokens", l2.getTokenCount(), is(3));
+		assertThat("incorrect removed", c.invalidateUser("alice"), is(2));
+		assertThat("incorrect removed", c.invalidateUser("alice"), is(0));
+		assertThat("incorrect tokens", l2.getTokenCount(), is(1));
+		for (final String token: Arrays.asList("a1", "a2", "b1", "b2")) {
+			c.validateToken(token);
+		}
+		// b2 was still cached
+		assertThat("incorrect request count", t.getRequests().size(), is(7));
+	
+		// the second level cache is not cleared
+		c.invalidateAll();
+		assertThat("incorrect tokens", l2.getTokenCount(), is(4));
+		l2.removeTokens(Arrays.asList(TokenDigest.of("a1")));
+		c.validateToken("a1");
+		c.validateToken("b1");
+		assertThat("incorrect request count", t.getRequests().size(), is(8));
+	
+		try {
+			c.invalidateToken(" ");
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"token must be a non-whitespace string"));
+		}
+		try {
+			c.invalidateUser(null);
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"user cannot be null or empty"));
+		}
+	}
+	
+	@Test
+	public void builderExecutor() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+					FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final CountingExecutor exe = new CountingExecutor();
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withExecutor(exe)
+				.build();
+		
+		assertThat("incorrect token", c.validateTokenAsync("tok").get(10, TimeUnit.SECONDS),
+				is(new AuthToken("tok", "foo")));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		assertThat("incorrect users", c.isValidUserNameAsync(Arrays.asList("foo"), "tok")
+				.get(10, TimeUnit.SECONDS), is(expected));
+		assertThat("incorrect executor count", exe.count.get(), is(2));
+		assertThat("incorrect version", c.getServerVersionAsync().get(10, TimeUnit.SECONDS),
+				is("0.7.1"));
+		assertThat("incorrect executor count", exe.count.get(), is(3));
+		exe.exe.shutdown();
+	}
+	
+	@Test
+	public void usesTransport() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		
+		assertThat("incorrect transport", c.getTransport(), is(t));
+		assertThat("incorrect uri", c.getURI(), is(URI.create(ROOT + "/")));
+		
+		final AuthToken tok = c.validateToken("  sometoken  ");
+		assertThat("incorrect token", tok, is(new AuthToken("  sometoken  ", "foo")));
+		final List<FakeTransport.Request> reqs = t.getRequests();
+		assertThat("incorrect request count", reqs.size(), is(1));
+		assertThat("incorrect target", reqs.get(0).target,
+				is(URI.create(ROOT + "/api/V2/token")));
+		assertThat("incorrect token", reqs.get(0).token, is("sometoken"));
+	}
+	
+	@Test
+	public void validateTokenCoalescesConcurrentRequests() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			await(latch);
+			return FakeTransport.token("foo");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		
+		final List<Future<AuthToken>> res = new ArrayList<>();
+		final ExecutorService exe = Executors.newFixedThreadPool(10);
+		try {
+			for (int i = 0; i < 10; i++) {
+				res.add(exe.submit(() -> c.validateToken("tok")));
+			}
+			TestCommon.waitFor(() -> c.getCoalescedTokenValidationCount() == 9);
+			latch.countDown();
+			final AuthToken first = res.get(0).get(10, TimeUnit.SECONDS);
+			assertThat("incorrect token", first, is(new AuthToken("tok", "foo")));
+			for (final Future<AuthToken> f: res) {
+				assertThat("not the same token", f.get(10, TimeUnit.SECONDS) == first, is(true));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		assertThat("incorrect coalesced count", c.getCoalescedTokenValidationCount(), is(9L));
+		
+		// now from cache
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		assertThat("incorrect coalesced count", c.getCoalescedTokenValidationCount(), is(9L));
+	}
+	
+	@Test
+	public void validateTokenCoalescesConcurrentFailures() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			await(latch);
+			return FakeTransport.invalidToken();
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		
+		final List<Future<Exception>> res = new ArrayList<>();
+		final ExecutorService exe = Executors.newFixedThreadPool(5);
+		try {
+			for (int i = 0; i < 5; i++) {
+				res.add(exe.submit(() -> {
+					try {
+						c.validateToken("tok");
+						return null;
+					} catch (Exception e) {
+						return e;
+					}
+				}));
+			}
+			TestCommon.waitFor(() -> c.getCoalescedTokenValidationCount() == 4);
+			latch.countDown();
+			final Exception first = res.get(0).get(10, TimeUnit.SECONDS);
+			TestCommon.assertExceptionCorrect(first, new AuthException(
+					"Auth service returned an error: 10020 Invalid token"));
+			for (final Future<Exception> f: res) {
+				assertThat("not the same exception",
+						f.get(10, TimeUnit.SECONDS) == first, is(true));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// failures aren't cached, so a new request is made
+		try {
+			c.validateToken("tok");
+			fail("expected exception");
+		} catch (AuthException got) {
+			TestCommon.assertExceptionCorrect(got, new AuthException(
+					"Auth service returned an error: 10020 Invalid token"));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+	@Test
+	public void validateTokenHonorsExpiry() throws Exception {
+		final Map<String, Long> expires = new HashMap<>();
+		final long now = System.currentTimeMillis();
+		expires.put("soon", now + 50); // inside the margin
+		expires.put("later", now + 300);
+		expires.put("long", now + 3600 * 1000);
+		final FakeTransport t = new FakeTransport(
+				(target, token) -> FakeTransport.token("foo", expires.get(token)));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withTokenExpiryMargin(100).withTokenCacheMaxAge(24 * 3600 * 1000).build();
+		
+		for (int i = 0; i < 2; i++) {
+			for (final String tok: Arrays.asList("soon", "later", "long")) {
+				assertThat("incorrect token", c.validateToken(tok), is(new AuthToken(tok, "foo")));
+			}
+		}
+		// soon expires within the margin, the others are cached
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		Thread.sleep(250);
+		c.validateToken("later");
+		c.validateToken("long");
+		assertThat("incorrect request count", t.getRequests().size(), is(5));
+		assertThat("incorrect token", t.getRequests().get(4).token, is("later"));
+	}
+	
+	@Test
+	public void validateTokenRefreshAhead() throws Exception {
+		final AtomicBoolean revoked = new AtomicBoolean();
+		final FakeTransport t = new FakeTransport((target, token) -> revoked.get() ?
+				FakeTransport.invalidToken() : FakeTransport.token("foo"));
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final List<Runnable> tasks = new ArrayList<>();
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withTokenCacheMaxAge(1000).withTokenRefreshAhead(0.8, r -> tasks.add(r))
+				.build();
+		final AuthToken expected = new AuthToken("tok", "foo");
+		
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		clock.advance(799);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect task count", tasks.size(), is(0));
+		
+		// the cached token is returned and a single refresh is started
+		clock.advance(1);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect token", c.validateTokenAsync("tok", r -> fail("executor used"))
+				.getNow(null), is(expected));
+		assertThat("incorrect task count", tasks.size(), is(1));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		tasks.remove(0).run();
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		// the refresh reset the token's cache lifetime
+		clock.advance(799);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect task count", tasks.size(), is(0));
+		
+		// the token is revoked, so the refresh removes it from the cache
+		revoked.set(true);
+		clock.advance(1);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		tasks.remove(0).run();
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		try {
+			c.validateToken("tok");
+			fail("expected exception");
+		} catch (AuthException got) {
+			TestCommon.assertExceptionCorrect(got, new AuthException(
+					"Auth service returned an error: 10020 Invalid token"));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		assertThat("incorrect task count", tasks.size(), is(0));
+	}
+	
+	@Test
+	public void refreshAheadConfigFail() throws Exception {
+		try {
+			AuthClient.builder(ROOT).withTokenRefreshAhead(0, r -> r.run());
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"fraction must be > 0 and <= 1"));
+		}
+		try {
+			AuthClient.builder(ROOT).withTokenRefreshAhead(0.5, null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("executor"));
+		}
+		try {
+			AuthClient.builder(ROOT).withClock(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
+	}
+	
+	@Test
+	public void tokenCacheConfigFail() throws Exception {
+		try {
+			AuthClient.builder(ROOT).withTokenCacheMaxAge(0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"maxAgeMS must be > 0"));
+		}
+		try {
+			AuthClient.builder(ROOT).withTokenExpiryMargin(-1);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"expiryMarginMS must be >= 0"));
+		}
+	}
+	
+	@Test
+	public void deadlines() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			await(latch);
+			return target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+				FakeTransport.response(200, "{\"foo\": \"Foo\"}");
+		});
+		final ExecutorService exe = Executors.newCachedThreadPool();
+		try {
+			final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withExecutor(exe)
+					.build();
+			try {
+				c.validateToken("tok", 100);
+				fail("expected exception");
+			} catch (AuthTimeoutException got) {
+				TestCommon.assertExceptionCorrect(got, new AuthTimeoutException(
+						"No response from the auth service within 100 ms"));
+			}
+			try {
+				c.isValidUserName(Arrays.asList("foo"), "tok", 100);
+				fail("expected exception");
+			} catch (AuthTimeoutException got) {
+				TestCommon.assertExceptionCorrect(got, new AuthTimeoutException(
+						"No response from the auth service within 100 ms"));
+			}
+			// the requests complete in the background and the results are cached
+			latch.countDown();
+			exe.shutdown();
+			assertThat("executor not terminated", exe.awaitTermination(10, TimeUnit.SECONDS),
+					is(true));
+			assertThat("incorrect token", c.validateToken("tok", 1),
+					is(new AuthToken("tok", "foo")));
+			final Map<String, Boolean> expected = new HashMap<>();
+			expected.put("foo", true);
+			assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo"), "tok", 1000),
+					is(expected));
+			assertThat("incorrect request count", t.getRequests().size(), is(2));
+			
+			try {
+				c.validateToken("tok", 0);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"timeoutMS must be > 0"));
+			}
+			try {
+				c.isValidUserName(Arrays.asList("foo"), "tok", 0);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"timeoutMS must be > 0"));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void validateTokenCacheHitDoesNotAllocate() throws Exception {
+		Assume.assumeTrue("Thread allocation measurement is not supported",
+				ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean mx =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("Thread allocation measurement is not enabled",
+				mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final String token = "ZGQSHT7CZIMYPUY2JRD7BRHDHHYJYZQF";
+		final AuthToken expected = c.validateToken(token);
+		
+		final int hits = 100000;
+		final long threadID = Thread.currentThread().getId();
+		for (int i = 0; i < hits; i++) { // warm up
+			c.validateToken(token);
+		}
+		final long start = mx.getThreadAllocatedBytes(threadID);
+		for (int i = 0; i < hits; i++) {
+			if (c.validateToken(token) != expected) {
+				fail("incorrect token");
+			}
+		}
+		final long allocated = mx.getThreadAllocatedBytes(threadID) - start;
+		// any allocation per hit would be at least 16 bytes. Allow for occasional allocations
+		// by the measurement itself or the JIT
+		assertThat("allocated bytes per hit: " + (double) allocated / hits,
+				allocated < hits, is(true));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+	}
+	
+	/** An executor that counts the tasks it runs. */
+	static class CountingExecutor implements Executor {
+		
+		final AtomicInteger count = new AtomicInteger();
+		final ExecutorService exe = Executors.newCachedThreadPool();
+
+		@Override
+		public void execute(final Runnable command) {
+			count.incrementAndGet();
+			exe.execute(command);
+		}
+	}
+	
+	@Test
+	public void validateTokenFailControlCharacters() throws Exception {
+		// the token is sent in a header, so it must not be able to inject headers or requests
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final Exception e = new IllegalArgumentException(
+				"token cannot contain control characters");
+		for (final String token: Arrays.asList(
+				"a\nb", "a\r\n\r\nGET /api/V2/token HTTP/1.1", "a\u0000b", "a\tb")) {
+			try {
+				c.validateToken(token);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got, e);
+			}
+			try {
+				c.isValidUserName(Arrays.asList("foo"), token);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got, e);
+			}
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(0));
+	}
+	
+	@Test
+	public void validateTokenAsync() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final CountingExecutor exe = new CountingExecutor();
+		
+		final CompletableFuture<AuthToken> f = c.validateTokenAsync("tok", exe);
+		assertThat("incorrect token", f.get(10, TimeUnit.SECONDS),
+				is(new AuthToken("tok", "foo")));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		
+		// from cache, so no thread hop
+		final CompletableFuture<AuthToken> f2 = c.validateTokenAsync("tok", exe);
+		assertThat("future not complete", f2.isDone(), is(true));
+		assertThat("incorrect token", f2.get(), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		exe.exe.shutdown();
+	}
+	
+	@Test
+	public void validateTokenAsyncFail() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.invalidToken());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final CountingExecutor exe = new CountingExecutor();
+		
+		failAsync(c.validateTokenAsync("tok", exe), new AuthException(
+				"Auth service returned an error: 10020 Invalid token"));
+		failAsync(c.validateTokenAsync("tok", r -> {
+			throw new RejectedExecutionException("nope");
+		}), new RejectedExecutionException("nope"));
+		exe.exe.shutdown();
+		
+		try {
+			c.validateTokenAsync("tok", null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("executor"));
+		}
+		try {
+			c.validateTokenAsync("  \t  ", exe);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"token must be a non-whitespace string"));
+		}
+	}
+	
+	@Test
+	public void isValidUserNameAsync() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.response(
+				200, "{\"foo\": \"Foo Bar\", \"baz\": \"Baz Bat\"}"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final CountingExecutor exe = new CountingExecutor();
+		
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		expected.put("bar", false);
+		expected.put("baz", true);
+		final CompletableFuture<Map<String, Boolean>> f = c.isValidUserNameAsync(
+				Arrays.asList("foo", " bar ", "baz"), "tok", exe);
+		assertThat("incorrect users", f.get(10, TimeUnit.SECONDS), is(expected));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		assertThat("incorrect target", t.getRequests().get(0).target,
+				is(URI.create(ROOT + "/api/V2/users/?list=foo,bar,baz")));
+		
+		// from cache, so no thread hop or request
+		expected.remove("bar");
+		final CompletableFuture<Map<String, Boolean>> f2 = c.isValidUserNameAsync(
+				Arrays.asList("foo", "baz"), "tok", exe);
+		assertThat("future not complete", f2.isDone(), is(true));
+		assertThat("incorrect users", f2.get(), is(expected));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// sync version
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo", "baz"), "tok"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		exe.exe.shutdown();
+	}
+	
+	@Test
+	public void isValidUserNameAsyncFail() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.invalidToken());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final CountingExecutor exe = new CountingExecutor();
+		
+		failAsync(c.isValidUserNameAsync(Arrays.asList("foo"), "tok", exe), new AuthException(
+				"Auth service returned an error: 10020 Invalid token"));
+		exe.exe.shutdown();
+		try {
+			c.isValidUserNameAsync(Arrays.asList("foo"), "tok", null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("executor"));
+		}
+	}
+	
+	@Test
+	public void getServerVersionAsync() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			throw new IllegalStateException("unexpected request");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		final CountingExecutor exe = new CountingExecutor();
+		
+		assertThat("incorrect version", c.getServerVersionAsync(exe).get(10, TimeUnit.SECONDS),
+				is("0.7.1"));
+		assertThat("incorrect executor count", exe.count.get(), is(1));
+		assertThat("incorrect version", c.getServerVersion(), is("0.7.1"));
+		exe.exe.shutdown();
+	}
+	
+	static void await(final CountDownLatch latch) {
+		try {
+			if (!latch.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("latch timed out");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
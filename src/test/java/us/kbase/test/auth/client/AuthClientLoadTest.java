@@ -0,0 +1,209 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.metrics.Histogram;
+import us.kbase.auth.client.metrics.InMemoryMetrics;
+import us.kbase.auth.client.metrics.Metrics.Cache;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+import us.kbase.auth.client.transport.PooledTransport;
+import us.kbase.test.auth.client.server.FakeAuthServer;
+
+/** A multi-threaded load test of the client against a local {@link FakeAuthServer}. Many
+ * threads make mixed validateToken and isValidUserName calls over working sets of tokens and
+ * users larger than the client's caches, so the caches are continually evicting. Checks that
+ * every call returns the correct result and reports throughput, latency percentiles, request
+ * counts, cache hit rates, and eviction pauses.
+ * 
+ * By default runs a short smoke test. Runs the full load test if the test.benchmark system
+ * property is true, e.g.
+ * ./gradlew test -Ptest.benchmark=true --tests '*AuthClientLoadTest'
+ * 
+ * Settings can be overridden with load.* properties, e.g. -Pload.threads=500. See
+ * {@link #mixedLoad()} for the settings.
+ */
+public class AuthClientLoadTest {
+	
+	private static int setting(final String name, final int smoke, final int full) {
+		final String value = System.getProperty("load." + name);
+		if (value != null) {
+			return Integer.parseInt(value);
+		}
+		return Boolean.getBoolean("test.benchmark") ? full : smoke;
+	}
+	
+	@Test
+	public void mixedLoad() throws Exception {
+		final int threads = setting("threads", 16, 200);
+		final int durationMS = setting("durationMS", 1000, 20000);
+		final int tokenCount = setting("tokens", 500, 20000);
+		final int userCount = setting("users", 500, 20000);
+		final int cacheSize = setting("cacheSize", 100, 1000);
+		final int userPercent = setting("userPercent", 20, 20);
+		final int latencyMS = setting("latencyMS", 0, 2);
+		
+		final InMemoryMetrics metrics = new InMemoryMetrics();
+		final ExecutorService exe = Executors.newFixedThreadPool(threads);
+		try (final FakeAuthServer server = new FakeAuthServer(32);
+				final PooledTransport transport = new PooledTransport(64, 30000)) {
+			server.setLatency(latencyMS);
+			final String[] tokens = new String[tokenCount];
+			for (int i = 0; i < tokenCount; i++) {
+				tokens[i] = "token" + i;
+				server.addToken(tokens[i], "owner" + i);
+			}
+			// only even numbered users exist
+			for (int i = 0; i < userCount; i += 2) {
+				server.addUser("user" + i);
+			}
+			final AuthClient client = AuthClient.builder(server.getRootURI())
+					.withTransport(transport)
+					.withMetrics(metrics)
+					.withTokenCache(cacheSize, cacheSize * 2)
+					.withUserCache(cacheSize, cacheSize * 2, 3600)
+					.withMissingUserCache(cacheSize, cacheSize * 2, 3600)
+					.build();
+			
+			final Histogram tokenLatency = new Histogram();
+			final Histogram userLatency = new Histogram();
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<?>> futures = new ArrayList<>();
+			final long[] end = new long[1];
+			for (int t = 0; t < threads; t++) {
+				futures.add(exe.submit(() -> {
+					start.await();
+					final ThreadLocalRandom r = ThreadLocalRandom.current();
+					while (System.nanoTime() < end[0] && failure.get() == null) {
+						try {
+							if (r.nextInt(100) < userPercent) {
+								checkUsers(client, tokens, userCount, userLatency, r);
+							} else {
+								checkToken(client, tokens, tokenLatency, r);
+							}
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+					return null;
+				}));
+			}
+			end[0] = System.nanoTime() + durationMS * 1000000L;
+			final long startNanos = System.nanoTime();
+			start.countDown();
+			for (final Future<?> f: futures) {
+				f.get(durationMS + 60000, TimeUnit.MILLISECONDS);
+			}
+			final double seconds = (System.nanoTime() - startNanos) / 1e9;
+			if (failure.get() != null) {
+				throw new AssertionError("Load test call failed", failure.get());
+			}
+			
+			report(threads, seconds, tokenLatency, userLatency, server, metrics);
+			final long tokenRequests = server.getRequestCount(Endpoint.TOKEN);
+			assertThat("no token calls", tokenLatency.getCount() > 0, is(true));
+			assertThat("more token requests than calls",
+					tokenRequests <= tokenLatency.getCount(), is(true));
+			assertThat("client and server request counts differ",
+					metrics.getRequestCount(Endpoint.TOKEN), is(tokenRequests));
+			if (tokenLatency.getCount() > cacheSize * 4) {
+				assertThat("no evictions", metrics.getCacheEvictions(Cache.TOKEN) > 0, is(true));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+	
+	private void checkToken(
+			final AuthClient client,
+			final String[] tokens,
+			final Histogram latency,
+			final ThreadLocalRandom r)
+			throws Exception {
+		final int i = r.nextInt(tokens.length);
+		final long start = System.nanoTime();
+		final AuthToken t = client.validateToken(tokens[i]);
+		latency.record(System.nanoTime() - start);
+		if (!t.getUserName().equals("owner" + i)) {
+			throw new AssertionError("Incorrect user for token " + tokens[i] + ": " + t);
+		}
+	}
+	
+	private void checkUsers(
+			final AuthClient client,
+			final String[] tokens,
+			final int userCount,
+			final Histogram latency,
+			final ThreadLocalRandom r)
+			throws Exception {
+		final List<String> users = new ArrayList<>();
+		for (int j = 1 + r.nextInt(5); j > 0; j--) {
+			users.add("user" + r.nextInt(userCount));
+		}
+		final long start = System.nanoTime();
+		final Map<String, Boolean> res = client.isValidUserName(
+				users, tokens[r.nextInt(tokens.length)]);
+		latency.record(System.nanoTime() - start);
+		for (final String u: users) {
+			final boolean exists = Integer.parseInt(u.substring("user".length())) % 2 == 0;
+			if (res.get(u) != exists) {
+				throw new AssertionError(String.format(
+						"Incorrect result for user %s: %s", u, res.get(u)));
+			}
+		}
+	}
+	
+	private void report(
+			final int threads,
+			final double seconds,
+			final Histogram tokenLatency,
+			final Histogram userLatency,
+			final FakeAuthServer server,
+			final InMemoryMetrics metrics) {
+		final long calls = tokenLatency.getCount() + userLatency.getCount();
+		System.out.println(String.format("%s threads, %.1f s, %s calls, %.0f calls/s",
+				threads, seconds, calls, calls / seconds));
+		System.out.println("validateToken latency: " + latency(tokenLatency));
+		System.out.println("isValidUserName latency: " + latency(userLatency));
+		System.out.println(String.format("requests: token %s, users %s",
+				server.getRequestCount(Endpoint.TOKEN), server.getRequestCount(Endpoint.USERS)));
+		for (final Cache c: new Cache[] {Cache.TOKEN, Cache.USER, Cache.MISSING_USER}) {
+			final Histogram pauses = metrics.getEvictionNanos(c);
+			System.out.println(String.format(
+					"%s cache: hit rate %.3f, %s evicted in %s evictions, pause p50 %.3f ms, "
+					+ "p99 %.3f ms, max %.3f ms",
+					c,
+					metrics.getCacheHitRate(c),
+					metrics.getCacheEvictions(c),
+					pauses.getCount(),
+					pauses.getPercentile(50) / 1e6,
+					pauses.getPercentile(99) / 1e6,
+					pauses.getMax() / 1e6));
+		}
+	}
+	
+	private String latency(final Histogram h) {
+		return String.format("p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+				h.getPercentile(50) / 1e6,
+				h.getPercentile(90) / 1e6,
+				h.getPercentile(99) / 1e6,
+				h.getPercentile(99.9) / 1e6,
+				h.getMax() / 1e6);
+	}
+}
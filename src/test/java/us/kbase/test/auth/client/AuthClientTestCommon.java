@@ -0,0 +1,51 @@
+package us.kbase.test.auth.client;
+
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.test.common.TestCommon;
+
+/** Helpers for tests of the auth client that run against a {@link FakeTransport}. */
+public class AuthClientTestCommon {
+	
+	public static final URI ROOT = URI.create("https://fake.kbase.us/services/auth");
+	
+	public static void failConfig(final Runnable r, final Exception expected) {
+		try {
+			r.run();
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	public static void failValidate(
+			final AuthClient c,
+			final String token,
+			final Exception expected)
+			throws Exception {
+		try {
+			c.validateToken(token);
+			fail("expected exception");
+		} catch (IOException | AuthException got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	public static void failAsync(final CompletableFuture<?> f, final Exception expected)
+			throws Exception {
+		try {
+			f.get(10, TimeUnit.SECONDS);
+			fail("expected exception");
+		} catch (ExecutionException got) {
+			TestCommon.assertExceptionCorrect(got.getCause(), expected);
+		}
+	}
+}
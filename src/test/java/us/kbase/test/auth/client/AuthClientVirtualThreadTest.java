@@ -0,0 +1,97 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+import us.kbase.auth.client.transport.HttpTransport;
+import us.kbase.auth.client.transport.PooledTransport;
+import us.kbase.auth.client.transport.URLConnectionTransport;
+import us.kbase.test.auth.client.server.FakeAuthServer;
+
+/** Runs 100,000 virtual threads through {@link AuthClient#validateToken(String)} against a
+ * local {@link FakeAuthServer}, with a token cache small enough that the threads block on
+ * requests to the server, coalesced requests, and evictions. Skipped on JDKs without virtual
+ * threads.
+ *
+ * To check that no thread is pinned to its carrier while blocking, run on JDK 21 with
+ * -Djdk.tracePinnedThreads=full, which prints a stack trace for each pinned thread, e.g.
+ * ./gradlew test -Ptest.java.home=/path/to/jdk21 -Ptest.tracePinnedThreads=full
+ * --tests '*VirtualThreadTest'
+ */
+public class AuthClientVirtualThreadTest {
+	
+	private static final int THREADS = 100_000;
+	private static final int TOKENS = 2000;
+	
+	// Java 8 compatible, so virtual threads are created reflectively
+	private static ExecutorService newVirtualThreadExecutor() throws Exception {
+		final Method m;
+		try {
+			m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			Assume.assumeTrue("Virtual threads are not supported", false);
+			throw e; // unreachable
+		}
+		return (ExecutorService) m.invoke(null);
+	}
+	
+	@Test
+	public void pooledTransport() throws Exception {
+		try (final PooledTransport transport = new PooledTransport(32, 30000)) {
+			validateTokens(transport);
+		}
+	}
+	
+	@Test
+	public void urlConnectionTransport() throws Exception {
+		validateTokens(new URLConnectionTransport());
+	}
+	
+	private void validateTokens(final HttpTransport transport) throws Exception {
+		final ExecutorService exe = newVirtualThreadExecutor();
+		try (final FakeAuthServer server = new FakeAuthServer(32)) {
+			for (int i = 0; i < TOKENS; i++) {
+				server.addToken("token" + i, "owner" + i);
+			}
+			final AuthClient client = AuthClient.builder(server.getRootURI())
+					.withTransport(transport)
+					.withTokenCache(500, 1000)
+					.build();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<AuthToken>> futures = new ArrayList<>(THREADS);
+			for (int t = 0; t < THREADS; t++) {
+				final String token = "token" + t % TOKENS;
+				futures.add(exe.submit(() -> {
+					start.await();
+					return client.validateToken(token);
+				}));
+			}
+			start.countDown();
+			for (int t = 0; t < THREADS; t++) {
+				assertThat("incorrect token", futures.get(t).get(120, TimeUnit.SECONDS),
+						is(new AuthToken("token" + t % TOKENS, "owner" + t % TOKENS)));
+			}
+			final long requests = server.getRequestCount(Endpoint.TOKEN);
+			assertThat("too few requests: " + requests, requests >= TOKENS, is(true));
+			assertThat("too many requests: " + requests, requests <= THREADS, is(true));
+		} finally {
+			exe.shutdownNow();
+			exe.awaitTermination(30, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failConfig;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failValidate;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.AuthServerException;
+import us.kbase.auth.client.AuthTimeoutException;
+import us.kbase.auth.client.CircuitBreaker.State;
+import us.kbase.auth.client.CircuitBreakerOpenException;
+import us.kbase.auth.client.transport.HttpResponse;
+import us.kbase.auth.client.transport.PoolExhaustedException;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+/** Tests of the auth client's retries and circuit breaker, run against a
+ * {@link FakeTransport}.
+ */
+public class CircuitBreakerTest {
+	
+	@Test
+	public void retries() throws Exception {
+		final List<Object> responses = Collections.synchronizedList(new LinkedList<>(
+				Arrays.asList(
+						new IOException("network down"),
+						new SocketTimeoutException("read timed out"),
+						FakeTransport.response(503, "<html>Service Unavailable</html>"),
+						FakeTransport.response(500, "{\"error\": {\"httpcode\": 500, "
+								+ "\"appcode\": null, \"message\": \"oops\"}}"),
+						FakeTransport.token("foo"),
+						FakeTransport.invalidToken(),
+						new IOException("still down"),
+						new IOException("still down again"))));
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			final Object r = responses.remove(0);
+			if (r instanceof IOException) {
+				throw (IOException) r;
+			}
+			return (HttpResponse) r;
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withRetries(4, 1, 2)
+				.build();
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(5));
+		
+		// error responses from the auth service are not retried
+		try {
+			c.validateToken("tok2");
+			fail("expected exception");
+		} catch (AuthServerException got) {
+			TestCommon.assertExceptionCorrect(got, new AuthServerException(
+					"Auth service returned an error: 10020 Invalid token", 401, 10020));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(6));
+		
+		// the last error is thrown when the retries are exhausted
+		final AuthClient c2 = AuthClient.builder(ROOT).withTransport(t).withRetries(1, 1, 1)
+				.build();
+		try {
+			c2.validateToken("tok3");
+			fail("expected exception");
+		} catch (IOException got) {
+			TestCommon.assertExceptionCorrect(got, new IOException("still down again"));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(8));
+	}
+	
+	@Test
+	public void retriesRespectDeadline() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			throw new IOException("network down");
+		});
+		final ExecutorService exe = Executors.newCachedThreadPool();
+		try {
+			final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withExecutor(exe)
+					.withRetries(1000, 20, 50).build();
+			final long start = System.nanoTime();
+			try {
+				c.validateToken("tok", 200);
+				fail("expected exception");
+			} catch (AuthTimeoutException got) {
+				TestCommon.assertExceptionCorrect(got, new AuthTimeoutException(
+						"No response from the auth service within 200 ms"));
+			}
+			final long elapsed = (System.nanoTime() - start) / 1000000;
+			assertThat("deadline not respected: " + elapsed, elapsed < 2000, is(true));
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void circuitBreaker() throws Exception {
+		final AtomicBoolean down = new AtomicBoolean(true);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (down.get()) {
+				throw new IOException("network down");
+			}
+			return token.equals("bad") ? FakeTransport.invalidToken() : FakeTransport.token("foo");
+		});
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final List<String> transitions = Collections.synchronizedList(new ArrayList<>());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withRetries(1, 1, 1)
+				.withCircuitBreaker(3, 1000, (from, to) -> transitions.add(from + "->" + to))
+				.build();
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		
+		final CircuitBreakerOpenException open = new CircuitBreakerOpenException(
+				"The circuit breaker is open, not contacting the auth service");
+		// 2 attempts for the first call. The breaker opens on the first attempt of the second
+		// call, which blocks the retry
+		for (int i = 0; i < 2; i++) {
+			failValidate(c, "tok", new IOException("network down"));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		assertThat("incorrect transitions", transitions, is(Arrays.asList("CLOSED->OPEN")));
+		
+		// fails immediately while open
+		clock.advance(999);
+		failValidate(c, "tok", open);
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		
+		// a failed trial reopens the breaker
+		clock.advance(1);
+		failValidate(c, "tok", new IOException("network down"));
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		clock.advance(999);
+		failValidate(c, "tok", open);
+		
+		// an error response from the auth service is a successful trial
+		down.set(false);
+		clock.advance(1);
+		failValidate(c, "bad", new AuthServerException(
+				"Auth service returned an error: 10020 Invalid token", 401, 10020));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(6));
+		assertThat("incorrect transitions", transitions, is(Arrays.asList(
+				"CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->OPEN", "OPEN->HALF_OPEN",
+				"HALF_OPEN->CLOSED")));
+		
+		final AuthClient noBreaker = AuthClient.builder(ROOT).withTransport(t).build();
+		assertThat("incorrect state", noBreaker.getCircuitBreakerState(), is((State) null));
+	}
+	
+	@Test
+	public void circuitBreakerServesStaleTokens() throws Exception {
+		final AtomicBoolean down = new AtomicBoolean(false);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (down.get()) {
+				throw new IOException("network down");
+			}
+			return FakeTransport.token("foo");
+		});
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withTokenCacheMaxAge(1000).withCircuitBreaker(1, 10000)
+				.withStaleTokenGrace(500).build();
+		final AuthToken expected = new AuthToken("tok", "foo");
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		
+		// the failed request opens the breaker, so the stale token is returned
+		down.set(true);
+		clock.advance(1001);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		clock.advance(499);
+		assertThat("incorrect token", c.validateTokenAsync("tok").get(), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		// past the grace period
+		clock.advance(1);
+		failValidate(c, "tok", new CircuitBreakerOpenException(
+				"The circuit breaker is open, not contacting the auth service"));
+		// uncached tokens fail
+		failValidate(c, "tok2", new CircuitBreakerOpenException(
+				"The circuit breaker is open, not contacting the auth service"));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+	@Test
+	public void circuitBreakerServesStaleTokensOnServerErrors() throws Exception {
+		final AtomicInteger status = new AtomicInteger(200);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			switch (status.get()) {
+				case 500: return FakeTransport.response(500, "{\"error\": {\"httpcode\": 500, "
+						+ "\"appcode\": null, \"message\": \"oops\"}}");
+				case 503: return FakeTransport.response(503, "<html>Service Unavailable</html>");
+				case 401: return FakeTransport.invalidToken();
+				default: return FakeTransport.token("foo");
+			}
+		});
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withTokenCacheMaxAge(1000).withCircuitBreaker(2, 100)
+				.withStaleTokenGrace(10000).build();
+		final AuthToken expected = new AuthToken("tok", "foo");
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect token", c.validateToken("tok2"), is(new AuthToken("tok2", "foo")));
+		
+		// the breaker opens on the second error response
+		status.set(500);
+		clock.advance(1001);
+		failValidate(c, "tok", new AuthServerException(
+				"Auth service returned an error: oops", 500, -1));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		
+		// a failed trial with a response from a proxy
+		status.set(503);
+		clock.advance(100);
+		assertThat("incorrect token", c.validateToken("tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(5));
+		
+		// a rejection from the auth service is not overridden
+		status.set(401);
+		clock.advance(100);
+		failValidate(c, "tok2", new AuthServerException(
+				"Auth service returned an error: 10020 Invalid token", 401, 10020));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+	}
+	
+	@Test
+	public void poolExhaustionIsNotAFailure() throws Exception {
+		final AtomicInteger status = new AtomicInteger(0);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			switch (status.get()) {
+				case 0: throw new PoolExhaustedException("no connections");
+				case 1: throw new IOException("network down");
+				default: return FakeTransport.token("foo");
+			}
+		});
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withRetries(3, 1, 1).withCircuitBreaker(1, 1000).build();
+		
+		// not retried, and doesn't open the breaker
+		failValidate(c, "tok", new PoolExhaustedException("no connections"));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		
+		status.set(1);
+		failValidate(c, "tok", new IOException("network down"));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		// a trial that isn't sent doesn't close the breaker, and the next request is the trial
+		status.set(0);
+		clock.advance(1000);
+		failValidate(c, "tok", new PoolExhaustedException("no connections"));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		status.set(2);
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+	}
+	
+	@Test
+	public void runtimeExceptionReleasesTrial() throws Exception {
+		final AtomicInteger status = new AtomicInteger(0);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			switch (status.get()) {
+				case 0: throw new IOException("network down");
+				case 1: throw new IllegalStateException("transport is closed");
+				default: return FakeTransport.token("foo");
+			}
+		});
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withCircuitBreaker(1, 10).build();
+		failValidate(c, "tok", new IOException("network down"));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		
+		// the trial throws, and the next request is the trial
+		status.set(1);
+		clock.advance(10);
+		try {
+			c.validateToken("tok");
+			fail("expected exception");
+		} catch (IllegalStateException got) {
+			TestCommon.assertExceptionCorrect(
+					got, new IllegalStateException("transport is closed"));
+		}
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.OPEN));
+		status.set(2);
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		assertThat("incorrect state", c.getCircuitBreakerState(), is(State.CLOSED));
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+	}
+	
+	@Test
+	public void resilienceConfigFail() throws Exception {
+		final AuthClient.Builder b = AuthClient.builder(ROOT);
+		failConfig(() -> b.withRetries(-1, 1, 1),
+				new IllegalArgumentException("maxRetries must be >= 0"));
+		failConfig(() -> b.withRetries(1, 0, 1),
+				new IllegalArgumentException("initialBackoffMS must be > 0"));
+		failConfig(() -> b.withRetries(1, 2, 1),
+				new IllegalArgumentException("maxBackoffMS must be >= initialBackoffMS"));
+		failConfig(() -> b.withCircuitBreaker(0, 1),
+				new IllegalArgumentException("failureThreshold must be > 0"));
+		failConfig(() -> b.withCircuitBreaker(1, 0, null),
+				new IllegalArgumentException("openMS must be > 0"));
+		failConfig(() -> b.withStaleTokenGrace(0),
+				new IllegalArgumentException("graceMS must be > 0"));
+		
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		try {
+			AuthClient.builder(ROOT).withTransport(t).withStaleTokenGrace(1).build();
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalStateException(
+					"A stale token grace period requires a circuit breaker"));
+		}
+	}
+	
+}
@@ -0,0 +1,107 @@
+package us.kbase.test.auth.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import us.kbase.auth.client.transport.HttpResponse;
+import us.kbase.auth.client.transport.HttpTransport;
+
+/** A scriptable transport for testing the auth client without an auth server. Requests for
+ * the root document are answered automatically.
+ */
+public class FakeTransport implements HttpTransport {
+	
+	public static final String ROOT_DOC =
+			"{\"version\": \"0.7.1\", \"servicename\": \"Authentication Service\"}";
+	
+	public interface Handler {
+		
+		HttpResponse handle(URI target, String token) throws IOException;
+	}
+	
+	public static class Request {
+		
+		public final URI target;
+		public final String token;
+		
+		public Request(final URI target, final String token) {
+			this.target = target;
+			this.token = token;
+		}
+		
+		@Override
+		public String toString() {
+			return "Request [target=" + target + ", token=" + token + "]";
+		}
+	}
+	
+	private final Handler handler;
+	private final List<Request> requests = Collections.synchronizedList(new LinkedList<>());
+	
+	public FakeTransport(final Handler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public HttpResponse get(final URI target, final String token) throws IOException {
+		if (target.getPath().replaceAll("/+$", "").equals("/services/auth")) {
+			return response(200, ROOT_DOC);
+		}
+		requests.add(new Request(target, token));
+		return handler.handle(target, token);
+	}
+	
+	/** Get the requests made to the transport, excluding requests for the root document. */
+	public List<Request> getRequests() {
+		synchronized (requests) {
+			return new LinkedList<>(requests);
+		}
+	}
+	
+	public static HttpResponse response(final int code, final String body) {
+		final InputStream is = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+		return new HttpResponse() {
+			
+			@Override
+			public int getStatusCode() {
+				return code;
+			}
+			
+			@Override
+			public InputStream getBody() {
+				return is;
+			}
+			
+			@Override
+			public void close() {
+				// nothing to do
+			}
+		};
+	}
+	
+	public static HttpResponse invalidToken() {
+		return response(401, "{\"error\": {\"httpcode\": 401, \"httpstatus\": \"Unauthorized\", "
+				+ "\"appcode\": 10020, \"apperror\": \"Invalid token\", "
+				+ "\"message\": \"10020 Invalid token\"}}");
+	}
+	
+	public static HttpResponse token(final String user) {
+		return token(user, System.currentTimeMillis() + 24 * 3600 * 1000L);
+	}
+	
+	public static HttpResponse token(final String user, final long expires) {
+		return response(200, String.format(
+				"{\"type\": \"Login\", \"id\": \"fakeid\", \"expires\": %s, \"created\": %s, "
+				+ "\"name\": null, \"user\": \"%s\", \"custom\": {}, \"cachefor\": 300000}",
+				expires,
+				System.currentTimeMillis(),
+				user));
+	}
+
+}
@@ -0,0 +1,78 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthException;
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.test.common.TestCommon;
+
+/** Tests of the auth client's response decoding, run against a {@link FakeTransport}. */
+public class ResponseParserTest {
+	
+	@Test
+	public void responseDecoding() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (target.getPath().endsWith("token")) {
+				// unknown fields, including nested structures, are skipped
+				return FakeTransport.response(200, "{\"custom\": {\"a\": [1, {\"user\": \"x\"}]}, "
+						+ "\"user\": \"foo\", \"expires\": 1, \"name\": null}");
+			}
+			return FakeTransport.response(200, "{\"foo\": \"Foo\", \"bar\": {\"baz\": 1}}");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		assertThat("incorrect token", c.validateToken("tok"), is(new AuthToken("tok", "foo")));
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		expected.put("bar", true);
+		expected.put("baz", false);
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo", "bar", "baz"), "t"),
+				is(expected));
+	}
+	
+	@Test
+	public void responseDecodingFail() throws Exception {
+		final String longtext = "<!doctype html><html lang=\"en\">" +
+				new String(new char[200]).replace('\0', 'x');
+		final String euros = new String(new char[150]).replace('\0', '\u20ac');
+		final String prefix = "Failed reading from auth url " + ROOT + "/api/V2/token with "
+				+ "response code ";
+		failResponse(200, longtext, new AuthException(prefix + "200 - response is not JSON: "
+				+ longtext.substring(0, 97) + "..."));
+		failResponse(200, euros, new AuthException(prefix + "200 - response is not JSON: "
+				+ euros.substring(0, 97) + "..."));
+		failResponse(400, "", new AuthException(prefix + "400 - response is not JSON: "));
+		failResponse(200, "[\"foo\"]", new AuthException(
+				prefix + "200 - response is not JSON: [\"foo\"]"));
+		failResponse(200, "{\"user\": \"foo\"", new AuthException(
+				prefix + "200 - response is not JSON: {\"user\": \"foo\""));
+		failResponse(500, "{\"err\": \"foo\"}", new AuthException(
+				"Unexpected error response from auth url " + ROOT + "/api/V2/token with "
+				+ "response code 500: {\"err\": \"foo\"}"));
+		failResponse(500, "{\"error\": {\"message\": \"oh no\"}, \"foo\": [1, 2]}",
+				new AuthException("Auth service returned an error: oh no"));
+	}
+	
+	private void failResponse(final int code, final String body, final Exception expected)
+			throws Exception {
+		final FakeTransport t = new FakeTransport(
+				(target, token) -> FakeTransport.response(code, body));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).build();
+		try {
+			c.validateToken("tok");
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+}
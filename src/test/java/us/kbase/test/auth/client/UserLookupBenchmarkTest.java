@@ -0,0 +1,102 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.transport.PooledTransport;
+import us.kbase.test.auth.client.server.FakeAuthServer;
+
+/** Compares the latency of username lookups of different sizes against a local
+ * {@link FakeAuthServer}.
+ * 
+ * Only runs if the test.benchmark system property is true, e.g.
+ * ./gradlew test -Ptest.benchmark=true --tests '*UserLookupBenchmarkTest'
+ */
+public class UserLookupBenchmarkTest {
+	
+	private static final int ITERATIONS = 20;
+	// simulates the server processing time per request
+	private static final int SERVER_DELAY_MS = 5;
+	
+	private static FakeAuthServer server;
+	private static URI root;
+	
+	@BeforeClass
+	public static void startServer() throws Exception {
+		Assume.assumeTrue("Benchmarks are disabled", Boolean.getBoolean("test.benchmark"));
+		server = new FakeAuthServer().setLatency(SERVER_DELAY_MS).addToken("tok", "user");
+		for (int i = 0; i < 10000; i++) {
+			server.addUser(String.format("user%06d", i));
+		}
+		root = server.getRootURI();
+	}
+	
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void userLookupLatency() throws Exception {
+		final ExecutorService exe = Executors.newCachedThreadPool();
+		try (final PooledTransport transport = new PooledTransport()) {
+			for (final int count: Arrays.asList(10, 1000, 10000)) {
+				final List<String> users = new ArrayList<>();
+				for (int i = 0; i < count; i++) {
+					users.add(String.format("user%06d", i));
+				}
+				final List<Long> sync = new ArrayList<>();
+				final List<Long> async = new ArrayList<>();
+				for (int i = 0; i < ITERATIONS; i++) {
+					// new clients so the lookups aren't cached
+					final AuthClient c1 = AuthClient.builder(root).withTransport(transport)
+							.build();
+					long start = System.nanoTime();
+					check(c1.isValidUserName(users, "tok"), count);
+					sync.add(System.nanoTime() - start);
+					
+					final AuthClient c2 = AuthClient.builder(root).withTransport(transport)
+							.build();
+					start = System.nanoTime();
+					check(c2.isValidUserNameAsync(users, "tok", exe).get(60, TimeUnit.SECONDS),
+							count);
+					async.add(System.nanoTime() - start);
+				}
+				System.out.println(String.format(
+						"%s users: sequential %s, parallelism %s %s",
+						count, summary(sync),
+						AuthClient.Builder.DEFAULT_USER_LOOKUP_PARALLELISM, summary(async)));
+			}
+		} finally {
+			exe.shutdown();
+		}
+	}
+	
+	private void check(final Map<String, Boolean> res, final int count) {
+		assertThat("incorrect result count", res.size(), is(count));
+	}
+	
+	private String summary(final List<Long> nanos) {
+		Collections.sort(nanos);
+		return String.format("median %.2f ms, max %.2f ms",
+				nanos.get(nanos.size() / 2) / 1e6, nanos.get(nanos.size() - 1) / 1e6);
+	}
+}
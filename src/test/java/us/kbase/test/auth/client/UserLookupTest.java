@@ -0,0 +1,252 @@
+package us.kbase.test.auth.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failAsync;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import us.kbase.auth.client.AuthClient;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+/** Tests of the auth client's missing user cache and chunked user lookups, run against a
+ * {@link FakeTransport}.
+ */
+public class UserLookupTest {
+	
+	@Test
+	public void isValidUserNameCachesMissingUsers() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.response(
+				200, "{\"foo\": \"Foo Bar\"}"));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withMissingUserCache(2, 3, 1).build();
+		
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		expected.put("bar", false);
+		expected.put("baz", false);
+		final List<String> users = Arrays.asList("foo", "bar", "baz");
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// all cached, positively or negatively
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// missing users expire from the cache, existing users don't
+		Thread.sleep(1100);
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		assertThat("incorrect target", t.getRequests().get(1).target,
+				is(URI.create(ROOT + "/api/V2/users/?list=bar,baz")));
+	}
+	
+	@Test
+	public void isValidUserNameCacheExpiryUsesClientClock() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.response(
+				200, target.getQuery().contains("foo") ? "{\"foo\": \"Foo Bar\"}" : "{}"));
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withUserCache(1, 2, 10).withMissingUserCache(1, 2, 5).build();
+		
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		expected.put("bar", false);
+		final List<String> users = Arrays.asList("foo", "bar");
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// the missing user expires according to the client's clock
+		clock.advance(5001);
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		assertThat("incorrect target", t.getRequests().get(1).target,
+				is(URI.create(ROOT + "/api/V2/users/?list=bar")));
+		
+		// and so does the user
+		clock.advance(5000);
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+		assertThat("incorrect target", t.getRequests().get(2).target,
+				is(URI.create(ROOT + "/api/V2/users/?list=foo")));
+	}
+	
+	@Test
+	public void missingUserCacheFail() throws Exception {
+		failMissingUserCache(2, 2, 1, new IllegalArgumentException("size must be < maxsize"));
+		failMissingUserCache(2, 3, 0, new IllegalArgumentException("seconds must be > 0"));
+	}
+	
+	private void failMissingUserCache(
+			final int size,
+			final int maxsize,
+			final long expiry,
+			final Exception expected) {
+		try {
+			AuthClient.builder(ROOT).withMissingUserCache(size, maxsize, expiry);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	private static FakeTransport.Handler evenUsersExist(
+			final AtomicInteger active,
+			final AtomicInteger maxActive) {
+		return (target, token) -> {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			final List<String> users = Arrays.asList(
+					target.getRawQuery().substring("list=".length()).split(","));
+			final String body = users.stream()
+					.filter(u -> Integer.parseInt(u.substring(4)) % 2 == 0)
+					.map(u -> "\"" + u + "\": \"name\"")
+					.collect(Collectors.joining(", ", "{", "}"));
+			active.decrementAndGet();
+			return FakeTransport.response(200, body);
+		};
+	}
+	
+	@Test
+	public void isValidUserNameChunksLargeLists() throws Exception {
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final FakeTransport t = new FakeTransport(evenUsersExist(active, maxActive));
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withUserLookupParallelism(2).build();
+		
+		final List<String> users = new ArrayList<>();
+		final Map<String, Boolean> expected = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			final String u = String.format("user%06d", i);
+			users.add(u);
+			expected.put(u, i % 2 == 0);
+		}
+		users.add("user000001"); // duplicates are only looked up once
+		final ExecutorService exe = Executors.newFixedThreadPool(10);
+		try {
+			assertThat("incorrect users", c.isValidUserNameAsync(users, "tok", exe)
+					.get(10, TimeUnit.SECONDS), is(expected));
+		} finally {
+			exe.shutdown();
+		}
+		final List<FakeTransport.Request> reqs = t.getRequests();
+		// 11 chars per user incl. separator, so 363 users per 4000 char request
+		assertThat("incorrect request count", reqs.size(), is(6));
+		final List<String> requested = new ArrayList<>();
+		for (final FakeTransport.Request r: reqs) {
+			assertThat("incorrect path", r.target.getPath(), is("/services/auth/api/V2/users/"));
+			assertThat("query too long", r.target.getRawQuery().length() <= 4005, is(true));
+			requested.addAll(Arrays.asList(r.target.getRawQuery().substring(5).split(",")));
+		}
+		Collections.sort(requested);
+		assertThat("incorrect requested users", requested, is(users.subList(0, 2000)));
+		assertThat("too many concurrent requests", maxActive.get() <= 2, is(true));
+		
+		// now from cache
+		assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(6));
+	}
+	
+	@Test
+	public void isValidUserNameChunksLargeListsSync() throws Exception {
+		// the chunks are requested concurrently on the client executor
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final FakeTransport.Handler h = evenUsersExist(active, maxActive);
+		// the first two requests wait for each other, so they must overlap
+		final CountDownLatch overlap = new CountDownLatch(2);
+		final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			threads.add(Thread.currentThread().getName());
+			overlap.countDown();
+			try {
+				if (!overlap.await(10, TimeUnit.SECONDS)) {
+					throw new IOException("requests did not overlap");
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return h.handle(target, token);
+		});
+		final ExecutorService exe = Executors.newFixedThreadPool(
+				10, r -> new Thread(r, "client executor"));
+		try {
+			final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withExecutor(exe)
+					.withUserLookupParallelism(2).build();
+			
+			final List<String> users = new ArrayList<>();
+			final Map<String, Boolean> expected = new HashMap<>();
+			for (int i = 0; i < 1000; i++) {
+				final String u = String.format("user%06d", i);
+				users.add(u);
+				expected.put(u, i % 2 == 0);
+			}
+			assertThat("incorrect users", c.isValidUserName(users, "tok"), is(expected));
+			assertThat("incorrect request count", t.getRequests().size(), is(3));
+			assertThat("incorrect max concurrent requests", maxActive.get(), is(2));
+			assertThat("incorrect threads", threads, is(Collections.nCopies(3, "client executor")));
+			
+			// a single request is made on the calling thread
+			threads.clear();
+			c.isValidUserName(Arrays.asList("user002000", "user002001"), "tok");
+			assertThat("incorrect threads", threads,
+					is(Arrays.asList(Thread.currentThread().getName())));
+		} finally {
+			exe.shutdown();
+		}
+	}
+	
+	@Test
+	public void isValidUserNameChunkFail() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (count.incrementAndGet() == 2) {
+				throw new IOException("network down");
+			}
+			return FakeTransport.response(200, "{}");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withUserLookupParallelism(1).build();
+		final List<String> users = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			users.add(String.format("user%06d", i));
+		}
+		failAsync(c.isValidUserNameAsync(users, "tok", r -> new Thread(r).start()),
+				new IOException("network down"));
+		// the remaining chunk is not requested after the failure
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		try {
+			AuthClient.builder(ROOT).withUserLookupParallelism(0);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"parallelism must be > 0"));
+		}
+	}
+	
+}
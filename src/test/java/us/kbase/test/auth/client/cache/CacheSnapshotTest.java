@@ -0,0 +1,339 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.cache.AbstractTokenCache;
+import us.kbase.auth.client.cache.CacheSnapshot;
+import us.kbase.auth.client.cache.CompactTokenCache;
+import us.kbase.auth.client.cache.StringCache;
+import us.kbase.auth.client.cache.TokenCache;
+import us.kbase.test.auth.client.FakeTransport;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+public class CacheSnapshotTest {
+	
+	private Path dir;
+	private Path file;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("CacheSnapshotTest");
+		file = dir.resolve("snapshot");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (final Path p: Files.list(dir).toArray(Path[]::new)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+	
+	@Test
+	public void roundTrip() throws Exception {
+		roundTrip(c -> new TokenCache(5, 10, c), c -> new TokenCache(5, 10, c));
+	}
+	
+	@Test
+	public void roundTripCompact() throws Exception {
+		roundTrip(c -> new CompactTokenCache(5, 10, c), c -> new CompactTokenCache(5, 10, c));
+	}
+	
+	@Test
+	public void roundTripMixed() throws Exception {
+		roundTrip(c -> new TokenCache(5, 10, c), c -> new CompactTokenCache(5, 10, c));
+		roundTrip(c -> new CompactTokenCache(5, 10, c), c -> new TokenCache(5, 10, c));
+	}
+	
+	private interface CacheFactory {
+		AbstractTokenCache create(FakeClock clock);
+	}
+	
+	private void roundTrip(final CacheFactory from, final CacheFactory to) throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final AbstractTokenCache tc = from.create(clock);
+		tc.setMaxAgeMS(10000);
+		tc.setExpiryMarginMS(1000);
+		tc.putValidToken(new AuthToken("token1", "user1"));
+		tc.putValidToken(new AuthToken("token2", "user2"), 106000); // cached until 105000
+		tc.putValidToken(new AuthToken("token3", "user1"));
+		tc.putValidToken(new AuthToken("token4", "user4"), 102000); // cached until 101000
+		final StringCache sc = new StringCache(5, 10);
+		sc.putString("user1");
+		sc.putString("user5");
+		
+		clock.advance(1001); // token4 expires
+		final CacheSnapshot.Counts wrote = CacheSnapshot.write(file, tc, sc);
+		assertThat("incorrect tokens", wrote.getTokens(), is(3));
+		assertThat("incorrect users", wrote.getUsers(), is(2));
+		final String contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+		assertThat("token in snapshot", contents.contains("token"), is(false));
+		if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null) {
+			assertThat("incorrect permissions", PosixFilePermissions.toString(
+					Files.getPosixFilePermissions(file)), is("rw-------"));
+		}
+		
+		final AbstractTokenCache tc2 = to.create(clock);
+		tc2.setMaxAgeMS(10000);
+		tc2.setExpiryMarginMS(1000);
+		final StringCache sc2 = new StringCache(5, 10);
+		final CacheSnapshot.Counts loaded = CacheSnapshot.load(file, tc2, sc2);
+		assertThat("incorrect tokens", loaded.getTokens(), is(3));
+		assertThat("incorrect users", loaded.getUsers(), is(2));
+		assertThat("incorrect token", tc2.getToken("token1"), is(new AuthToken("token1", "user1")));
+		assertThat("incorrect token", tc2.getToken("token1"), is(new AuthToken("token1", "user1")));
+		assertThat("incorrect token", tc2.getStaleToken("token3", 0),
+				is(new AuthToken("token3", "user1")));
+		assertThat("incorrect token", tc2.getToken("token3"), is(new AuthToken("token3", "user1")));
+		assertNull("unexpected token", tc2.getToken("token4"));
+		assertThat("incorrect user", sc2.hasString("user1"), is(true));
+		assertThat("incorrect user", sc2.hasString("user5"), is(true));
+		assertThat("incorrect user", sc2.hasString("user2"), is(false));
+		
+		// the remaining cache lifetime is honored
+		clock.advance(4000); // now 105001
+		assertNull("unexpected token", tc2.getToken("token2"));
+		assertThat("incorrect token", tc2.getToken("token1"), is(new AuthToken("token1", "user1")));
+		clock.advance(5000); // now 110001
+		assertNull("unexpected token", tc2.getToken("token1"));
+		assertNull("unexpected token", tc2.getToken("token3"));
+	}
+	
+	@Test
+	public void loadHonorsCacheConfig() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final TokenCache tc = new TokenCache(5, 10, clock);
+		tc.putValidToken(new AuthToken("token1", "user1"));
+		tc.putValidToken(new AuthToken("token2", "user2"), 200000);
+		CacheSnapshot.write(file, tc, new StringCache(5, 10));
+		
+		final TokenCache tc2 = new TokenCache(5, 10, clock);
+		tc2.setMaxAgeMS(1000);
+		tc2.setExpiryMarginMS(99500); // token2 is cached until 100500
+		CacheSnapshot.load(file, tc2, new StringCache(5, 10));
+		clock.advance(600);
+		assertThat("incorrect token", tc2.getToken("token1"), is(new AuthToken("token1", "user1")));
+		assertNull("unexpected token", tc2.getToken("token2"));
+		clock.advance(401);
+		assertNull("unexpected token", tc2.getToken("token1"));
+	}
+	
+	@Test
+	public void loadDoesNotReplaceEntries() throws Exception {
+		final TokenCache tc = new TokenCache(5, 10);
+		tc.putValidToken(new AuthToken("token1", "user1"));
+		CacheSnapshot.write(file, tc, new StringCache(5, 10));
+		
+		final TokenCache tc2 = new TokenCache(5, 10);
+		tc2.putValidToken(new AuthToken("token1", "user2"));
+		final CacheSnapshot.Counts loaded = CacheSnapshot.load(
+				file, tc2, new StringCache(5, 10));
+		assertThat("incorrect tokens", loaded.getTokens(), is(0));
+		assertThat("incorrect token", tc2.getToken("token1"), is(new AuthToken("token1", "user2")));
+	}
+	
+	@Test
+	public void loadEvictsByLoadTime() throws Exception {
+		// a loaded user that expires soon is still newer than users cached before the load
+		final StringCache sc = new StringCache(5, 10);
+		sc.putString("user3", System.currentTimeMillis() + 5000);
+		CacheSnapshot.write(file, new TokenCache(1, 2), sc);
+		
+		final StringCache sc2 = new StringCache(2, 3);
+		sc2.putString("user1");
+		sc2.putString("user2");
+		Thread.sleep(50);
+		CacheSnapshot.load(file, new TokenCache(1, 2), sc2);
+		Thread.sleep(50);
+		sc2.putString("user4");
+		assertThat("incorrect user", sc2.hasString("user1"), is(false));
+		assertThat("incorrect user", sc2.hasString("user2"), is(false));
+		assertThat("incorrect user", sc2.hasString("user3"), is(true));
+		assertThat("incorrect user", sc2.hasString("user4"), is(true));
+	}
+	
+	@Test
+	public void emptySnapshot() throws Exception {
+		final CacheSnapshot.Counts wrote = CacheSnapshot.write(
+				file, new TokenCache(1, 2), new StringCache(1, 2));
+		assertThat("incorrect tokens", wrote.getTokens(), is(0));
+		final CacheSnapshot.Counts loaded = CacheSnapshot.load(
+				file, new TokenCache(1, 2), new StringCache(1, 2));
+		assertThat("incorrect tokens", loaded.getTokens(), is(0));
+		assertThat("incorrect users", loaded.getUsers(), is(0));
+		assertThat("temp files left", Files.list(dir).count(), is(1L));
+	}
+	
+	@Test
+	public void loadFail() throws Exception {
+		final TokenCache tc = new TokenCache(5, 10);
+		tc.putValidToken(new AuthToken("token1", "user1"));
+		final StringCache sc = new StringCache(5, 10);
+		sc.putString("user2");
+		CacheSnapshot.write(file, tc, sc);
+		final byte[] good = Files.readAllBytes(file);
+		
+		failLoad(Arrays.copyOf(good, 20), "Truncated cache snapshot: " + file);
+		failLoad(Arrays.copyOf(good, good.length - 1), "Truncated cache snapshot: " + file);
+		failLoad(Arrays.copyOf(good, 30), "Corrupt cache snapshot: " + file);
+		final byte[] magic = good.clone();
+		magic[0] = 0;
+		failLoad(magic, "Not a cache snapshot: " + file);
+		final byte[] version = good.clone();
+		version[7] = 2;
+		failLoad(version, "Unsupported cache snapshot version 2: " + file);
+		final byte[] index = good.clone();
+		index[24 + 48 + 3] = 5; // token name index
+		failLoad(index, "Corrupt cache snapshot: " + file);
+		
+		Files.delete(file);
+		try {
+			CacheSnapshot.load(file, tc, sc);
+			fail("expected exception");
+		} catch (IOException got) {
+			// ok, the message varies by platform
+		}
+	}
+	
+	private void failLoad(final byte[] contents, final String expected) throws Exception {
+		Files.write(file, contents);
+		try {
+			CacheSnapshot.load(file, new TokenCache(5, 10), new StringCache(5, 10));
+			fail("expected exception");
+		} catch (IOException got) {
+			TestCommon.assertExceptionCorrect(got, new IOException(expected));
+		}
+	}
+	
+	@Test
+	public void loadUntrusted() throws Exception {
+		Assume.assumeTrue("Not a POSIX file system",
+				Files.getFileAttributeView(dir, PosixFileAttributeView.class) != null);
+		final TokenCache tc = new TokenCache(5, 10);
+		tc.putValidToken(new AuthToken("token1", "user1"));
+		CacheSnapshot.write(file, tc, new StringCache(5, 10));
+		
+		for (final String perms: Arrays.asList("rw--w----", "rw-----w-")) {
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(perms));
+			failLoadUntrusted("Cache snapshot is writable by other users: " + file);
+		}
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+		assertThat("incorrect tokens", CacheSnapshot.load(
+				file, new TokenCache(5, 10), new StringCache(5, 10)).getTokens(), is(1));
+		
+		// changing the owner requires privileges
+		try {
+			Files.setOwner(file, file.getFileSystem().getUserPrincipalLookupService()
+					.lookupPrincipalByName("nobody"));
+		} catch (IOException e) {
+			return;
+		}
+		failLoadUntrusted("Cache snapshot is not owned by the current user: " + file);
+	}
+	
+	private void failLoadUntrusted(final String expected) throws Exception {
+		try {
+			CacheSnapshot.load(file, new TokenCache(5, 10), new StringCache(5, 10));
+			fail("expected exception");
+		} catch (IOException got) {
+			TestCommon.assertExceptionCorrect(got, new IOException(expected));
+		}
+	}
+	
+	@Test
+	public void badArgs() throws Exception {
+		final TokenCache tc = new TokenCache(1, 2);
+		final StringCache sc = new StringCache(1, 2);
+		failArgs(() -> CacheSnapshot.write(null, tc, sc), "file");
+		failArgs(() -> CacheSnapshot.write(file, null, sc), "tokens");
+		failArgs(() -> CacheSnapshot.write(file, tc, null), "users");
+		failArgs(() -> CacheSnapshot.load(null, tc, sc), "file");
+		failArgs(() -> CacheSnapshot.load(file, null, sc), "tokens");
+		failArgs(() -> CacheSnapshot.load(file, tc, null), "users");
+	}
+	
+	private interface SnapshotCall {
+		CacheSnapshot.Counts call() throws Exception;
+	}
+	
+	private void failArgs(final SnapshotCall call, final String expected) throws Exception {
+		try {
+			call.call();
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException(expected));
+		}
+	}
+	
+	@Test
+	public void client() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+					FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final AuthClient c1 = AuthClient.builder(ROOT).withTransport(t)
+				.withCacheSnapshot(file, 50).build();
+		c1.validateToken("t1");
+		c1.isValidUserName(Arrays.asList("foo"), "t1");
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		// written periodically
+		TestCommon.waitFor(() -> Files.exists(file));
+		c1.writeCacheSnapshot();
+		
+		final AuthClient c2 = AuthClient.builder(ROOT).withTransport(t)
+				.withCacheSnapshot(file, 100000).build();
+		assertThat("incorrect token", c2.validateToken("t1"), is(new AuthToken("t1", "foo")));
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		assertThat("incorrect users", c2.isValidUserName(Arrays.asList("foo"), "t2"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		// a bad snapshot is ignored
+		Files.write(file, new byte[] {1, 2, 3});
+		final AuthClient c3 = AuthClient.builder(ROOT).withTransport(t)
+				.withCacheSnapshot(file, 100000).build();
+		c3.validateToken("t1");
+		assertThat("incorrect request count", t.getRequests().size(), is(3));
+	}
+	
+	@Test
+	public void clientFail() throws Exception {
+		failConfig(() -> AuthClient.builder(ROOT).withCacheSnapshot(null, 1),
+				new NullPointerException("file"));
+		failConfig(() -> AuthClient.builder(ROOT).withCacheSnapshot(file, 0),
+				new IllegalArgumentException("intervalMS must be > 0"));
+		final AuthClient c = AuthClient.builder(ROOT)
+				.withTransport(new FakeTransport((target, token) -> null)).build();
+		try {
+			c.writeCacheSnapshot();
+			fail("expected exception");
+		} catch (IllegalStateException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalStateException(
+					"Cache snapshots are not enabled"));
+		}
+	}
+	
+}
@@ -0,0 +1,172 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.AbstractTokenCache;
+import us.kbase.auth.client.cache.CompactTokenCache;
+import us.kbase.auth.client.cache.TokenCache;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+/** Runs the {@link TokenCache} tests against the {@link CompactTokenCache}, plus tests specific
+ * to the compact cache.
+ */
+public class CompactTokenCacheTest extends TokenCacheTest {
+
+	@Override
+	protected AbstractTokenCache newCache(final int size, final int maxsize) {
+		return new CompactTokenCache(size, maxsize);
+	}
+
+	@Override
+	protected AbstractTokenCache newCache(final int size, final int maxsize, final Clock clock) {
+		return new CompactTokenCache(size, maxsize, clock);
+	}
+
+	@Test
+	public void constructFailCompact() throws Exception {
+		try {
+			new CompactTokenCache(1, 100_000_001);
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"maxsize must be <= 100000000"));
+		}
+	}
+
+	@Test
+	public void randomOperations() throws Exception {
+		// compares the cache to a simple model. The small table makes collisions, wrap around
+		// and shifting entries on removal common.
+		final FakeClock clock = new FakeClock(10000);
+		final int size = 30;
+		final int maxsize = 60;
+		final AbstractTokenCache tc = new CompactTokenCache(size, maxsize, clock);
+		// in order of the date the token was added
+		final LinkedHashMap<String, String> model = new LinkedHashMap<>();
+		final Random r = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			clock.advance(1);
+			final String token = "token" + r.nextInt(200);
+			final int op = r.nextInt(40);
+			if (op < 10) {
+				tc.removeToken(token);
+				model.remove(token);
+			} else if (op == 10) {
+				final String user = "user" + r.nextInt(10);
+				final Set<TokenDigest> expected = new HashSet<>();
+				for (final Map.Entry<String, String> e: model.entrySet()) {
+					if (e.getValue().equals(user)) {
+						expected.add(TokenDigest.of(e.getKey()));
+					}
+				}
+				assertThat("incorrect removed", new HashSet<>(tc.removeUser(user)),
+						is(expected));
+				model.values().removeIf(user::equals);
+			} else {
+				final String user = "user" + r.nextInt(10);
+				tc.putValidToken(new AuthToken(token, user));
+				model.remove(token);
+				model.put(token, user);
+				if (model.size() > maxsize) {
+					final Iterator<String> iter = model.keySet().iterator();
+					while (model.size() > size) {
+						iter.next();
+						iter.remove();
+					}
+				}
+			}
+			if (i % 100 == 0) {
+				checkModel(tc, model);
+			}
+		}
+		checkModel(tc, model);
+		// remove everything and check the user table is empty
+		for (int i = 0; i < 200; i++) {
+			tc.removeToken("token" + i);
+		}
+		checkModel(tc, new LinkedHashMap<>());
+		final Field f = CompactTokenCache.class.getDeclaredField("userIndex");
+		f.setAccessible(true);
+		assertThat("user table not empty", ((Map<?, ?>) f.get(tc)).isEmpty(), is(true));
+	}
+
+	private void checkModel(final AbstractTokenCache tc, final Map<String, String> model) {
+		for (int i = 0; i < 200; i++) {
+			final String token = "token" + i;
+			final String user = model.get(token);
+			final AuthToken got = tc.getToken(token);
+			assertThat("incorrect token " + token, got,
+					is(user == null ? null : new AuthToken(token, user)));
+		}
+	}
+
+	@Test
+	public void concurrentReadsAndWrites() throws Exception {
+		// readers must never see a token with the wrong user while writers add, replace, remove
+		// and evict tokens
+		final AbstractTokenCache tc = new CompactTokenCache(300, 600);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final ExecutorService exe = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Integer>> futs = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				final boolean writer = t < 2;
+				final int seed = t;
+				futs.add(exe.submit(() -> {
+					final Random r = new Random(seed);
+					int hits = 0;
+					while (!stop.get()) {
+						final int tok = r.nextInt(1000);
+						if (writer) {
+							if (r.nextInt(10) == 0) {
+								tc.removeToken("token" + tok);
+							} else {
+								tc.putValidToken(new AuthToken("token" + tok, "user" + tok % 7));
+							}
+						} else {
+							final AuthToken got = tc.getToken("token" + tok);
+							if (got != null) {
+								assertThat("incorrect token", got,
+										is(new AuthToken("token" + tok, "user" + tok % 7)));
+								hits++;
+							}
+						}
+					}
+					return hits;
+				}));
+			}
+			Thread.sleep(1000);
+			stop.set(true);
+			int hits = 0;
+			for (final Future<Integer> f: futs) {
+				hits += f.get(30, TimeUnit.SECONDS);
+			}
+			assertThat("no cache hits", hits > 0, is(true));
+		} finally {
+			exe.shutdown();
+		}
+	}
+}
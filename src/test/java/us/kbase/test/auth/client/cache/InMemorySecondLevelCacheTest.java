@@ -0,0 +1,218 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+
+import java.io.IOException;
+import java.net.URI;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.cache.InMemorySecondLevelCache;
+import us.kbase.auth.client.cache.SecondLevelCache;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedToken;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedUser;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.auth.client.metrics.InMemoryMetrics;
+import us.kbase.auth.client.metrics.Metrics.Cache;
+import us.kbase.test.auth.client.FakeTransport;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+public class InMemorySecondLevelCacheTest {
+	
+	@Test
+	public void tokens() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final InMemorySecondLevelCache c = new InMemorySecondLevelCache(clock);
+		final TokenDigest d1 = TokenDigest.of("token1");
+		final TokenDigest d2 = TokenDigest.of("token2");
+		final TokenDigest d3 = TokenDigest.of("token3");
+		final TokenDigest d4 = TokenDigest.of("token4");
+		final Map<TokenDigest, CachedToken> tokens = new HashMap<>();
+		tokens.put(d1, new CachedToken("user1", 101000, 200000));
+		tokens.put(d2, new CachedToken("user2", 200000, 101000));
+		tokens.put(d3, new CachedToken("user3", 200000, 200000));
+		c.putTokens(tokens);
+		assertThat("incorrect count", c.getTokenCount(), is(3));
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2, d3, d4)), is(tokens));
+		
+		// expired by the cache entry expiry and the token expiry
+		clock.advance(1000);
+		tokens.remove(d2);
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2, d3)), is(tokens));
+		clock.advance(1);
+		tokens.remove(d1);
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2, d3)), is(tokens));
+		assertThat("incorrect count", c.getTokenCount(), is(1));
+		
+		c.putTokens(Collections.singletonMap(d3, new CachedToken("user6", 300000, 300000)));
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d3)),
+				is(Collections.singletonMap(d3, new CachedToken("user6", 300000, 300000))));
+		c.removeTokens(Arrays.asList(d3, d4));
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d3)),
+				is(Collections.emptyMap()));
+		assertThat("incorrect count", c.getTokenCount(), is(0));
+	}
+	
+	@Test
+	public void users() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final InMemorySecondLevelCache c = new InMemorySecondLevelCache(clock);
+		final Map<String, CachedUser> users = new HashMap<>();
+		users.put("user1", new CachedUser(true, 101000));
+		users.put("user2", new CachedUser(false, 102000));
+		c.putUsers(users);
+		assertThat("incorrect count", c.getUserCount(), is(2));
+		assertThat("incorrect users", c.getUsers(Arrays.asList("user1", "user2", "user3")),
+				is(users));
+		
+		clock.advance(1001);
+		users.remove("user1");
+		assertThat("incorrect users", c.getUsers(Arrays.asList("user1", "user2")), is(users));
+		assertThat("incorrect count", c.getUserCount(), is(1));
+		
+		c.putUsers(Collections.singletonMap("user2", new CachedUser(true, 200000)));
+		assertThat("incorrect users", c.getUsers(Arrays.asList("user2")),
+				is(Collections.singletonMap("user2", new CachedUser(true, 200000))));
+	}
+	
+	@Test
+	public void constructFail() throws Exception {
+		try {
+			new InMemorySecondLevelCache(null);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
+		for (final String u: Arrays.asList(null, "")) {
+			try {
+				new CachedToken(u, 1, 1);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"user cannot be null or empty"));
+			}
+		}
+	}
+	
+	@Test
+	public void client() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+					FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final InMemorySecondLevelCache l2 = new InMemorySecondLevelCache();
+		final InMemoryMetrics m = new InMemoryMetrics();
+		final AuthClient c1 = AuthClient.builder(ROOT).withTransport(t)
+				.withSecondLevelCache(l2).build();
+		final AuthClient c2 = AuthClient.builder(ROOT).withTransport(t).withMetrics(m)
+				.withSecondLevelCache(l2).build();
+		c1.validateToken("t1");
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("foo", true);
+		expected.put("bar", false);
+		assertThat("incorrect users", c1.isValidUserName(Arrays.asList("foo", "bar"), "t1"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		assertThat("incorrect tokens", l2.getTokenCount(), is(1));
+		assertThat("incorrect users", l2.getUserCount(), is(2));
+		
+		assertThat("incorrect token", c2.validateToken("t1"), is(new AuthToken("t1", "foo")));
+		assertThat("incorrect token", c2.validateToken("t1"), is(new AuthToken("t1", "foo")));
+		assertThat("incorrect users", c2.isValidUserName(Arrays.asList("foo", "bar"), "t1"),
+				is(expected));
+		assertThat("incorrect users", c2.isValidUserName(Arrays.asList("foo", "bar"), "t1"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		assertThat("incorrect hits", m.getCacheHits(Cache.SHARED_TOKEN), is(1L));
+		assertThat("incorrect hits", m.getCacheHits(Cache.SHARED_USER), is(2L));
+		assertThat("incorrect hits", m.getCacheHits(Cache.USER), is(1L));
+		assertThat("incorrect hits", m.getCacheHits(Cache.MISSING_USER), is(1L));
+		
+		c2.validateToken("t2");
+		expected.put("baz", false);
+		assertThat("incorrect users", c2.isValidUserName(
+				Arrays.asList("foo", "bar", "baz"), "t1"), is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+		assertThat("incorrect target", t.getRequests().get(3).target,
+				is(URI.create(ROOT + "/api/V2/users/?list=baz")));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.SHARED_TOKEN), is(1L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.SHARED_USER), is(1L));
+	}
+	
+	@Test
+	public void clientUserExpiryUsesClientClock() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) ->
+				FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final InMemorySecondLevelCache l2 = new InMemorySecondLevelCache();
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c1 = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withUserCache(1, 2, 10).withSecondLevelCache(l2).build();
+		final AuthClient c2 = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withUserCache(1, 2, 10).withSecondLevelCache(l2).build();
+		final Map<String, Boolean> expected = Collections.singletonMap("foo", true);
+		assertThat("incorrect users", c1.isValidUserName(Arrays.asList("foo"), "t"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// expired according to the client's clock
+		clock.advance(10001);
+		assertThat("incorrect users", c2.isValidUserName(Arrays.asList("foo"), "t"),
+				is(expected));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+	@Test
+	public void clientIgnoresFailures() throws Exception {
+		// errors from the second level cache are ignored
+		final FakeTransport t = new FakeTransport((target, token) ->
+				target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+					FakeTransport.response(200, "{\"foo\": \"Foo\"}"));
+		final SecondLevelCache l2 = new SecondLevelCache() {
+			
+			@Override
+			public Map<TokenDigest, CachedToken> getTokens(final Collection<TokenDigest> d)
+					throws IOException {
+				throw new IOException("down");
+			}
+			
+			@Override
+			public void putTokens(final Map<TokenDigest, CachedToken> tokens)
+					throws IOException {
+				throw new IOException("down");
+			}
+			
+			@Override
+			public void removeTokens(final Collection<TokenDigest> digests) {
+				throw new IllegalStateException("down");
+			}
+			
+			@Override
+			public Map<String, CachedUser> getUsers(final Collection<String> users) {
+				throw new IllegalStateException("down");
+			}
+			
+			@Override
+			public void putUsers(final Map<String, CachedUser> users) throws IOException {
+				throw new IOException("down");
+			}
+		};
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withSecondLevelCache(l2).build();
+		assertThat("incorrect token", c.validateToken("t1"), is(new AuthToken("t1", "foo")));
+		assertThat("incorrect users", c.isValidUserName(Arrays.asList("foo"), "t1"),
+				is(Collections.singletonMap("foo", true)));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+}
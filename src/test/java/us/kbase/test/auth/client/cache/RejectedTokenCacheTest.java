@@ -0,0 +1,252 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failAsync;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.AuthServerException;
+import us.kbase.auth.client.cache.RejectedTokenCache;
+import us.kbase.auth.client.cache.RejectedTokenCache.Rejection;
+import us.kbase.test.auth.client.FakeTransport;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+public class RejectedTokenCacheTest {
+	
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(0, 1, 1, "size and maxsize must be > 0");
+		failConstruct(1, 0, 1, "size and maxsize must be > 0");
+		failConstruct(2, 1, 1, "size must be < maxsize");
+		failConstruct(3, 3, 1, "size must be < maxsize");
+		failConstruct(1, 2, 0, "expiryMS must be > 0");
+		try {
+			new RejectedTokenCache(1, 2, 1, null);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
+	}
+	
+	private void failConstruct(
+			final int size,
+			final int maxsize,
+			final long expiry,
+			final String expected) {
+		try {
+			new RejectedTokenCache(size, maxsize, expiry);
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(expected));
+		}
+	}
+	
+	@Test
+	public void putAndGet() throws Exception {
+		final RejectedTokenCache c = new RejectedTokenCache(2, 3, 10000);
+		assertThat("incorrect expiry", c.getExpiryMS(), is(10000L));
+		assertNull("unexpected rejection", c.getRejection("tok"));
+		c.putRejectedToken("tok", "bad token", 401, 10020);
+		final Rejection r = c.getRejection("tok");
+		assertThat("incorrect message", r.getMessage(), is("bad token"));
+		assertThat("incorrect http code", r.getHTTPCode(), is(401));
+		assertThat("incorrect app code", r.getAppCode(), is(10020));
+		assertNull("unexpected rejection", c.getRejection("tok2"));
+	}
+	
+	@Test
+	public void badArgs() throws Exception {
+		final RejectedTokenCache c = new RejectedTokenCache(2, 3, 10000);
+		final Exception e = new IllegalArgumentException("token cannot be null or empty");
+		failGet(c, null, e);
+		failGet(c, "", e);
+		failPut(c, null, "m", e);
+		failPut(c, "", "m", e);
+		failPut(c, "t", null, new NullPointerException("message cannot be null"));
+	}
+	
+	private void failGet(final RejectedTokenCache c, final String token, final Exception expected) {
+		try {
+			c.getRejection(token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	private void failPut(
+			final RejectedTokenCache c,
+			final String token,
+			final String message,
+			final Exception expected) {
+		try {
+			c.putRejectedToken(token, message, 401, 10020);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void dropsExpiredRejections() throws Exception {
+		final RejectedTokenCache c = new RejectedTokenCache(2, 3, 70);
+		for (int i = 0; i <= 2; i++) {
+			c.putRejectedToken("token" + i, "bad", 401, 10020);
+			Thread.sleep(50);
+		}
+		assertNull("cache contains token 0", c.getRejection("token0"));
+		assertNull("cache contains token 1", c.getRejection("token1"));
+		assertNotNull("cache missing token 2", c.getRejection("token2"));
+	}
+	
+	@Test
+	public void usesClock() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final RejectedTokenCache c = new RejectedTokenCache(2, 3, 1000, clock);
+		c.putRejectedToken("token1", "bad", 401, 10020);
+		clock.advance(500);
+		c.putRejectedToken("token2", "bad", 401, 10020);
+		clock.advance(500);
+		assertNotNull("cache missing token 1", c.getRejection("token1"));
+		clock.advance(1);
+		assertNull("cache contains token 1", c.getRejection("token1"));
+		assertNotNull("cache missing token 2", c.getRejection("token2"));
+		clock.advance(500);
+		assertNull("cache contains token 2", c.getRejection("token2"));
+	}
+	
+	@Test
+	public void dropsOldRejectionsOnResize() throws Exception {
+		final RejectedTokenCache c = new RejectedTokenCache(2, 4, 10000);
+		for (int i = 0; i <= 4; i++) {
+			c.putRejectedToken("token" + i, "bad", 401, 10020);
+			Thread.sleep(2);
+		}
+		final boolean[] hasToken = {false, false, false, true, true};
+		for (int i = 0; i < hasToken.length; i++) {
+			if (hasToken[i]) {
+				assertNotNull("cache missing token " + i, c.getRejection("token" + i));
+			} else {
+				assertNull("cache contains token " + i, c.getRejection("token" + i));
+			}
+		}
+	}
+	
+	@Test
+	public void validateTokenCachesRejections() throws Exception {
+		final AtomicInteger status = new AtomicInteger(401);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (token.equals("good")) {
+				return FakeTransport.token("foo");
+			}
+			return status.get() == 401 ? FakeTransport.invalidToken() : FakeTransport.response(
+					500, "{\"error\": {\"httpcode\": 500, \"appcode\": 20000, "
+							+ "\"message\": \"20000 oops\"}}");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withRejectedTokenCache(2, 3, 100000).build();
+		
+		for (int i = 0; i < 3; i++) {
+			try {
+				c.validateToken("tok");
+				fail("expected exception");
+			} catch (AuthServerException got) {
+				TestCommon.assertExceptionCorrect(got, new AuthServerException(
+						"Auth service returned an error: 10020 Invalid token", 401, 10020));
+				assertThat("incorrect http code", got.getHTTPCode(), is(401));
+				assertThat("incorrect app code", got.getAppCode(), is(10020));
+			}
+		}
+		failAsync(c.validateTokenAsync("tok", r -> {
+			throw new RejectedExecutionException("executor should not be used");
+		}), new AuthServerException("Auth service returned an error: 10020 Invalid token",
+				401, 10020));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		// valid tokens are unaffected
+		assertThat("incorrect token", c.validateToken("good"), is(new AuthToken("good", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+		
+		// other server errors are not cached
+		status.set(500);
+		for (int i = 0; i < 2; i++) {
+			try {
+				c.validateToken("tok2");
+				fail("expected exception");
+			} catch (AuthServerException got) {
+				TestCommon.assertExceptionCorrect(got, new AuthServerException(
+						"Auth service returned an error: 20000 oops", 500, 20000));
+				assertThat("incorrect app code", got.getAppCode(), is(20000));
+			}
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(4));
+	}
+	
+	@Test
+	public void validateTokenRejectionExpiryUsesClientClock() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.invalidToken());
+		final FakeClock clock = new FakeClock(System.currentTimeMillis());
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withClock(clock)
+				.withRejectedTokenCache(2, 3, 1000).build();
+		for (int i = 0; i < 2; i++) {
+			try {
+				c.validateToken("tok");
+				fail("expected exception");
+			} catch (AuthServerException got) {
+				assertThat("incorrect app code", got.getAppCode(), is(10020));
+			}
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+		
+		clock.advance(1001);
+		try {
+			c.validateToken("tok");
+			fail("expected exception");
+		} catch (AuthServerException got) {
+			assertThat("incorrect app code", got.getAppCode(), is(10020));
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+	@Test
+	public void validateTokenDoesNotCacheNetworkErrors() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			throw new IOException("network down");
+		});
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t)
+				.withRejectedTokenCache(2, 3, 100000).build();
+		for (int i = 0; i < 2; i++) {
+			try {
+				c.validateToken("tok");
+				fail("expected exception");
+			} catch (IOException got) {
+				TestCommon.assertExceptionCorrect(got, new IOException("network down"));
+			}
+		}
+		assertThat("incorrect request count", t.getRequests().size(), is(2));
+	}
+	
+	@Test
+	public void rejectedTokenCacheFail() throws Exception {
+		try {
+			AuthClient.builder(ROOT).withRejectedTokenCache(2, 2, 1000);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"size must be < maxsize"));
+		}
+	}
+	
+}
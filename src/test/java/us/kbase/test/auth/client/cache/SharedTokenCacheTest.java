@@ -0,0 +1,354 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.cache.SecondLevelCache;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedToken;
+import us.kbase.auth.client.cache.SecondLevelCache.CachedUser;
+import us.kbase.auth.client.cache.SharedTokenCache;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.test.auth.client.FakeTransport;
+import us.kbase.test.common.FakeClock;
+import us.kbase.test.common.TestCommon;
+
+/* Processes sharing a cache map the same file, so two instances on the same file in one JVM
+ * behave as two processes would.
+ */
+public class SharedTokenCacheTest {
+	
+	private static final String LONG_NAME = String.join("", Collections.nCopies(199, "a"));
+	
+	private Path dir;
+	private Path file;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("SharedTokenCacheTest");
+		file = dir.resolve("shared");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (final Path p: Files.list(dir).toArray(Path[]::new)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+	
+	@Test
+	public void construct() throws Exception {
+		final SharedTokenCache c = new SharedTokenCache(file, 100);
+		assertThat("incorrect slots", c.getSlots(), is(100));
+		assertThat("incorrect size", Files.size(file), is(64L + 100 * 256));
+		if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null) {
+			assertThat("incorrect permissions", PosixFilePermissions.toString(
+					Files.getPosixFilePermissions(file)), is("rw-------"));
+		}
+		assertNull("unexpected token", c.getToken("token1"));
+	}
+	
+	@Test
+	public void putAndGet() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final SharedTokenCache c = new SharedTokenCache(file, 100, clock);
+		c.putToken(new AuthToken("token1", "user1"), 101000, 102000);
+		c.putToken(new AuthToken("token2", "user2"), 105000, 102000);
+		c.putToken(new AuthToken("token3", "\u30e6\u30fc\u30b6\u30fc"), 101000, 102000);
+		c.putToken(new AuthToken("token4", LONG_NAME.substring(1)), 101000, 102000);
+		c.putToken(new AuthToken("token5", LONG_NAME), 101000, 102000); // too long, ignored
+		assertThat("incorrect token", c.getToken("token1"), is(new AuthToken("token1", "user1")));
+		assertThat("incorrect token", c.getToken("token2"), is(new AuthToken("token2", "user2")));
+		assertThat("incorrect token", c.getToken("token3"),
+				is(new AuthToken("token3", "\u30e6\u30fc\u30b6\u30fc")));
+		assertThat("incorrect token", c.getToken("token4"),
+				is(new AuthToken("token4", LONG_NAME.substring(1))));
+		assertNull("unexpected token", c.getToken("token5"));
+		
+		// replace
+		c.putToken(new AuthToken("token1", "user6"), 101000, 102000);
+		assertThat("incorrect token", c.getToken("token1"), is(new AuthToken("token1", "user6")));
+		
+		// the cache entry expires, then the token
+		clock.advance(1001);
+		assertNull("unexpected token", c.getToken("token1"));
+		assertThat("incorrect token", c.getToken("token2"), is(new AuthToken("token2", "user2")));
+		clock.advance(999);
+		assertNull("unexpected token", c.getToken("token2"));
+		
+		c.putToken(new AuthToken("token7", "user7"), 110000, 120000);
+		c.removeToken("token7");
+		assertNull("unexpected token", c.getToken("token7"));
+		c.removeToken("token8"); // no-op
+	}
+	
+	@Test
+	public void shareBetweenInstances() throws Exception {
+		final SharedTokenCache c1 = new SharedTokenCache(file, 100);
+		final SharedTokenCache c2 = new SharedTokenCache(file, 100);
+		c1.putToken(new AuthToken("token1", "user1"), Long.MAX_VALUE, Long.MAX_VALUE);
+		assertThat("incorrect token", c2.getToken("token1"), is(new AuthToken("token1", "user1")));
+		c2.removeToken("token1");
+		assertNull("unexpected token", c1.getToken("token1"));
+		
+		// reopening keeps the contents
+		c2.putToken(new AuthToken("token2", "user2"), Long.MAX_VALUE, Long.MAX_VALUE);
+		assertThat("incorrect token", new SharedTokenCache(file, 100).getToken("token2"),
+				is(new AuthToken("token2", "user2")));
+	}
+	
+	@Test
+	public void replaceSoonestExpiry() throws Exception {
+		// with the minimum number of slots every token maps to every slot
+		final FakeClock clock = new FakeClock(1000);
+		final SharedTokenCache c = new SharedTokenCache(file, 8, clock);
+		for (int i = 0; i < 8; i++) {
+			c.putToken(new AuthToken("token" + i, "user" + i), 2000 + (i == 3 ? 0 : i + 10),
+					Long.MAX_VALUE);
+		}
+		c.putToken(new AuthToken("token8", "user8"), 3000, Long.MAX_VALUE);
+		assertNull("unexpected token", c.getToken("token3"));
+		for (final int i: Arrays.asList(0, 1, 2, 4, 5, 6, 7, 8)) {
+			assertThat("incorrect token " + i, c.getToken("token" + i),
+					is(new AuthToken("token" + i, "user" + i)));
+		}
+		
+		// expired entries are replaced before unexpired entries
+		clock.advance(1011); // token0 expires
+		c.putToken(new AuthToken("token9", "user9"), 3000, Long.MAX_VALUE);
+		assertThat("incorrect token", c.getToken("token1"), is(new AuthToken("token1", "user1")));
+		assertThat("incorrect token", c.getToken("token9"), is(new AuthToken("token9", "user9")));
+	}
+	
+	@Test
+	public void concurrentReadsAndWrites() throws Exception {
+		// readers must never see a token with the wrong user while writers in two "processes"
+		// add, replace, and remove tokens in a small table
+		final SharedTokenCache c1 = new SharedTokenCache(file, 64);
+		final SharedTokenCache c2 = new SharedTokenCache(file, 64);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final ExecutorService exe = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Integer>> futs = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				final SharedTokenCache c = t % 2 == 0 ? c1 : c2;
+				final boolean writer = t < 4;
+				final int seed = t;
+				futs.add(exe.submit(() -> {
+					final Random r = new Random(seed);
+					int hits = 0;
+					while (!stop.get()) {
+						final int tok = r.nextInt(200);
+						if (writer) {
+							if (r.nextInt(10) == 0) {
+								c.removeToken("token" + tok);
+							} else {
+								c.putToken(new AuthToken("token" + tok, "user" + tok % 7),
+										Long.MAX_VALUE, Long.MAX_VALUE);
+							}
+						} else {
+							final AuthToken got = c.getToken("token" + tok);
+							if (got != null) {
+								assertThat("incorrect token", got,
+										is(new AuthToken("token" + tok, "user" + tok % 7)));
+								hits++;
+							}
+						}
+					}
+					return hits;
+				}));
+			}
+			Thread.sleep(1000);
+			stop.set(true);
+			int hits = 0;
+			for (final Future<Integer> f: futs) {
+				hits += f.get(30, TimeUnit.SECONDS);
+			}
+			assertThat("no cache hits", hits > 0, is(true));
+		} finally {
+			exe.shutdown();
+		}
+	}
+	
+	@Test
+	public void secondLevelCache() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final SecondLevelCache c = new SharedTokenCache(file, 100, clock);
+		final TokenDigest d1 = TokenDigest.of("token1");
+		final TokenDigest d2 = TokenDigest.of("token2");
+		final TokenDigest d3 = TokenDigest.of("token3");
+		final Map<TokenDigest, CachedToken> tokens = new HashMap<>();
+		tokens.put(d1, new CachedToken("user1", 101000, 102000));
+		tokens.put(d2, new CachedToken("user2", 105000, 106000));
+		tokens.put(d3, new CachedToken(LONG_NAME, 105000, 106000)); // too long, ignored
+		c.putTokens(tokens);
+		tokens.remove(d3);
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2, d3)), is(tokens));
+		assertThat("incorrect token", ((SharedTokenCache) c).getToken("token1"),
+				is(new AuthToken("token1", "user1")));
+		
+		clock.advance(1001);
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2)),
+				is(Collections.singletonMap(d2, new CachedToken("user2", 105000, 106000))));
+		c.removeTokens(Arrays.asList(d2, d3));
+		assertThat("incorrect tokens", c.getTokens(Arrays.asList(d1, d2)),
+				is(Collections.emptyMap()));
+		
+		// user names are not shared
+		c.putUsers(Collections.singletonMap("user1", new CachedUser(true, 200000)));
+		assertThat("incorrect users", c.getUsers(Arrays.asList("user1")),
+				is(Collections.emptyMap()));
+	}
+	
+	@Test
+	public void openFail() throws Exception {
+		new SharedTokenCache(file, 100);
+		final byte[] good = Files.readAllBytes(file);
+		failOpen(100, Arrays.copyOf(good, 20), "Not a shared token cache: " + file);
+		failOpen(100, Arrays.copyOf(good, good.length - 1),
+				"Shared token cache " + file + " does not have 100 slots");
+		failOpen(99, good, "Shared token cache " + file + " does not have 99 slots");
+		final byte[] magic = good.clone();
+		magic[3] = 0;
+		failOpen(100, magic, "Not a shared token cache: " + file);
+		final byte[] version = good.clone();
+		version[8] = 2;
+		version[11] = 2; // either byte order
+		failOpen(100, version, "Unsupported shared token cache version 33554434: " + file);
+	}
+	
+	private void failOpen(final int slots, final byte[] contents, final String expected)
+			throws Exception {
+		Files.write(file, contents);
+		try {
+			new SharedTokenCache(file, slots);
+			fail("expected exception");
+		} catch (IOException got) {
+			TestCommon.assertExceptionCorrect(got, new IOException(expected));
+		}
+	}
+	
+	@Test
+	public void openUntrusted() throws Exception {
+		Assume.assumeTrue("Not a POSIX file system",
+				Files.getFileAttributeView(dir, PosixFileAttributeView.class) != null);
+		new SharedTokenCache(file, 100).putTokens(Collections.singletonMap(TokenDigest.of(
+				"token1"), new CachedToken("user1", Long.MAX_VALUE, Long.MAX_VALUE)));
+		
+		// another user could have forged entries in the file
+		for (final String perms: Arrays.asList("rw--w----", "rw-----w-")) {
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(perms));
+			failOpenUntrusted("Shared token cache is writable by other users: " + file);
+		}
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+		assertThat("incorrect token", new SharedTokenCache(file, 100).getToken("token1"),
+				is(new AuthToken("token1", "user1")));
+		
+		// changing the owner requires privileges
+		try {
+			Files.setOwner(file, file.getFileSystem().getUserPrincipalLookupService()
+					.lookupPrincipalByName("nobody"));
+		} catch (IOException e) {
+			return;
+		}
+		failOpenUntrusted("Shared token cache is not owned by the current user: " + file);
+	}
+	
+	private void failOpenUntrusted(final String expected) throws Exception {
+		try {
+			new SharedTokenCache(file, 100);
+			fail("expected exception");
+		} catch (IOException got) {
+			TestCommon.assertExceptionCorrect(got, new IOException(expected));
+		}
+	}
+	
+	@Test
+	public void badArgs() throws Exception {
+		final String max = "" + SharedTokenCache.MAX_SLOTS;
+		failConstruct(null, 8, new FakeClock(1), new NullPointerException("file"));
+		failConstruct(file, 8, null, new NullPointerException("clock"));
+		failConstruct(file, 7, new FakeClock(1), new IllegalArgumentException(
+				"slots must be between 8 and " + max));
+		failConstruct(file, SharedTokenCache.MAX_SLOTS + 1, new FakeClock(1),
+				new IllegalArgumentException("slots must be between 8 and " + max));
+		
+		final SharedTokenCache c = new SharedTokenCache(file, 8);
+		final IllegalArgumentException e = new IllegalArgumentException(
+				"token cannot be null or empty");
+		for (final String t: Arrays.asList(null, "")) {
+			try {
+				c.getToken(t);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, e);
+			}
+			try {
+				c.removeToken(t);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, e);
+			}
+		}
+		try {
+			c.putToken(null, 1, 1);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("token"));
+		}
+	}
+	
+	private void failConstruct(
+			final Path file,
+			final int slots,
+			final FakeClock clock,
+			final Exception expected) {
+		try {
+			new SharedTokenCache(file, slots, clock);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void client() throws Exception {
+		final FakeTransport t = new FakeTransport((target, token) -> FakeTransport.token("foo"));
+		final AuthClient c1 = AuthClient.builder(ROOT).withTransport(t)
+				.withSecondLevelCache(new SharedTokenCache(file, 100)).build();
+		final AuthClient c2 = AuthClient.builder(ROOT).withTransport(t)
+				.withSecondLevelCache(new SharedTokenCache(file, 100)).build();
+		c1.validateToken("t1");
+		assertThat("incorrect token", c2.validateToken("t1"), is(new AuthToken("t1", "foo")));
+		assertThat("incorrect request count", t.getRequests().size(), is(1));
+	}
+	
+}
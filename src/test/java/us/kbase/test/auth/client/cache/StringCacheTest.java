@@ -6,13 +6,21 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
 
 import us.kbase.auth.client.cache.StringCache;
+import us.kbase.test.common.FakeClock;
 import us.kbase.test.common.TestCommon;
 
 public class StringCacheTest {
@@ -40,7 +48,7 @@ public class StringCacheTest {
 		for (int i = 0; i < expected.length; i++) {
 			assertEquals("failure - cache retained wrong strings",
 					expected[i], sc.hasString(TEST_STRINGS.get(i)));
-			
+					
 		}
 	}
 	
@@ -71,8 +79,77 @@ public class StringCacheTest {
 		}
 	}
 	
+	@Test
+	public void putStringWithExpiry() throws Exception {
+		final StringCache sc = new StringCache(5, 10);
+		sc.setExpiry(1);
+		final long now = System.currentTimeMillis();
+		sc.putString("a", now + 100); // expires before the cache expiry
+		sc.putString("b", now + 100000); // cache expiry is sooner
+		sc.putString("c", now - 1); // already expired
+		assertThat("missing string", sc.hasString("a"), is(true));
+		assertThat("missing string", sc.hasString("b"), is(true));
+		assertThat("unexpected string", sc.hasString("c"), is(false));
+		Thread.sleep(200);
+		assertThat("unexpected string", sc.hasString("a"), is(false));
+		assertThat("missing string", sc.hasString("b"), is(true));
+		Thread.sleep(900);
+		assertThat("unexpected string", sc.hasString("b"), is(false));
+		try {
+			sc.putString(null, now);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(
+					got, new NullPointerException("string cannot be null"));
+		}
+	}
+	
+	@Test
+	public void putStringWithExpiryEvictsByInsertTime() throws Exception {
+		// a string from another cache that expires soon is still the newest string
+		final StringCache sc = new StringCache(2, 3);
+		sc.setExpiry(10);
+		sc.putString("a");
+		sc.putString("b", System.currentTimeMillis() + 100000);
+		Thread.sleep(50);
+		sc.putString("c", System.currentTimeMillis() + 5000);
+		Thread.sleep(50);
+		sc.putString("d");
+		assertThat("unexpected string", sc.hasString("a"), is(false));
+		assertThat("unexpected string", sc.hasString("b"), is(false));
+		assertThat("missing string", sc.hasString("c"), is(true));
+		assertThat("missing string", sc.hasString("d"), is(true));
+	}
+	
+	@Test
+	public void expiryUsesClock() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final StringCache sc = new StringCache(5, 10, clock);
+		sc.setExpiry(10);
+		sc.putString("a");
+		sc.putString("b", 105000);
+		sc.putString("c", 99999); // already expired
+		assertThat("missing string", sc.hasString("a"), is(true));
+		assertThat("missing string", sc.hasString("b"), is(true));
+		assertThat("unexpected string", sc.hasString("c"), is(false));
+		
+		clock.advance(5001);
+		assertThat("missing string", sc.hasString("a"), is(true));
+		assertThat("unexpected string", sc.hasString("b"), is(false));
+		
+		// touching the string does not extend its life
+		clock.advance(5000);
+		assertThat("unexpected string", sc.hasString("a"), is(false));
+	}
+	
 	@Test
 	public void constructFail() throws Exception {
+		try {
+			new StringCache(1, 2, null);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
 		failConstruct(0, 1, "size and maxsize must be > 0");
 		failConstruct(1, 0, "size and maxsize must be > 0");
 		failConstruct(2, 1, "size must be < maxsize");
@@ -120,5 +197,74 @@ public class StringCacheTest {
 					got, new NullPointerException("string cannot be null"));
 		}
 	}
-
+	
+	@Test
+	public void writersDoNotWaitForEviction() throws Exception {
+		final StringCache sc = new StringCache(10, 20);
+		final Field f = sc.getClass().getDeclaredField("evictionLock");
+		f.setAccessible(true);
+		final ReentrantLock lock = (ReentrantLock) f.get(sc);
+		
+		// simulate a long running eviction in another thread
+		lock.lock();
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> fut = exe.submit(() -> {
+				for (int i = 0; i < 30; i++) {
+					sc.putString("string" + i);
+				}
+			});
+			// would time out if writers serialized behind the eviction
+			fut.get(5, TimeUnit.SECONDS);
+			assertThat("incorrect cache size", countStrings(sc, 31), is(30));
+		} finally {
+			lock.unlock();
+			exe.shutdown();
+		}
+		Thread.sleep(2);
+		sc.putString("string30");
+		assertThat("incorrect cache size", countStrings(sc, 31), is(10));
+		assertThat("missing newest string", sc.hasString("string30"), is(true));
+	}
+	
+	private int countStrings(final StringCache sc, final int max) {
+		int count = 0;
+		for (int i = 0; i < max; i++) {
+			if (sc.hasString("string" + i)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	@Test
+	public void concurrentAccess() throws Exception {
+		final StringCache sc = new StringCache(500, 1000);
+		final int threads = 8;
+		final int strings = 5000;
+		final ExecutorService exe = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futs = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futs.add(exe.submit(() -> {
+					for (int i = 0; i < strings; i++) {
+						final String s = "string" + (thread * strings + i);
+						sc.putString(s);
+						// touch an older string
+						sc.hasString("string" + (thread * strings + i / 2));
+					}
+				}));
+			}
+			for (final Future<?> f: futs) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			exe.shutdown();
+		}
+		final int count = countStrings(sc, threads * strings);
+		assertThat("cache too large: " + count, count <= 1000, is(true));
+		assertThat("cache too small: " + count, count >= 500, is(true));
+	}
+	
 }
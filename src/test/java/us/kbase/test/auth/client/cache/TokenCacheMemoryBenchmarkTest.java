@@ -0,0 +1,77 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.AbstractTokenCache;
+import us.kbase.auth.client.cache.CompactTokenCache;
+import us.kbase.auth.client.cache.TokenCache;
+
+/** Compares the heap memory used per cached token by the {@link TokenCache} and the
+ * {@link CompactTokenCache}.
+ * 
+ * Only runs if the test.benchmark system property is true, e.g.
+ * ./gradlew test -Ptest.benchmark=true --tests '*TokenCacheMemoryBenchmarkTest'
+ */
+public class TokenCacheMemoryBenchmarkTest {
+	
+	private static final int TOKENS = 1_000_000;
+	private static final int USERS = 100_000;
+	private static final char[] TOKEN_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+	
+	@BeforeClass
+	public static void checkEnabled() {
+		Assume.assumeTrue("Benchmarks are disabled", Boolean.getBoolean("test.benchmark"));
+	}
+	
+	@Test
+	public void bytesPerToken() throws Exception {
+		final double standard = bytesPerToken(TokenCache::new);
+		final double compact = bytesPerToken(CompactTokenCache::new);
+		System.out.println(String.format(
+				"Bytes per token for %s tokens and %s users: TokenCache %.1f, "
+				+ "CompactTokenCache %.1f", TOKENS, USERS, standard, compact));
+		assertThat("compact cache is not smaller", compact < standard, is(true));
+	}
+	
+	private double bytesPerToken(final BiFunction<Integer, Integer, AbstractTokenCache> factory)
+			throws Exception {
+		final long before = usedHeap();
+		final AbstractTokenCache tc = factory.apply(TOKENS, TOKENS + 1);
+		final Random r = new Random(42);
+		for (int i = 0; i < TOKENS; i++) {
+			// new strings for every token, as when parsed from an auth service response. The
+			// token strings are only referenced by the cache, if at all.
+			tc.putValidToken(new AuthToken(token(r), new String("user" + r.nextInt(USERS))));
+		}
+		final long used = usedHeap() - before;
+		// keep the cache reachable until after the measurement
+		assertThat("cache is empty", tc.getToken("not a token") == null, is(true));
+		return used / (double) TOKENS;
+	}
+	
+	private static String token(final Random r) {
+		final char[] c = new char[32];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = TOKEN_CHARS[r.nextInt(TOKEN_CHARS.length)];
+		}
+		return new String(c);
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -7,14 +7,30 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.lang.reflect.Field;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
 
 import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.cache.AbstractTokenCache;
 import us.kbase.auth.client.cache.TokenCache;
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.auth.client.metrics.InMemoryMetrics;
+import us.kbase.auth.client.metrics.Metrics;
+import us.kbase.test.common.FakeClock;
 import us.kbase.test.common.TestCommon;
 
 public class TokenCacheTest {
@@ -23,6 +39,15 @@ public class TokenCacheTest {
 	
 	private static final List<AuthToken> TEST_TOKENS = IntStream.range(1, 6).
 			mapToObj(i -> new AuthToken("token" + i, "user" + i)).collect(Collectors.toList());
+	
+	// overridden to run these tests against other implementations
+	protected AbstractTokenCache newCache(final int size, final int maxsize) {
+		return new TokenCache(size, maxsize);
+	}
+	
+	protected AbstractTokenCache newCache(final int size, final int maxsize, final Clock clock) {
+		return new TokenCache(size, maxsize, clock);
+	}
 
 	@Test
 	public void constructFail() throws Exception {
@@ -43,7 +68,7 @@ public class TokenCacheTest {
 	
 	@Test
 	public void dropsOldTokensOnResize() throws Exception {
-		final TokenCache tc = new TokenCache(2, 4);
+		final AbstractTokenCache tc = newCache(2, 4);
 		tc.putValidToken(TEST_TOKENS.get(0));
 		Thread.sleep(2);
 		tc.putValidToken(TEST_TOKENS.get(1));
@@ -74,7 +99,7 @@ public class TokenCacheTest {
 	
 	@Test
 	public void putValidTokenBadArgs() throws Exception {
-		final TokenCache tc = new TokenCache(2, 3);
+		final AbstractTokenCache tc = newCache(2, 3);
 		try {
 			tc.putValidToken(null);
 			fail("expected npe");
@@ -91,7 +116,7 @@ public class TokenCacheTest {
 	}
 	
 	private void failGetToken(final String token) {
-		final TokenCache tc = new TokenCache(2, 3);
+		final AbstractTokenCache tc = newCache(2, 3);
 		try {
 			tc.getToken(token);
 			fail("expected exception");
@@ -103,10 +128,8 @@ public class TokenCacheTest {
 
 	@Test
 	public void dropsExpiredTokens() throws Exception {
-		final TokenCache tc = new TokenCache(2, 3);
-		final Field f = tc.getClass().getDeclaredField("MAX_AGE_MS");
-		f.setAccessible(true);
-		f.set(tc, 70);
+		final AbstractTokenCache tc = newCache(2, 3);
+		tc.setMaxAgeMS(70);
 		for (int i = 0; i <= 2; i++) {
 			tc.putValidToken(TEST_TOKENS.get(i));
 			Thread.sleep(50);
@@ -121,6 +144,444 @@ public class TokenCacheTest {
 						tc.getToken(TEST_TOKENS.get(i).getToken()));
 			}
 		}
-		f.set(tc, 5 * 60 * 1000); //reset to default
+	}
+	
+	@Test
+	public void maxAgeAndExpiryMargin() throws Exception {
+		final AbstractTokenCache tc = newCache(2, 3);
+		assertThat("incorrect max age", tc.getMaxAgeMS(), is(300000L));
+		assertThat("incorrect margin", tc.getExpiryMarginMS(), is(60000L));
+		tc.setMaxAgeMS(1);
+		tc.setExpiryMarginMS(0);
+		assertThat("incorrect max age", tc.getMaxAgeMS(), is(1L));
+		assertThat("incorrect margin", tc.getExpiryMarginMS(), is(0L));
+		
+		failSet(() -> tc.setMaxAgeMS(0), "maxAgeMS must be > 0");
+		failSet(() -> tc.setExpiryMarginMS(-1), "expiryMarginMS must be >= 0");
+	}
+	
+	private void failSet(final Runnable r, final String expected) {
+		try {
+			r.run();
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(expected));
+		}
+	}
+	
+	@Test
+	public void honorsTokenExpiry() throws Exception {
+		final AbstractTokenCache tc = newCache(5, 10);
+		tc.setMaxAgeMS(10000);
+		tc.setExpiryMarginMS(50);
+		final long now = System.currentTimeMillis();
+		// expires before the max age
+		tc.putValidToken(TEST_TOKENS.get(0), now + 120);
+		// max age is sooner than the expiry
+		tc.putValidToken(TEST_TOKENS.get(1), now + 3600 * 1000);
+		// expires within the margin, so isn't cached
+		tc.putValidToken(TEST_TOKENS.get(2), now + 40);
+		// already expired
+		tc.putValidToken(TEST_TOKENS.get(3), now - 1000);
+		
+		assertNotNull("missing token 0", tc.getToken("token1"));
+		assertNotNull("missing token 1", tc.getToken("token2"));
+		assertNull("unexpected token 2", tc.getToken("token3"));
+		assertNull("unexpected token 3", tc.getToken("token4"));
+		Thread.sleep(100);
+		assertNull("unexpected token 0", tc.getToken("token1"));
+		assertNotNull("missing token 1", tc.getToken("token2"));
+		
+		// long lived tokens are cached for the max age
+		tc.setMaxAgeMS(70);
+		tc.putValidToken(TEST_TOKENS.get(4), Long.MAX_VALUE);
+		assertNotNull("missing token 4", tc.getToken("token5"));
+		Thread.sleep(100);
+		assertNull("unexpected token 4", tc.getToken("token5"));
+	}
+	
+	@Test
+	public void putCachedToken() throws Exception {
+		final FakeClock clock = new FakeClock(100000);
+		final AbstractTokenCache tc = newCache(5, 10, clock);
+		tc.setMaxAgeMS(10000);
+		tc.setExpiryMarginMS(1000);
+		// cached until the other cache's expiry, the max age, and the token expiry less the
+		// margin, respectively
+		assertThat("incorrect put", tc.putCachedToken(TEST_TOKENS.get(0), 102000, 200000),
+				is(true));
+		assertThat("incorrect put", tc.putCachedToken(TEST_TOKENS.get(1), 200000, 200000),
+				is(true));
+		assertThat("incorrect put", tc.putCachedToken(TEST_TOKENS.get(2), 200000, 104000),
+				is(true));
+		// expired
+		assertThat("incorrect put", tc.putCachedToken(TEST_TOKENS.get(3), 100000, 200000),
+				is(false));
+		assertThat("incorrect put", tc.putCachedToken(TEST_TOKENS.get(4), 200000, 101000),
+				is(false));
+		assertNull("unexpected token", tc.getToken("token4"));
+		assertNull("unexpected token", tc.getToken("token5"));
+		
+		// replaces an existing entry
+		tc.putValidToken(new AuthToken("token1", "user6"));
+		tc.putCachedToken(TEST_TOKENS.get(0), 102000, 200000);
+		assertThat("incorrect token", tc.getToken("token1"), is(TEST_TOKENS.get(0)));
+		
+		clock.advance(2001);
+		assertNull("unexpected token", tc.getToken("token1"));
+		assertThat("incorrect token", tc.getToken("token3"), is(TEST_TOKENS.get(2)));
+		clock.advance(1000);
+		assertNull("unexpected token", tc.getToken("token3"));
+		assertThat("incorrect token", tc.getToken("token2"), is(TEST_TOKENS.get(1)));
+		clock.advance(7000);
+		assertNull("unexpected token", tc.getToken("token2"));
+		
+		try {
+			tc.putCachedToken(null, 1, 1);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException(
+					"token cannot be null"));
+		}
+	}
+	
+	@Test
+	public void refreshAhead() throws Exception {
+		final FakeClock clock = new FakeClock(10000);
+		final AbstractTokenCache tc = newCache(2, 3, clock);
+		tc.setMaxAgeMS(1000);
+		tc.setExpiryMarginMS(0);
+		tc.setRefreshAheadFraction(0.5);
+		assertThat("incorrect fraction", tc.getRefreshAheadFraction(), is(0.5));
+		final List<AuthToken> refreshed = new ArrayList<>();
+		final AbstractTokenCache.Refresher r = t -> refreshed.add(t);
+		final AuthToken t1 = TEST_TOKENS.get(0);
+		tc.putValidToken(t1);
+		
+		clock.advance(499);
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		assertThat("incorrect refreshes", refreshed.size(), is(0));
+		clock.advance(1);
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		assertThat("incorrect token", tc.getToken("token1"), is(t1));
+		assertThat("incorrect refreshes", refreshed, is(Arrays.asList(t1)));
+		
+		// the refresh adds the token again, which resets the refresh time
+		clock.advance(100);
+		tc.putValidToken(t1);
+		clock.advance(499);
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		assertThat("incorrect refreshes", refreshed.size(), is(1));
+		clock.advance(1);
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		assertThat("incorrect refreshes", refreshed, is(Arrays.asList(t1, t1)));
+		
+		// the refresh failed, so the token expires
+		clock.advance(500);
+		assertThat("incorrect token", tc.getToken("token1", r), is(t1));
+		clock.advance(1);
+		assertNull("expected expired token", tc.getToken("token1", r));
+		assertThat("incorrect refreshes", refreshed.size(), is(2));
+	}
+	
+	@Test
+	public void refreshAheadDisabled() throws Exception {
+		final FakeClock clock = new FakeClock(10000);
+		final AbstractTokenCache tc = newCache(2, 3, clock);
+		assertThat("incorrect fraction", tc.getRefreshAheadFraction(), is(1.0));
+		tc.setMaxAgeMS(1000);
+		tc.putValidToken(TEST_TOKENS.get(0));
+		clock.advance(1000);
+		assertNotNull("missing token", tc.getToken("token1", t -> fail("refreshed")));
+		clock.advance(1);
+		assertNull("expected expired token", tc.getToken("token1", t -> fail("refreshed")));
+	}
+	
+	@Test
+	public void refreshAheadFail() throws Exception {
+		final AbstractTokenCache tc = newCache(2, 3);
+		for (final double f: Arrays.asList(0.0, -0.1, 1.01, Double.NaN)) {
+			failSet(() -> tc.setRefreshAheadFraction(f), "fraction must be > 0 and <= 1");
+		}
+		try {
+			new TokenCache(2, 3, null);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("clock"));
+		}
+	}
+	
+	@Test
+	public void getStaleToken() throws Exception {
+		final FakeClock clock = new FakeClock(10000);
+		final AbstractTokenCache tc = newCache(5, 10, clock);
+		tc.setMaxAgeMS(1000);
+		tc.setExpiryMarginMS(100);
+		tc.putValidToken(TEST_TOKENS.get(0));
+		tc.putValidToken(TEST_TOKENS.get(1), 10000 + 1500); // cached until 11400
+		
+		assertThat("incorrect token", tc.getStaleToken("token1", 0), is(TEST_TOKENS.get(0)));
+		clock.advance(1001);
+		assertNull("unexpected token", tc.getToken("token1"));
+		assertNull("unexpected token", tc.getStaleToken("token1", 0));
+		assertThat("incorrect token", tc.getStaleToken("token1", 500), is(TEST_TOKENS.get(0)));
+		assertThat("incorrect token", tc.getStaleToken("token2", 500), is(TEST_TOKENS.get(1)));
+		assertNull("unexpected token", tc.getStaleToken("token3", 500));
+		
+		// never returned after the token expires
+		clock.advance(499);
+		assertThat("incorrect token", tc.getStaleToken("token1", 500), is(TEST_TOKENS.get(0)));
+		assertNull("unexpected token", tc.getStaleToken("token2", 500));
+		clock.advance(1);
+		assertNull("unexpected token", tc.getStaleToken("token1", 500));
+		assertThat("incorrect token", tc.getStaleToken("token1", Long.MAX_VALUE),
+				is(TEST_TOKENS.get(0)));
+		
+		for (final String t: Arrays.asList(null, "")) {
+			try {
+				tc.getStaleToken(t, 1);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"token cannot be null or empty"));
+			}
+		}
+		try {
+			tc.getStaleToken("token1", -1);
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"graceMS must be >= 0"));
+		}
+	}
+	
+	@Test
+	public void metrics() throws Exception {
+		final FakeClock clock = new FakeClock(10000);
+		final AbstractTokenCache tc = newCache(2, 3, clock);
+		final InMemoryMetrics m = new InMemoryMetrics();
+		tc.setMetrics(m, Metrics.Cache.TOKEN);
+		tc.setMaxAgeMS(1000);
+		for (int i = 0; i < 4; i++) {
+			tc.putValidToken(TEST_TOKENS.get(i));
+			clock.advance(1);
+		}
+		assertThat("incorrect evictions", m.getCacheEvictions(Metrics.Cache.TOKEN), is(2L));
+		assertThat("incorrect eviction count", m.getEvictionNanos(Metrics.Cache.TOKEN).getCount(),
+				is(1L));
+		assertNull("unexpected token", tc.getToken("token1"));
+		assertNotNull("missing token", tc.getToken("token4"));
+		assertNotNull("missing token", tc.getToken("token4"));
+		clock.advance(1000);
+		assertNull("unexpected token", tc.getToken("token4"));
+		tc.getStaleToken("token4", 1000); // not counted
+		
+		assertThat("incorrect hits", m.getCacheHits(Metrics.Cache.TOKEN), is(2L));
+		assertThat("incorrect misses", m.getCacheMisses(Metrics.Cache.TOKEN), is(2L));
+		assertThat("incorrect expiries", m.getCacheExpiries(Metrics.Cache.TOKEN), is(1L));
+		
+		try {
+			tc.setMetrics(null, Metrics.Cache.TOKEN);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("metrics"));
+		}
+		try {
+			tc.setMetrics(m, null);
+			fail("expected exception");
+		} catch (NullPointerException got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("cache"));
+		}
+	}
+	
+	@Test
+	public void removeToken() throws Exception {
+		final AbstractTokenCache tc = newCache(2, 3);
+		tc.putValidToken(TEST_TOKENS.get(0));
+		tc.putValidToken(TEST_TOKENS.get(1));
+		tc.removeToken("token1");
+		tc.removeToken("token3"); // no-op
+		assertNull("unexpected token", tc.getToken("token1"));
+		assertNotNull("missing token", tc.getToken("token2"));
+		for (final String t: Arrays.asList(null, "")) {
+			try {
+				tc.removeToken(t);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"token cannot be null or empty"));
+			}
+		}
+	}
+
+	@Test
+	public void removeUser() throws Exception {
+		final FakeClock clock = new FakeClock(10000);
+		final AbstractTokenCache tc = newCache(4, 6, clock);
+		for (final String t: Arrays.asList("t1", "t2", "t3", "t4")) {
+			tc.putValidToken(new AuthToken(t, t.equals("t3") ? "u2" : "u1"));
+			clock.advance(1);
+		}
+		// the token changes owner, so is no longer one of u1's tokens
+		tc.putValidToken(new AuthToken("t4", "u2"));
+		tc.removeToken("t2");
+		assertThat("incorrect removed", new HashSet<>(tc.removeUser("u1")),
+				is(set(TokenDigest.of("t1"))));
+		assertNull("unexpected token", tc.getToken("t1"));
+		assertThat("incorrect token", tc.getToken("t3"), is(new AuthToken("t3", "u2")));
+		assertThat("incorrect token", tc.getToken("t4"), is(new AuthToken("t4", "u2")));
+		assertThat("incorrect removed", tc.removeUser("u1").isEmpty(), is(true));
+		assertThat("incorrect removed", tc.removeUser("u3").isEmpty(), is(true));
+
+		// evicted tokens are not returned
+		for (final String t: Arrays.asList("t5", "t6", "t7", "t8", "t9")) {
+			clock.advance(1);
+			tc.putValidToken(new AuthToken(t, "u1"));
+		}
+		assertThat("incorrect removed", tc.removeUser("u2").isEmpty(), is(true));
+		assertThat("incorrect removed", new HashSet<>(tc.removeUser("u1")), is(set(
+				TokenDigest.of("t6"), TokenDigest.of("t7"), TokenDigest.of("t8"),
+				TokenDigest.of("t9"))));
+		for (final String t: Arrays.asList("t5", "t6", "t7", "t8", "t9")) {
+			assertNull("unexpected token", tc.getToken(t));
+		}
+
+		for (final String u: Arrays.asList(null, "")) {
+			try {
+				tc.removeUser(u);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"user cannot be null or empty"));
+			}
+		}
+	}
+
+	@SafeVarargs
+	private static <T> Set<T> set(final T... items) {
+		return new HashSet<>(Arrays.asList(items));
+	}
+
+	@Test
+	public void removeAll() throws Exception {
+		final AbstractTokenCache tc = newCache(4, 6);
+		for (final AuthToken t: TEST_TOKENS) {
+			tc.putValidToken(t);
+		}
+		tc.removeAll();
+		for (final AuthToken t: TEST_TOKENS) {
+			assertNull("unexpected token", tc.getToken(t.getToken()));
+		}
+		assertThat("incorrect removed", tc.removeUser("user1").isEmpty(), is(true));
+		tc.putValidToken(TEST_TOKENS.get(0));
+		assertThat("incorrect token", tc.getToken("token1"), is(TEST_TOKENS.get(0)));
+		assertThat("incorrect removed", new HashSet<>(tc.removeUser("user1")),
+				is(set(TokenDigest.of("token1"))));
+	}
+
+	@Test
+	public void removeUserAfterConcurrentWrites() throws Exception {
+		// the user index must be consistent with the cache after concurrent puts, removals and
+		// evictions
+		final AbstractTokenCache tc = newCache(300, 600);
+		final ExecutorService exe = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<?>> futs = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int seed = t;
+				futs.add(exe.submit(() -> {
+					final Random r = new Random(seed);
+					for (int i = 0; i < 50000; i++) {
+						final int tok = r.nextInt(1000);
+						if (r.nextInt(10) == 0) {
+							tc.removeToken("token" + tok);
+						} else {
+							tc.putValidToken(new AuthToken("token" + tok, "user" + tok % 7));
+						}
+					}
+				}));
+			}
+			for (final Future<?> f: futs) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+		for (int u = 0; u < 7; u++) {
+			tc.removeUser("user" + u);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertNull("unexpected token " + i, tc.getToken("token" + i));
+		}
+	}
+
+	@Test
+	public void writersDoNotWaitForEviction() throws Exception {
+		final TokenCache tc = new TokenCache(10, 20);
+		final Field f = tc.getClass().getDeclaredField("evictionLock");
+		f.setAccessible(true);
+		final ReentrantLock lock = (ReentrantLock) f.get(tc);
+		
+		// simulate a long running eviction in another thread
+		lock.lock();
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> fut = exe.submit(() -> {
+				for (int i = 0; i < 30; i++) {
+					tc.putValidToken(new AuthToken("token" + i, "user" + i));
+				}
+			});
+			// would time out if writers serialized behind the eviction
+			fut.get(5, TimeUnit.SECONDS);
+			assertThat("incorrect cache size", countTokens(tc, 31), is(30));
+		} finally {
+			lock.unlock();
+			exe.shutdown();
+		}
+		Thread.sleep(2);
+		tc.putValidToken(new AuthToken("token30", "user30"));
+		assertThat("incorrect cache size", countTokens(tc, 31), is(10));
+		assertNotNull("missing newest token", tc.getToken("token30"));
+	}
+	
+	private int countTokens(final AbstractTokenCache tc, final int max) {
+		int count = 0;
+		for (int i = 0; i < max; i++) {
+			final AuthToken t = tc.getToken("token" + i);
+			if (t != null) {
+				assertThat("incorrect token", t, is(new AuthToken("token" + i, "user" + i)));
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	@Test
+	public void concurrentPuts() throws Exception {
+		final AbstractTokenCache tc = newCache(500, 1000);
+		final int threads = 8;
+		final int tokens = 2000;
+		final ExecutorService exe = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futs = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futs.add(exe.submit(() -> {
+					for (int i = 0; i < tokens; i++) {
+						final int tok = (thread * tokens + i);
+						tc.putValidToken(new AuthToken("token" + tok, "user" + tok));
+					}
+				}));
+			}
+			for (final Future<?> f: futs) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			exe.shutdown();
+		}
+		final int count = countTokens(tc, threads * tokens);
+		assertThat("cache too large: " + count, count <= 1000, is(true));
+		assertThat("cache too small: " + count, count >= 500, is(true));
 	}
 }
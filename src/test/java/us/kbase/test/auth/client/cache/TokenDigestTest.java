@@ -0,0 +1,113 @@
+package us.kbase.test.auth.client.cache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import us.kbase.auth.client.cache.TokenDigest;
+import us.kbase.test.common.TestCommon;
+
+public class TokenDigestTest {
+	
+	private static String sha256(final String s) throws Exception {
+		final byte[] d = MessageDigest.getInstance("SHA-256").digest(
+				s.getBytes(StandardCharsets.UTF_8));
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : d) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+	
+	@Test
+	public void digestMatchesSHA256() throws Exception {
+		final String[] tokens = {
+				"a",
+				"ZGQSHT7CZIMYPUY2JRD7BRHDHHYJYZQF",
+				"caf\u00e9 \u20ac",      // 2 and 3 byte characters
+				"\ud83d\ude00 emoji",     // surrogate pair
+				"bad \ud83d surrogate \ude00 s\ud83d", // unpaired surrogates
+				new String(new char[1000]).replace('\0', 'x') // longer than initial buffer
+		};
+		for (final String t: tokens) {
+			assertThat("incorrect digest for " + t, TokenDigest.of(t).toString(), is(sha256(t)));
+		}
+	}
+	
+	@Test
+	public void digestOnVirtualThreads() throws Exception {
+		// Java 8 compatible, so virtual threads are created reflectively
+		final Method m;
+		try {
+			m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			Assume.assumeTrue("Virtual threads are not supported", false);
+			throw e; // unreachable
+		}
+		final ExecutorService exe = (ExecutorService) m.invoke(null);
+		try {
+			final List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < 10000; i++) {
+				final String token = "token" + i;
+				futures.add(exe.submit(() -> TokenDigest.of(token).toString()));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				assertThat("incorrect digest", futures.get(i).get(30, TimeUnit.SECONDS),
+						is(sha256("token" + i)));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void equalsAndHashCode() throws Exception {
+		final TokenDigest d1 = TokenDigest.of("token1");
+		final TokenDigest d1a = TokenDigest.of("token1");
+		final TokenDigest d2 = TokenDigest.of("token2");
+		assertThat("not equal", d1.equals(d1a), is(true));
+		assertThat("incorrect hash", d1.hashCode(), is(d1a.hashCode()));
+		assertThat("equal", d1.equals(d2), is(false));
+		assertThat("equal", d1.equals("token1"), is(false));
+		assertThat("equal", d1.equals(null), is(false));
+		
+		final TokenDigest copy = new TokenDigest(
+				d1.getLong(0), d1.getLong(1), d1.getLong(2), d1.getLong(3));
+		assertThat("not equal", copy, is(d1));
+		assertThat("not equal", copy.toString(), is(sha256("token1")));
+		assertThat("not equal", new TokenDigest(
+				d1.getLong(0), d1.getLong(1), d1.getLong(2), d1.getLong(2)).equals(d1), is(false));
+	}
+	
+	@Test
+	public void digestFail() throws Exception {
+		try {
+			TokenDigest.of(null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, new NullPointerException("token"));
+		}
+		for (final int i: new int[] {-1, 4}) {
+			try {
+				TokenDigest.of("foo").getLong(i);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(
+						got, new IndexOutOfBoundsException("index: " + i));
+			}
+		}
+	}
+}
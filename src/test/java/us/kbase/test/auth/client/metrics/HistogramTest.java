@@ -0,0 +1,84 @@
+package us.kbase.test.auth.client.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import us.kbase.auth.client.metrics.Histogram;
+import us.kbase.test.common.TestCommon;
+
+public class HistogramTest {
+	
+	@Test
+	public void empty() throws Exception {
+		final Histogram h = new Histogram();
+		assertThat("incorrect count", h.getCount(), is(0L));
+		assertThat("incorrect sum", h.getSum(), is(0L));
+		assertThat("incorrect max", h.getMax(), is(0L));
+		assertThat("incorrect mean", h.getMean(), is(0.0));
+		assertThat("incorrect p50", h.getPercentile(50), is(0L));
+	}
+	
+	@Test
+	public void smallValuesAreExact() throws Exception {
+		final Histogram h = new Histogram();
+		for (int i = 1; i <= 8; i++) {
+			h.record(i);
+		}
+		h.record(-5); // recorded as 0
+		assertThat("incorrect count", h.getCount(), is(9L));
+		assertThat("incorrect sum", h.getSum(), is(36L));
+		assertThat("incorrect max", h.getMax(), is(8L));
+		assertThat("incorrect mean", h.getMean(), is(4.0));
+		assertThat("incorrect p0", h.getPercentile(0), is(0L));
+		assertThat("incorrect p50", h.getPercentile(50), is(4L));
+		assertThat("incorrect p100", h.getPercentile(100), is(8L));
+	}
+	
+	@Test
+	public void percentileAccuracy() throws Exception {
+		final Histogram h = new Histogram();
+		final Random r = new Random(42);
+		final long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(r.nextDouble() * 30);
+			h.record(values[i]);
+		}
+		Arrays.sort(values);
+		for (final double p: Arrays.asList(1.0, 25.0, 50.0, 90.0, 99.0, 99.9, 100.0)) {
+			final long expected = values[(int) Math.ceil(values.length * p / 100) - 1];
+			final long got = h.getPercentile(p);
+			assertThat(String.format("p%s %s < %s", p, got, expected), got >= expected, is(true));
+			assertThat(String.format("p%s %s too large for %s", p, got, expected),
+					got <= expected * 1.125 + 1, is(true));
+		}
+		assertThat("incorrect max", h.getMax(), is(values[values.length - 1]));
+		assertThat("incorrect p100", h.getPercentile(100), is(values[values.length - 1]));
+	}
+	
+	@Test
+	public void largeValues() throws Exception {
+		final Histogram h = new Histogram();
+		h.record(Long.MAX_VALUE);
+		assertThat("incorrect p50", h.getPercentile(50), is(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void percentileFail() throws Exception {
+		final Histogram h = new Histogram();
+		for (final double p: Arrays.asList(-0.1, 100.1, Double.NaN)) {
+			try {
+				h.getPercentile(p);
+				fail("expected exception");
+			} catch (IllegalArgumentException got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"percentile must be between 0 and 100"));
+			}
+		}
+	}
+}
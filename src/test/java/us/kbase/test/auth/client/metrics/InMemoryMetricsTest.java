@@ -0,0 +1,97 @@
+package us.kbase.test.auth.client.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import us.kbase.auth.client.metrics.InMemoryMetrics;
+import us.kbase.auth.client.metrics.Metrics;
+import us.kbase.auth.client.metrics.Metrics.Cache;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+
+public class InMemoryMetricsTest {
+	
+	@Test
+	public void noop() throws Exception {
+		// just check nothing blows up
+		Metrics.NOOP.cacheHit(Cache.TOKEN);
+		Metrics.NOOP.cacheEviction(Cache.USER, 4, 1000);
+		Metrics.NOOP.requestCompleted(Endpoint.ROOT, 200, 1, 1);
+		Metrics.NOOP.requestFailed(Endpoint.ROOT, new IOException(), 1);
+	}
+	
+	@Test
+	public void endpointPaths() throws Exception {
+		assertThat("incorrect path", Endpoint.ROOT.getPath(), is(""));
+		assertThat("incorrect path", Endpoint.TOKEN.getPath(), is("api/V2/token"));
+		assertThat("incorrect path", Endpoint.USERS.getPath(), is("api/V2/users"));
+	}
+	
+	@Test
+	public void caches() throws Exception {
+		final InMemoryMetrics m = new InMemoryMetrics();
+		m.cacheHit(Cache.TOKEN);
+		m.cacheHit(Cache.TOKEN);
+		m.cacheHit(Cache.TOKEN);
+		m.cacheMiss(Cache.TOKEN);
+		m.cacheExpiry(Cache.TOKEN);
+		m.cacheEviction(Cache.TOKEN, 10, 2000);
+		m.cacheEviction(Cache.TOKEN, 5, 1000);
+		m.cacheMiss(Cache.USER);
+		
+		assertThat("incorrect hits", m.getCacheHits(Cache.TOKEN), is(3L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.TOKEN), is(1L));
+		assertThat("incorrect expiries", m.getCacheExpiries(Cache.TOKEN), is(1L));
+		assertThat("incorrect evictions", m.getCacheEvictions(Cache.TOKEN), is(15L));
+		assertThat("incorrect eviction count", m.getEvictionNanos(Cache.TOKEN).getCount(),
+				is(2L));
+		assertThat("incorrect eviction time", m.getEvictionNanos(Cache.TOKEN).getSum(),
+				is(3000L));
+		assertThat("incorrect hit rate", m.getCacheHitRate(Cache.TOKEN), is(0.75));
+		assertThat("incorrect hits", m.getCacheHits(Cache.USER), is(0L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.USER), is(1L));
+		assertThat("incorrect hit rate", m.getCacheHitRate(Cache.USER), is(0.0));
+		assertThat("incorrect hit rate", m.getCacheHitRate(Cache.MISSING_USER), is(0.0));
+		assertThat("incorrect eviction count", m.getEvictionNanos(Cache.USER).getCount(),
+				is(0L));
+	}
+	
+	@Test
+	public void requests() throws Exception {
+		final InMemoryMetrics m = new InMemoryMetrics();
+		m.requestCompleted(Endpoint.TOKEN, 200, 1000, 300);
+		m.requestCompleted(Endpoint.TOKEN, 200, 3000, 100);
+		m.requestCompleted(Endpoint.TOKEN, 401, 2000, 200);
+		m.requestFailed(Endpoint.TOKEN, new IOException("foo"), 6000);
+		m.requestFailed(Endpoint.TOKEN, new SocketTimeoutException("foo"), 8000);
+		m.requestFailed(Endpoint.TOKEN, new IOException("bar"), 5000);
+		
+		assertThat("incorrect count", m.getRequestCount(Endpoint.TOKEN), is(6L));
+		assertThat("incorrect latency", m.getLatencyNanos(Endpoint.TOKEN).getSum(), is(25000L));
+		assertThat("incorrect latency", m.getLatencyNanos(Endpoint.TOKEN).getMax(), is(8000L));
+		assertThat("incorrect size count", m.getResponseBytes(Endpoint.TOKEN).getCount(),
+				is(3L));
+		assertThat("incorrect size", m.getResponseBytes(Endpoint.TOKEN).getSum(), is(600L));
+		final Map<Integer, Long> codes = new HashMap<>();
+		codes.put(200, 2L);
+		codes.put(401, 1L);
+		assertThat("incorrect codes", m.getStatusCodeCounts(Endpoint.TOKEN), is(codes));
+		final Map<String, Long> errors = new HashMap<>();
+		errors.put("java.io.IOException", 2L);
+		errors.put("java.net.SocketTimeoutException", 1L);
+		assertThat("incorrect errors", m.getErrorCounts(Endpoint.TOKEN), is(errors));
+		
+		assertThat("incorrect count", m.getRequestCount(Endpoint.USERS), is(0L));
+		assertThat("incorrect codes", m.getStatusCodeCounts(Endpoint.USERS),
+				is(Collections.emptyMap()));
+		assertThat("incorrect errors", m.getErrorCounts(Endpoint.USERS),
+				is(Collections.emptyMap()));
+	}
+}
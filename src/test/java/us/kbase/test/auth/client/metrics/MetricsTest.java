@@ -0,0 +1,85 @@
+package us.kbase.test.auth.client.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static us.kbase.test.auth.client.AuthClientTestCommon.ROOT;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failConfig;
+import static us.kbase.test.auth.client.AuthClientTestCommon.failValidate;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.AuthServerException;
+import us.kbase.auth.client.metrics.InMemoryMetrics;
+import us.kbase.auth.client.metrics.Metrics;
+import us.kbase.auth.client.metrics.Metrics.Cache;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+import us.kbase.test.auth.client.FakeTransport;
+
+/** Tests of the {@link Metrics} reported by the auth client, run against a
+ * {@link FakeTransport}.
+ */
+public class MetricsTest {
+	
+	@Test
+	public void clientMetrics() throws Exception {
+		final AtomicBoolean down = new AtomicBoolean(false);
+		final FakeTransport t = new FakeTransport((target, token) -> {
+			if (down.get()) {
+				throw new IOException("network down");
+			}
+			if (token.equals("bad")) {
+				return FakeTransport.invalidToken();
+			}
+			return target.getPath().endsWith("/token") ? FakeTransport.token("foo") :
+				FakeTransport.response(200, "{\"foo\": \"Foo\"}");
+		});
+		final InMemoryMetrics m = new InMemoryMetrics();
+		final AuthClient c = AuthClient.builder(ROOT).withTransport(t).withMetrics(m)
+				.withRejectedTokenCache(1, 2, 100000).build();
+		assertThat("incorrect count", m.getRequestCount(Endpoint.ROOT), is(1L));
+		assertThat("incorrect size", m.getResponseBytes(Endpoint.ROOT).getSum(),
+				is((long) FakeTransport.ROOT_DOC.length()));
+		
+		c.validateToken("tok");
+		c.validateToken("tok");
+		failValidate(c, "bad", new AuthServerException(
+				"Auth service returned an error: 10020 Invalid token", 401, 10020));
+		failValidate(c, "bad", new AuthServerException(
+				"Auth service returned an error: 10020 Invalid token", 401, 10020));
+		assertThat("incorrect hits", m.getCacheHits(Cache.TOKEN), is(1L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.TOKEN), is(3L));
+		assertThat("incorrect hits", m.getCacheHits(Cache.REJECTED_TOKEN), is(1L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.REJECTED_TOKEN), is(2L));
+		assertThat("incorrect count", m.getRequestCount(Endpoint.TOKEN), is(2L));
+		final Map<Integer, Long> codes = new HashMap<>();
+		codes.put(200, 1L);
+		codes.put(401, 1L);
+		assertThat("incorrect codes", m.getStatusCodeCounts(Endpoint.TOKEN), is(codes));
+		
+		c.isValidUserName(Arrays.asList("foo", "bar"), "tok");
+		c.isValidUserName(Arrays.asList("foo", "bar"), "tok");
+		assertThat("incorrect hits", m.getCacheHits(Cache.USER), is(1L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.USER), is(3L));
+		assertThat("incorrect hits", m.getCacheHits(Cache.MISSING_USER), is(1L));
+		assertThat("incorrect misses", m.getCacheMisses(Cache.MISSING_USER), is(2L));
+		assertThat("incorrect count", m.getRequestCount(Endpoint.USERS), is(1L));
+		
+		down.set(true);
+		failValidate(c, "tok2", new IOException("network down"));
+		assertThat("incorrect errors", m.getErrorCounts(Endpoint.TOKEN),
+				is(Collections.singletonMap("java.io.IOException", 1L)));
+		assertThat("incorrect count", m.getRequestCount(Endpoint.TOKEN), is(3L));
+		
+		failConfig(() -> AuthClient.builder(ROOT).withMetrics(null),
+				new NullPointerException("metrics"));
+	}
+	
+}
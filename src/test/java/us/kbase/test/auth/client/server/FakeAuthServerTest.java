@@ -0,0 +1,155 @@
+package us.kbase.test.auth.client.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.auth.client.AuthClient;
+import us.kbase.auth.client.AuthServerException;
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+import us.kbase.test.common.TestCommon;
+
+public class FakeAuthServerTest {
+	
+	private static final AuthServerException INVALID = new AuthServerException(
+			"Auth service returned an error: 10020 Invalid token", 401, 10020);
+	
+	private static FakeAuthServer server;
+	
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new FakeAuthServer(4);
+	}
+	
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.close();
+		}
+	}
+	
+	private void reset() {
+		server.setLatency(0).setErrorRate(0).setDropRate(0);
+	}
+	
+	@Test
+	public void tokensAndUsers() throws Exception {
+		reset();
+		server.addToken("tok1", "user1").addToken("tok2", "user2", System.currentTimeMillis() - 1)
+				.addUser("user3");
+		final AuthClient c = AuthClient.builder(server.getRootURI()).build();
+		assertThat("incorrect version", c.getServerVersion(), is(FakeAuthServer.VERSION));
+		assertThat("incorrect token", c.validateToken("tok1"), is(new AuthToken("tok1", "user1")));
+		failValidate(c, "tok2", INVALID); // expired
+		failValidate(c, "tok3", INVALID);
+		
+		final Map<String, Boolean> expected = new HashMap<>();
+		expected.put("user1", true);
+		expected.put("user2", true);
+		expected.put("user3", true);
+		expected.put("user4", false);
+		assertThat("incorrect users", c.isValidUserName(
+				Arrays.asList("user1", "user2", "user3", "user4"), "tok1"), is(expected));
+		try {
+			c.isValidUserName(Arrays.asList("user5"), "tok3");
+			fail("expected exception");
+		} catch (AuthServerException got) {
+			TestCommon.assertExceptionCorrect(got, INVALID);
+		}
+		
+		// revoked tokens are rejected
+		server.addToken("tok4", "user1");
+		final AuthClient c2 = AuthClient.builder(server.getRootURI()).build();
+		c2.validateToken("tok4");
+		server.removeToken("tok4");
+		final AuthClient c3 = AuthClient.builder(server.getRootURI()).build();
+		failValidate(c3, "tok4", INVALID);
+	}
+	
+	private void failValidate(final AuthClient c, final String token, final Exception expected)
+			throws Exception {
+		try {
+			c.validateToken(token);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void latency() throws Exception {
+		reset();
+		server.addToken("lat", "user");
+		final AuthClient c = AuthClient.builder(server.getRootURI()).build();
+		server.setLatency(100, 150);
+		final long start = System.nanoTime();
+		c.validateToken("lat");
+		final long elapsed = (System.nanoTime() - start) / 1000000;
+		assertThat("too fast: " + elapsed, elapsed >= 100, is(true));
+	}
+	
+	@Test
+	public void errorsAndDrops() throws Exception {
+		reset();
+		server.addToken("err", "user");
+		final AuthClient c = AuthClient.builder(server.getRootURI()).build();
+		final long tokenRequests = server.getRequestCount(Endpoint.TOKEN);
+		final long errors = server.getErrorCount();
+		server.setErrorRate(1);
+		failValidate(c, "err", new AuthServerException(
+				"Auth service returned an error: Injected failure", 500, -1));
+		assertThat("incorrect errors", server.getErrorCount(), is(errors + 1));
+		
+		final long drops = server.getDropCount();
+		server.setErrorRate(0).setDropRate(1);
+		try {
+			c.validateToken("err");
+			fail("expected exception");
+		} catch (IOException got) {
+			// the exact exception depends on the JDK
+		}
+		assertThat("no drops", server.getDropCount() > drops, is(true));
+		
+		// the client recovers when the server does
+		server.setDropRate(0);
+		assertThat("incorrect token", c.validateToken("err"), is(new AuthToken("err", "user")));
+		assertThat("incorrect request count", server.getRequestCount(Endpoint.TOKEN) >
+				tokenRequests + 2, is(true));
+	}
+	
+	@Test
+	public void configFail() throws Exception {
+		for (final double r: Arrays.asList(-0.1, 1.1, Double.NaN)) {
+			failConfig(() -> server.setErrorRate(r), "rate must be between 0 and 1");
+			failConfig(() -> server.setDropRate(r), "rate must be between 0 and 1");
+		}
+		failConfig(() -> server.setLatency(-1), "latency must be >= 0 and min <= max");
+		failConfig(() -> server.setLatency(2, 1), "latency must be >= 0 and min <= max");
+		try {
+			new FakeAuthServer(0);
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+					"threads must be > 0"));
+		}
+	}
+	
+	private void failConfig(final Runnable r, final String expected) {
+		try {
+			r.run();
+			fail("expected exception");
+		} catch (IllegalArgumentException got) {
+			TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(expected));
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package us.kbase.test.auth.client.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import us.kbase.auth.client.transport.HttpResponse;
+import us.kbase.auth.client.transport.PoolExhaustedException;
+import us.kbase.auth.client.transport.PoolStats;
+import us.kbase.auth.client.transport.PooledTransport;
+import us.kbase.test.common.TestCommon;
+
+public class PooledTransportTest {
+	
+	private static final String BODY = "{\"servicename\": \"Authentication Service\"}";
+	
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private URI root;
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+	private volatile CountDownLatch block = new CountDownLatch(0);
+	private final List<String> auth = new ArrayList<>();
+	
+	@Before
+	public void startServer() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.createContext("/fixed", ex -> respond(ex, BODY.length()));
+		server.createContext("/chunked", ex -> respond(ex, 0));
+		server.createContext("/close", ex -> {
+			ex.getResponseHeaders().add("Connection", "close");
+			respond(ex, BODY.length());
+		});
+		server.start();
+		root = new URI("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+	
+	private void respond(final HttpExchange ex, final long len) throws IOException {
+		maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+		try {
+			synchronized (auth) {
+				auth.add(ex.getRequestHeaders().getFirst("Authorization"));
+			}
+			block.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			// before responding, as the client may send its next request as soon as it has
+			// read the response
+			active.decrementAndGet();
+		}
+		ex.sendResponseHeaders(200, len);
+		try (final OutputStream os = ex.getResponseBody()) {
+			os.write(BODY.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+	
+	private String get(final PooledTransport t, final String path, final String token)
+			throws IOException {
+		try (final HttpResponse r = t.get(root.resolve(path), token)) {
+			assertThat("incorrect code", r.getStatusCode(), is(200));
+			return read(r.getBody());
+		}
+	}
+	
+	private String read(final InputStream is) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[7]; // force multiple reads
+		int r;
+		while ((r = is.read(buf)) != -1) {
+			out.write(buf, 0, r);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	private void assertStats(
+			final PoolStats s,
+			final long requests,
+			final long created,
+			final long reused,
+			final long closed,
+			final int idle) {
+		assertThat("incorrect stats " + s, s.getRequests(), is(requests));
+		assertThat("incorrect stats " + s, s.getConnectionsCreated(), is(created));
+		assertThat("incorrect stats " + s, s.getConnectionsReused(), is(reused));
+		assertThat("incorrect stats " + s, s.getConnectionsClosed(), is(closed));
+		assertThat("incorrect stats " + s, s.getIdleConnections(), is(idle));
+	}
+	
+	@Test
+	public void construct() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		assertThat("incorrect max", t.getMaxConnectionsPerHost(), is(10));
+		assertThat("incorrect idle", t.getIdleTimeoutMS(), is(30000L));
+		assertThat("incorrect connect", t.getConnectTimeoutMS(), is(0));
+		assertThat("incorrect read", t.getReadTimeoutMS(), is(0));
+		assertStats(t.getStats(), 0, 0, 0, 0, 0);
+		
+		final PooledTransport t2 = new PooledTransport(1, 1);
+		assertThat("incorrect max", t2.getMaxConnectionsPerHost(), is(1));
+		assertThat("incorrect idle", t2.getIdleTimeoutMS(), is(1L));
+		
+		final PooledTransport t3 = new PooledTransport(1, 1, 2, 3);
+		assertThat("incorrect connect", t3.getConnectTimeoutMS(), is(2));
+		assertThat("incorrect read", t3.getReadTimeoutMS(), is(3));
+	}
+	
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(0, 1, 0, 0,
+				new IllegalArgumentException("maxConnectionsPerHost must be > 0"));
+		failConstruct(1, 0, 0, 0, new IllegalArgumentException("idleTimeoutMS must be > 0"));
+		failConstruct(1, 1, -1, 0,
+				new IllegalArgumentException("connectTimeoutMS must be >= 0"));
+		failConstruct(1, 1, 0, -1, new IllegalArgumentException("readTimeoutMS must be >= 0"));
+	}
+	
+	private void failConstruct(
+			final int max,
+			final long idle,
+			final int connect,
+			final int read,
+			final Exception expected) {
+		try {
+			new PooledTransport(max, idle, connect, read);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void reuseFixedLength() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		for (int i = 0; i < 5; i++) {
+			assertThat("incorrect body", get(t, "/fixed", "tok" + i), is(BODY));
+		}
+		assertStats(t.getStats(), 5, 1, 4, 0, 1);
+		assertThat("incorrect auth", auth.get(4), is("tok4"));
+	}
+	
+	@Test
+	public void reuseChunked() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		for (int i = 0; i < 3; i++) {
+			assertThat("incorrect body", get(t, "/chunked", null), is(BODY));
+		}
+		assertStats(t.getStats(), 3, 1, 2, 0, 1);
+		assertThat("incorrect auth", auth.get(0), is((String) null));
+	}
+	
+	@Test
+	public void reuseUnreadBody() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		for (int i = 0; i < 3; i++) {
+			t.get(root.resolve("/fixed"), null).close();
+			t.get(root.resolve("/chunked"), null).close();
+		}
+		assertStats(t.getStats(), 6, 1, 5, 0, 1);
+	}
+	
+	@Test
+	public void noReuseOnConnectionClose() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		for (int i = 0; i < 3; i++) {
+			assertThat("incorrect body", get(t, "/close", null), is(BODY));
+		}
+		assertStats(t.getStats(), 3, 3, 0, 3, 0);
+	}
+	
+	@Test
+	public void idleTimeout() throws Exception {
+		final PooledTransport t = new PooledTransport(2, 50);
+		get(t, "/fixed", null);
+		get(t, "/fixed", null);
+		assertStats(t.getStats(), 2, 1, 1, 0, 1);
+		Thread.sleep(100);
+		get(t, "/fixed", null);
+		assertStats(t.getStats(), 3, 2, 1, 1, 1);
+	}
+	
+	@Test
+	public void readTimeout() throws Exception {
+		final PooledTransport t = new PooledTransport(1, 10000, 1000, 100);
+		block = new CountDownLatch(1);
+		try {
+			t.get(root.resolve("/fixed"), null);
+			fail("expected exception");
+		} catch (SocketTimeoutException e) {
+			// expected
+		} finally {
+			block.countDown();
+		}
+		assertStats(t.getStats(), 1, 1, 0, 1, 0);
+		// the connection permit was released
+		assertThat("incorrect body", get(t, "/fixed", null), is(BODY));
+	}
+	
+	@Test
+	public void poolTimeout() throws Exception {
+		final PooledTransport t = new PooledTransport(1, 10000, 100, 0);
+		block = new CountDownLatch(1);
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> f = exe.submit(() -> get(t, "/fixed", null));
+			TestCommon.waitFor(() -> active.get() == 1);
+			try {
+				t.get(root.resolve("/fixed"), null);
+				fail("expected exception");
+			} catch (PoolExhaustedException got) {
+				TestCommon.assertExceptionCorrect(got, new PoolExhaustedException(
+						"Timed out after 100 ms waiting for a connection to " + root));
+			}
+			block.countDown();
+			assertThat("incorrect body", f.get(10, TimeUnit.SECONDS), is(BODY));
+		} finally {
+			exe.shutdown();
+		}
+		assertStats(t.getStats(), 1, 1, 0, 0, 1);
+	}
+	
+	@Test
+	public void noRetryOnReadTimeout() throws Exception {
+		final PooledTransport t = new PooledTransport(1, 10000, 1000, 100);
+		get(t, "/fixed", null);
+		block = new CountDownLatch(1);
+		try {
+			t.get(root.resolve("/fixed"), null);
+			fail("expected exception");
+		} catch (SocketTimeoutException e) {
+			// expected
+		} finally {
+			block.countDown();
+		}
+		// the reused connection timed out and a new connection wasn't tried
+		assertStats(t.getStats(), 2, 1, 0, 1, 0);
+	}
+	
+	@Test
+	public void maxConnectionsPerHost() throws Exception {
+		final PooledTransport t = new PooledTransport(2, 10000);
+		block = new CountDownLatch(1);
+		final ExecutorService exe = Executors.newFixedThreadPool(6);
+		try {
+			final List<Future<String>> res = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				res.add(exe.submit(() -> get(t, "/fixed", null)));
+			}
+			Thread.sleep(200); // let the requests pile up
+			assertThat("incorrect active", active.get(), is(2));
+			block.countDown();
+			for (final Future<String> f: res) {
+				assertThat("incorrect body", f.get(10, TimeUnit.SECONDS), is(BODY));
+			}
+		} finally {
+			exe.shutdownNow();
+		}
+		assertThat("incorrect max active", maxActive.get(), is(2));
+		assertStats(t.getStats(), 6, 2, 4, 0, 2);
+	}
+	
+	@Test
+	public void close() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		get(t, "/fixed", null);
+		assertStats(t.getStats(), 1, 1, 0, 0, 1);
+		t.close();
+		assertStats(t.getStats(), 1, 1, 0, 1, 0);
+		try {
+			t.get(root.resolve("/fixed"), null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(
+					got, new IllegalStateException("The transport is closed"));
+		}
+	}
+	
+	@Test
+	public void headerInjection() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		for (final String token: Arrays.asList("a\nb", "a\rb", "a\u0000b", "a\u007fb",
+				"x\r\n\r\nGET /fixed HTTP/1.1\r\nHost: evil\r\nAuthorization: y")) {
+			try {
+				t.get(root.resolve("/fixed"), token);
+				fail("expected exception");
+			} catch (Exception got) {
+				TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+						"Illegal character in the Authorization header value"));
+			}
+		}
+		assertStats(t.getStats(), 0, 0, 0, 0, 0);
+		// nothing was sent, and the connection permits were not consumed
+		assertThat("incorrect body", get(t, "/fixed", "tok"), is(BODY));
+		assertThat("incorrect auth", auth, is(Arrays.asList("tok")));
+	}
+	
+	@Test
+	public void truncatedBody() throws Exception {
+		// the server closes the connection before sending the full body
+		try (final ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			final Future<?> f = serverExecutor.submit(() -> {
+				try (final Socket s = ss.accept()) {
+					final InputStream in = s.getInputStream();
+					// read the request headers
+					int state = 0;
+					while (state < 4) {
+						final int c = in.read();
+						if (c == -1) {
+							return null;
+						}
+						state = (c == '\r' && state % 2 == 0) || (c == '\n' && state % 2 == 1) ?
+								state + 1 : 0;
+					}
+					s.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n"
+							+ "short").getBytes(StandardCharsets.UTF_8));
+				}
+				return null;
+			});
+			final PooledTransport t = new PooledTransport();
+			final URI target = new URI("http://127.0.0.1:" + ss.getLocalPort() + "/");
+			try (final HttpResponse r = t.get(target, null)) {
+				assertThat("incorrect code", r.getStatusCode(), is(200));
+				read(r.getBody());
+				fail("expected exception");
+			} catch (EOFException got) {
+				TestCommon.assertExceptionCorrect(got, new EOFException(
+						"Connection closed with 95 bytes of the body unread"));
+			}
+			f.get(10, TimeUnit.SECONDS);
+			// the connection was closed rather than pooled
+			assertStats(t.getStats(), 1, 1, 0, 1, 0);
+		}
+	}
+	
+	@Test
+	public void getFail() throws Exception {
+		final PooledTransport t = new PooledTransport();
+		failGet(t, null, new NullPointerException("target"));
+		failGet(t, new URI("ftp://foo.com"),
+				new IllegalArgumentException("Unsupported URI scheme: ftp"));
+		failGet(t, new URI("file:///foo"),
+				new IllegalArgumentException("Unsupported URI scheme: file"));
+	}
+	
+	private void failGet(final PooledTransport t, final URI target, final Exception expected) {
+		try {
+			t.get(target, null);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+}
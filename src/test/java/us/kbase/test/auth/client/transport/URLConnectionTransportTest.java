@@ -0,0 +1,100 @@
+package us.kbase.test.auth.client.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import us.kbase.auth.client.transport.HttpResponse;
+import us.kbase.auth.client.transport.URLConnectionTransport;
+import us.kbase.test.common.TestCommon;
+
+public class URLConnectionTransportTest {
+	
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private URI root;
+	private final CountDownLatch block = new CountDownLatch(1);
+	
+	@Before
+	public void startServer() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.createContext("/slow", ex -> {
+			try {
+				block.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			ex.sendResponseHeaders(200, 2);
+			try (final OutputStream os = ex.getResponseBody()) {
+				os.write("{}".getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.start();
+		root = new URI("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+	
+	@After
+	public void stopServer() {
+		block.countDown();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+	
+	@Test
+	public void construct() throws Exception {
+		final URLConnectionTransport t = new URLConnectionTransport();
+		assertThat("incorrect connect", t.getConnectTimeoutMS(), is(0));
+		assertThat("incorrect read", t.getReadTimeoutMS(), is(0));
+		
+		final URLConnectionTransport t2 = new URLConnectionTransport(1, 2);
+		assertThat("incorrect connect", t2.getConnectTimeoutMS(), is(1));
+		assertThat("incorrect read", t2.getReadTimeoutMS(), is(2));
+	}
+	
+	@Test
+	public void constructFail() throws Exception {
+		failConstruct(-1, 0, new IllegalArgumentException("connectTimeoutMS must be >= 0"));
+		failConstruct(0, -1, new IllegalArgumentException("readTimeoutMS must be >= 0"));
+	}
+	
+	private void failConstruct(final int connect, final int read, final Exception expected) {
+		try {
+			new URLConnectionTransport(connect, read);
+			fail("expected exception");
+		} catch (Exception got) {
+			TestCommon.assertExceptionCorrect(got, expected);
+		}
+	}
+	
+	@Test
+	public void readTimeout() throws Exception {
+		final URLConnectionTransport t = new URLConnectionTransport(1000, 100);
+		try {
+			t.get(root.resolve("/slow"), null);
+			fail("expected exception");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+		block.countDown();
+		try (final HttpResponse r = t.get(root.resolve("/slow"), null)) {
+			assertThat("incorrect code", r.getStatusCode(), is(200));
+		}
+	}
+}
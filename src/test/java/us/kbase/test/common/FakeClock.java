@@ -0,0 +1,40 @@
+package us.kbase.test.common;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/** A clock that only moves when told to. */
+public class FakeClock extends Clock {
+	
+	private volatile long millis;
+	
+	public FakeClock(final long millis) {
+		this.millis = millis;
+	}
+	
+	public void advance(final long ms) {
+		millis += ms;
+	}
+	
+	@Override
+	public long millis() {
+		return millis;
+	}
+	
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis);
+	}
+	
+	@Override
+	public ZoneId getZone() {
+		return ZoneOffset.UTC;
+	}
+	
+	@Override
+	public Clock withZone(final ZoneId zone) {
+		throw new UnsupportedOperationException();
+	}
+}
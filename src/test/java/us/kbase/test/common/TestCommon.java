@@ -3,6 +3,7 @@ package us.kbase.test.common;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -10,6 +11,7 @@ import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.ini4j.Ini;
@@ -108,6 +110,17 @@ public class TestCommon {
 		assertThat("incorrect exception type", got, instanceOf(expected.getClass()));
 	}
 	
+	public static void waitFor(final BooleanSupplier condition)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > end) {
+				fail("timed out waiting for condition");
+			}
+			Thread.sleep(5);
+		}
+	}
+	
 	public static class TestException extends RuntimeException {
 
 		private static final long serialVersionUID = 1L;
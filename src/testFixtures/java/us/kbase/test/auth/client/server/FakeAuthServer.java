@@ -0,0 +1,353 @@
+package us.kbase.test.auth.client.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import us.kbase.auth.client.metrics.Metrics.Endpoint;
+
+/** A stand in for the KBase Auth2 server that runs in process on the JDK's built in HTTP
+ * server, for testing the client without a network or a real auth server.
+ * 
+ * Implements the root document and the api/V2/token and api/V2/users endpoints, with
+ * responses in the same format as the real server. Tokens and users are scripted with
+ * {@link #addToken(String, String)} and {@link #addUser(String)}.
+ * 
+ * Failures can be injected: a delay before each response, a fraction of requests that receive
+ * a 500 error, and a fraction of requests whose connections are closed without a response.
+ * 
+ * This class is thread safe.
+ */
+public class FakeAuthServer implements AutoCloseable {
+	
+	/** The version the server reports in the root document. */
+	public static final String VERSION = "0.7.1";
+	
+	private static final String PATH = "/services/auth";
+	
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final URI rootURI;
+	private final Map<String, TokenInfo> tokens = new ConcurrentHashMap<>();
+	private final Map<String, String> users = new ConcurrentHashMap<>();
+	private final AtomicLong[] requests = new AtomicLong[Endpoint.values().length];
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+	private volatile long minLatencyMS = 0;
+	private volatile long maxLatencyMS = 0;
+	private volatile double errorRate = 0;
+	private volatile double dropRate = 0;
+	
+	private static class TokenInfo {
+		
+		private final String user;
+		private final long expires;
+		
+		private TokenInfo(final String user, final long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+	
+	/** Start a server on a random port on the loopback interface, handling requests on up to
+	 * 16 threads.
+	 * @throws IOException if the server can't be started.
+	 */
+	public FakeAuthServer() throws IOException {
+		this(16);
+	}
+	
+	/** Start a server on a random port on the loopback interface.
+	 * @param threads the maximum number of requests handled concurrently.
+	 * @throws IOException if the server can't be started.
+	 */
+	public FakeAuthServer(final int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be > 0");
+		}
+		// otherwise Nagle's algorithm can add ~40ms to each response. Only takes effect if no
+		// server has been started in this JVM yet
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = new AtomicLong();
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext(PATH, this::handle);
+		server.start();
+		rootURI = URI.create(String.format(
+				"http://%s:%s%s",
+				server.getAddress().getHostString(), server.getAddress().getPort(), PATH));
+	}
+	
+	/** Get the root URI of the server, suitable for
+	 * {@link us.kbase.auth.client.AuthClient#builder(URI)}.
+	 * @return the URI.
+	 */
+	public URI getRootURI() {
+		return rootURI;
+	}
+	
+	/** Add a valid token that expires in 24 hours. Also adds the user.
+	 * @param token the token.
+	 * @param user the user that owns the token.
+	 * @return this server.
+	 */
+	public FakeAuthServer addToken(final String token, final String user) {
+		return addToken(token, user, System.currentTimeMillis() + 24 * 3600 * 1000L);
+	}
+	
+	/** Add a valid token. Also adds the user. The server rejects the token after it expires.
+	 * @param token the token.
+	 * @param user the user that owns the token.
+	 * @param expires the expiration time in milliseconds since the epoch.
+	 * @return this server.
+	 */
+	public FakeAuthServer addToken(final String token, final String user, final long expires) {
+		addUser(user);
+		tokens.put(token, new TokenInfo(user, expires));
+		return this;
+	}
+	
+	/** Revoke a token.
+	 * @param token the token.
+	 * @return this server.
+	 */
+	public FakeAuthServer removeToken(final String token) {
+		tokens.remove(token);
+		return this;
+	}
+	
+	/** Add a user.
+	 * @param user the username.
+	 * @return this server.
+	 */
+	public FakeAuthServer addUser(final String user) {
+		users.put(user, "Display name for " + user);
+		return this;
+	}
+	
+	/** Delay each response by a fixed time.
+	 * @param latencyMS the delay in milliseconds.
+	 * @return this server.
+	 */
+	public FakeAuthServer setLatency(final long latencyMS) {
+		return setLatency(latencyMS, latencyMS);
+	}
+	
+	/** Delay each response by a time chosen uniformly at random from a range.
+	 * @param minLatencyMS the minimum delay in milliseconds.
+	 * @param maxLatencyMS the maximum delay in milliseconds.
+	 * @return this server.
+	 */
+	public FakeAuthServer setLatency(final long minLatencyMS, final long maxLatencyMS) {
+		if (minLatencyMS < 0 || maxLatencyMS < minLatencyMS) {
+			throw new IllegalArgumentException("latency must be >= 0 and min <= max");
+		}
+		this.maxLatencyMS = maxLatencyMS;
+		this.minLatencyMS = minLatencyMS;
+		return this;
+	}
+	
+	/** Set the fraction of requests that receive a 500 error.
+	 * @param rate the fraction, from 0 to 1.
+	 * @return this server.
+	 */
+	public FakeAuthServer setErrorRate(final double rate) {
+		this.errorRate = checkRate(rate);
+		return this;
+	}
+	
+	/** Set the fraction of requests whose connections are closed without a response.
+	 * @param rate the fraction, from 0 to 1.
+	 * @return this server.
+	 */
+	public FakeAuthServer setDropRate(final double rate) {
+		this.dropRate = checkRate(rate);
+		return this;
+	}
+	
+	private static double checkRate(final double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("rate must be between 0 and 1");
+		}
+		return rate;
+	}
+	
+	/** Get the number of requests received for an endpoint, including failed requests.
+	 * @param endpoint the endpoint.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount(final Endpoint endpoint) {
+		return requests[endpoint.ordinal()].get();
+	}
+	
+	/** Get the number of injected 500 errors.
+	 * @return the number of errors.
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+	
+	/** Get the number of injected connection drops.
+	 * @return the number of dropped connections.
+	 */
+	public long getDropCount() {
+		return drops.get();
+	}
+	
+	/** Stop the server. */
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	private void handle(final HttpExchange ex) throws IOException {
+		try {
+			final String path = ex.getRequestURI().getPath().substring(PATH.length())
+					.replaceAll("^/+|/+$", "");
+			final Endpoint endpoint;
+			if (path.isEmpty()) {
+				endpoint = Endpoint.ROOT;
+			} else if (path.equals(Endpoint.TOKEN.getPath())) {
+				endpoint = Endpoint.TOKEN;
+			} else if (path.equals(Endpoint.USERS.getPath())) {
+				endpoint = Endpoint.USERS;
+			} else {
+				respond(ex, 404, error(404, "Not Found", null, null, "HTTP 404 Not Found"));
+				return;
+			}
+			requests[endpoint.ordinal()].incrementAndGet();
+			delay();
+			final ThreadLocalRandom r = ThreadLocalRandom.current();
+			if (dropRate > 0 && r.nextDouble() < dropRate) {
+				drops.incrementAndGet();
+				return; // closing the exchange without a response drops the connection
+			}
+			if (errorRate > 0 && r.nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				respond(ex, 500, error(500, "Internal Server Error", null, null,
+						"Injected failure"));
+				return;
+			}
+			switch (endpoint) {
+				case ROOT: respond(ex, 200, rootDoc()); break;
+				case TOKEN: handleToken(ex); break;
+				case USERS: handleUsers(ex); break;
+			}
+		} finally {
+			ex.close();
+		}
+	}
+	
+	private void delay() {
+		final long min = minLatencyMS;
+		final long max = maxLatencyMS;
+		if (max > 0) {
+			try {
+				Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// returns the token info, or null if an error response has been sent
+	private TokenInfo checkToken(final HttpExchange ex) throws IOException {
+		final String token = ex.getRequestHeaders().getFirst("Authorization");
+		if (token == null || token.trim().isEmpty()) {
+			respond(ex, 400, error(400, "Bad Request", 10010, "No authentication token",
+					"10010 No authentication token"));
+			return null;
+		}
+		final TokenInfo ti = tokens.get(token.trim());
+		if (ti == null || ti.expires <= System.currentTimeMillis()) {
+			respond(ex, 401, error(401, "Unauthorized", 10020, "Invalid token",
+					"10020 Invalid token"));
+			return null;
+		}
+		return ti;
+	}
+	
+	private void handleToken(final HttpExchange ex) throws IOException {
+		final TokenInfo ti = checkToken(ex);
+		if (ti != null) {
+			respond(ex, 200, String.format(
+					"{\"type\": \"Login\", \"id\": \"%s\", \"expires\": %s, \"created\": %s, "
+					+ "\"name\": null, \"user\": \"%s\", \"custom\": {}, \"cachefor\": 300000}",
+					Integer.toHexString(ti.hashCode()),
+					ti.expires,
+					System.currentTimeMillis(),
+					ti.user));
+		}
+	}
+	
+	private void handleUsers(final HttpExchange ex) throws IOException {
+		if (checkToken(ex) == null) {
+			return;
+		}
+		final String query = ex.getRequestURI().getQuery();
+		final StringBuilder sb = new StringBuilder("{");
+		if (query != null && query.startsWith("list=")) {
+			for (final String u: query.substring("list=".length()).split(",")) {
+				final String display = users.get(u);
+				if (display != null) {
+					if (sb.length() > 1) {
+						sb.append(", ");
+					}
+					sb.append("\"").append(u).append("\": \"").append(display).append("\"");
+				}
+			}
+		}
+		respond(ex, 200, sb.append("}").toString());
+	}
+	
+	private static String rootDoc() {
+		return String.format(
+				"{\"version\": \"%s\", \"servertime\": %s, \"gitcommithash\": \"fake\", "
+				+ "\"servicename\": \"Authentication Service\"}",
+				VERSION, System.currentTimeMillis());
+	}
+	
+	private static String error(
+			final int httpCode,
+			final String httpStatus,
+			final Integer appCode,
+			final String appError,
+			final String message) {
+		return String.format(
+				"{\"error\": {\"httpcode\": %s, \"httpstatus\": \"%s\", \"appcode\": %s, "
+				+ "\"apperror\": %s, \"message\": \"%s\", \"callid\": \"fake\", "
+				+ "\"time\": %s}}",
+				httpCode,
+				httpStatus,
+				appCode,
+				appError == null ? "null" : "\"" + appError + "\"",
+				message,
+				System.currentTimeMillis());
+	}
+	
+	private static void respond(final HttpExchange ex, final int code, final String body)
+			throws IOException {
+		final byte[] b = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(code, b.length);
+		try (final OutputStream os = ex.getResponseBody()) {
+			os.write(b);
+		}
+	}
+}